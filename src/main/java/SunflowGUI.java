@@ -132,6 +132,7 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -hipri           Set thread priority to high");
             System.out.println("  -smallmesh       Load triangle meshes using triangles optimized for memory use");
             System.out.println("  -dumpkd          Dump KDTree to an obj file for visualization");
+            System.out.println("  -accelcache dir  Store built acceleration structures in the specified directory for reuse");
             System.out.println("  -buildonly       Do not call render method after loading the scene");
             System.out.println("  -showaa          Display sampling levels per pixel for bucket renderer");
             System.out.println("  -nogi            Disable any global illumination engines in the scene");
@@ -156,6 +157,8 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -frame n         Set frame number to the specified value");
             System.out.println("  -anim n1 n2      Render all frames between the two specified values (inclusive)");
             System.out.println("  -translate file  Translate input scene to the specified filename");
+            System.out.println("  -maketx file     Convert the input image to a tiled texture with the specified filename (sft)");
+            System.out.println("  -linear          Treat the image converted with -maketx as linear data (for bump maps)");
             System.out.println("  -v verbosity     Set the verbosity level: 0=none,1=errors,2=warnings,3=info,4=detailed");
             System.out.println("  -h               Prints this message");
         }
@@ -172,6 +175,7 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             int i = 0;
             int threads = 0;
             boolean lowPriority = true;
+            String accelCache = null;
             boolean showAA = false;
             boolean noGI = false;
             boolean noCaustics = false;
@@ -189,6 +193,8 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             boolean runBenchmark = false;
             boolean runRTBenchmark = false;
             String translateFilename = null;
+            String textureFilename = null;
+            boolean linearTexture = false;
             int frameStart = 1, frameStop = 1;
             while (i < args.length) {
                 if (args[i].equals("-o")) {
@@ -224,6 +230,11 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 } else if (args[i].equals("-dumpkd")) {
                     KDTree.setDumpMode(true, "kdtree");
                     i++;
+                } else if (args[i].equals("-accelcache")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    accelCache = args[i + 1];
+                    i += 2;
                 } else if (args[i].equals("-buildonly")) {
                     noRender = true;
                     i++;
@@ -350,6 +361,14 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                         usage(false);
                     translateFilename = args[i + 1];
                     i += 2;
+                } else if (args[i].equals("-maketx")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    textureFilename = args[i + 1];
+                    i += 2;
+                } else if (args[i].equals("-linear")) {
+                    linearTexture = true;
+                    i++;
                 } else if (args[i].equals("-h") || args[i].equals("-help")) {
                     usage(true);
                 } else {
@@ -376,6 +395,10 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 SunflowAPI.translate(input, translateFilename);
                 return;
             }
+            if (textureFilename != null) {
+                SunflowAPI.convertTexture(input, textureFilename, linearTexture);
+                return;
+            }
             if (frameStart < frameStop && showFrame) {
                 UI.printWarning(Module.GUI, "Animations should not be rendered without -nogui - forcing GUI off anyway");
                 showFrame = false;
@@ -407,6 +430,8 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 api.parameter("aa.display", showAA);
                 api.parameter("threads", threads);
                 api.parameter("threads.lowPriority", lowPriority);
+                if (accelCache != null)
+                    api.parameter("accel.cache", accelCache);
                 if (bakingName != null) {
                     api.parameter("baking.instance", bakingName);
                     api.parameter("baking.viewdep", bakeViewdep);
@@ -15,9 +15,12 @@ import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.BoundingVolumeHierarchy;
+import org.sunflow.core.accel.CompactBoundingIntervalHierarchy;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.core.accel.UniformGrid;
+import org.sunflow.core.accel.WideBoundingVolumeHierarchy;
 import org.sunflow.core.bucket.ColumnBucketOrder;
 import org.sunflow.core.bucket.DiagonalBucketOrder;
 import org.sunflow.core.bucket.HilbertBucketOrder;
@@ -78,6 +81,7 @@ import org.sunflow.core.renderer.BucketRenderer;
 import org.sunflow.core.renderer.MultipassRenderer;
 import org.sunflow.core.renderer.ProgressiveRenderer;
 import org.sunflow.core.renderer.SimpleRenderer;
+import org.sunflow.core.renderer.WavefrontRenderer;
 import org.sunflow.core.shader.AmbientOcclusionShader;
 import org.sunflow.core.shader.AnisotropicWardShader;
 import org.sunflow.core.shader.ConstantShader;
@@ -104,6 +108,7 @@ import org.sunflow.core.shader.ViewIrradianceShader;
 import org.sunflow.core.shader.WireframeShader;
 import org.sunflow.core.tesselatable.BezierMesh;
 import org.sunflow.core.tesselatable.FileMesh;
+import org.sunflow.core.tesselatable.GeometryProxy;
 import org.sunflow.core.tesselatable.Gumbo;
 import org.sunflow.core.tesselatable.Teapot;
 import org.sunflow.image.BitmapReader;
@@ -113,6 +118,7 @@ import org.sunflow.image.readers.HDRBitmapReader;
 import org.sunflow.image.readers.IGIBitmapReader;
 import org.sunflow.image.readers.JPGBitmapReader;
 import org.sunflow.image.readers.PNGBitmapReader;
+import org.sunflow.image.readers.SFTBitmapReader;
 import org.sunflow.image.readers.TGABitmapReader;
 import org.sunflow.image.writers.EXRBitmapWriter;
 import org.sunflow.image.writers.HDRBitmapWriter;
@@ -170,6 +176,7 @@ public final class PluginRegistry {
         // tesslatable
         tesselatablePlugins.registerPlugin("bezier_mesh", BezierMesh.class);
         tesselatablePlugins.registerPlugin("file_mesh", FileMesh.class);
+        tesselatablePlugins.registerPlugin("proxy", GeometryProxy.class);
         tesselatablePlugins.registerPlugin("gumbo", Gumbo.class);
         tesselatablePlugins.registerPlugin("teapot", Teapot.class);
     }
@@ -235,6 +242,9 @@ public final class PluginRegistry {
     static {
         // accels
         accelPlugins.registerPlugin("bih", BoundingIntervalHierarchy.class);
+        accelPlugins.registerPlugin("bvh", BoundingVolumeHierarchy.class);
+        accelPlugins.registerPlugin("bvh4", WideBoundingVolumeHierarchy.class);
+        accelPlugins.registerPlugin("compactbih", CompactBoundingIntervalHierarchy.class);
         accelPlugins.registerPlugin("kdtree", KDTree.class);
         accelPlugins.registerPlugin("null", NullAccelerator.class);
         accelPlugins.registerPlugin("uniformgrid", UniformGrid.class);
@@ -289,6 +299,7 @@ public final class PluginRegistry {
         imageSamplerPlugins.registerPlugin("ipr", ProgressiveRenderer.class);
         imageSamplerPlugins.registerPlugin("fast", SimpleRenderer.class);
         imageSamplerPlugins.registerPlugin("multipass", MultipassRenderer.class);
+        imageSamplerPlugins.registerPlugin("wavefront", WavefrontRenderer.class);
     }
 
 // EP : Don't need parsers
@@ -312,6 +323,7 @@ public final class PluginRegistry {
         bitmapReaderPlugins.registerPlugin("igi", IGIBitmapReader.class);
         // EP : Added extension jpeg
         bitmapReaderPlugins.registerPlugin("jpeg", JPGBitmapReader.class);
+        bitmapReaderPlugins.registerPlugin("sft", SFTBitmapReader.class);
     }
 
     static {
@@ -1,6 +1,7 @@
 package org.sunflow;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 import org.sunflow.core.Camera;
@@ -20,15 +21,22 @@ import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.TextureCache;
 import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.BitmapReader;
+import org.sunflow.image.BitmapReader.BitmapFormatException;
 import org.sunflow.image.ColorFactory;
 import org.sunflow.image.ColorFactory.ColorSpecificationException;
+import org.sunflow.image.MipMaps;
+import org.sunflow.image.formats.BitmapTiledFile;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point2;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 import org.sunflow.system.FileUtils;
+import org.sunflow.system.Memory;
 import org.sunflow.system.SearchPath;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -486,6 +494,7 @@ public class SunflowAPI implements SunflowAPIInterface {
         if (opt == null)
             opt = new Options();
         scene.setCamera(lookupCamera(opt.getString("camera", null)));
+        scene.setTextureCache(textureCache);
 
         // shader override
         String shaderOverrideName = opt.getString("override.shader", "none");
@@ -647,6 +656,42 @@ public class SunflowAPI implements SunflowAPIInterface {
         throw new UnsupportedOperationException("Removed parser support from SunFlow");
     }
 
+    /**
+     * Convert an image to a pre-tiled, mipmapped texture file which can be
+     * read faster and with less memory at render time. The output file should
+     * use the <code>.sft</code> extension to be recognized as a texture.
+     * 
+     * @param filename image file to convert, in any format with a registered
+     *            bitmap reader
+     * @param outputFilename tiled texture file to create
+     * @param isLinear is the image already in linear space? This should match
+     *            the way the texture is used, as the conversion is done once
+     *            for all
+     * @return <code>true</code> upon success, <code>false</code> otherwise
+     */
+    public static boolean convertTexture(String filename, String outputFilename, boolean isLinear) {
+        BitmapReader reader = PluginRegistry.bitmapReaderPlugins.createObject(FileUtils.getExtension(filename));
+        if (reader == null) {
+            UI.printError(Module.API, "Unable to find a suitable reader for: \"%s\"", filename);
+            return false;
+        }
+        try {
+            Timer t = new Timer();
+            t.start();
+            Bitmap bitmap = reader.load(filename, isLinear);
+            Bitmap[] levels = MipMaps.create(bitmap);
+            long bytes = BitmapTiledFile.write(outputFilename, levels, isLinear, true);
+            t.end();
+            UI.printInfo(Module.API, "Converted \"%s\" (%dx%d, %d levels) to \"%s\" (%s) in %s", filename, bitmap.getWidth(), bitmap.getHeight(), levels.length, outputFilename, Memory.bytesToString(bytes), t.toString());
+            return true;
+        } catch (IOException e) {
+            UI.printError(Module.API, "Unable to convert texture - %s", e.getMessage());
+        } catch (BitmapFormatException e) {
+            UI.printError(Module.API, "Unable to convert texture - %s", e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Compile the specified code string via Janino. The code must implement a
      * build method as described above. The build method is not called on the
@@ -0,0 +1,339 @@
+package org.sunflow.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.OffHeapIntArray;
+
+/**
+ * Stores built acceleration structures on disk so that they can be reloaded
+ * instead of being rebuilt the next time the same geometry is rendered. Each
+ * file is named after a hash of everything the builders look at: the type of
+ * acceleration structure and the bounds of every primitive in the list. Files
+ * are read back through a memory mapping. The cache is disabled until a
+ * directory is set, which is normally done from the <code>accel.cache</code>
+ * option of the scene.
+ * <p>
+ * The directory is shared by all scenes of the process. This is safe because
+ * a file can only match the exact primitives it was built for. The directory
+ * stays in effect until it is changed again, scenes which don't set the
+ * option leave it alone.
+ */
+public final class AccelerationCache {
+    private static final int MAGIC = 0x53464143; // "SFAC"
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".accel";
+
+    private static File directory = null;
+
+    private AccelerationCache() {
+    }
+
+    /**
+     * Sets the directory cached acceleration structures are read from and
+     * written to. The directory is created if needed.
+     *
+     * @param dir cache directory, or <code>null</code> or an empty string to
+     *            disable the cache
+     */
+    public static synchronized void setDirectory(String dir) {
+        if (dir == null || dir.length() == 0) {
+            if (directory != null)
+                UI.printInfo(Module.ACCEL, "Acceleration cache disabled");
+            directory = null;
+            return;
+        }
+        File d = new File(dir);
+        if (d.equals(directory))
+            return;
+        if (!d.isDirectory() && !d.mkdirs()) {
+            UI.printWarning(Module.ACCEL, "Unable to create acceleration cache directory \"%s\" - cache disabled", dir);
+            directory = null;
+            return;
+        }
+        UI.printInfo(Module.ACCEL, "Using acceleration cache directory \"%s\"", d.getAbsolutePath());
+        directory = d;
+    }
+
+    private static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Prepare the specified acceleration structure for the given primitives.
+     * If a matching structure is found in the cache it is loaded, otherwise
+     * the structure is built and stored for next time. Acceleration structures
+     * which do not implement {@link PersistentAccelerationStructure} are
+     * always built.
+     *
+     * @param accel acceleration structure to prepare
+     * @param primitives primitives to build the structure for
+     */
+    public static void build(AccelerationStructure accel, PrimitiveList primitives) {
+        File dir = getDirectory();
+        if (dir == null || !(accel instanceof PersistentAccelerationStructure)) {
+            accel.build(primitives);
+            return;
+        }
+        PersistentAccelerationStructure paccel = (PersistentAccelerationStructure) accel;
+        Timer t = new Timer();
+        t.start();
+        byte[] key = computeKey(accel, primitives);
+        t.end();
+        if (key == null) {
+            accel.build(primitives);
+            return;
+        }
+        String name = toHex(key) + EXTENSION;
+        UI.printDetailed(Module.ACCEL, "Acceleration cache key: %s (%s)", name, t);
+        File file = new File(dir, name);
+        if (file.isFile()) {
+            t.start();
+            if (load(file, key, paccel, primitives)) {
+                t.end();
+                UI.printInfo(Module.ACCEL, "Acceleration cache hit: loaded \"%s\" in %s", name, t);
+                return;
+            }
+        } else
+            UI.printInfo(Module.ACCEL, "Acceleration cache miss: \"%s\"", name);
+        accel.build(primitives);
+        t.start();
+        if (save(file, key, primitives.getNumPrimitives(), paccel)) {
+            t.end();
+            UI.printDetailed(Module.ACCEL, "Saved \"%s\" to the acceleration cache in %s", name, t);
+        }
+    }
+
+    private static byte[] computeKey(AccelerationStructure accel, PrimitiveList primitives) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            UI.printWarning(Module.ACCEL, "Unable to hash primitives - acceleration cache disabled");
+            return null;
+        }
+        int n = primitives.getNumPrimitives();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        buf.putInt(FORMAT_VERSION);
+        buf.put(accel.getClass().getName().getBytes());
+        buf.put(primitives.getClass().getName().getBytes());
+        buf.putInt(n);
+        BoundingBox bounds = primitives.getWorldBounds(null);
+        if (bounds != null) {
+            buf.putFloat(bounds.getMinimum().x).putFloat(bounds.getMinimum().y).putFloat(bounds.getMinimum().z);
+            buf.putFloat(bounds.getMaximum().x).putFloat(bounds.getMaximum().y).putFloat(bounds.getMaximum().z);
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 24) {
+                md.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            for (int j = 0; j < 6; j++)
+                buf.putFloat(primitives.getPrimitiveBound(i, j));
+        }
+        md.update(buf.array(), 0, buf.position());
+        return md.digest();
+    }
+
+    private static boolean load(File file, byte[] key, PersistentAccelerationStructure accel, PrimitiveList primitives) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                UI.printWarning(Module.ACCEL, "Acceleration cache file \"%s\" has an unsupported format - rebuilding", file.getName());
+                return false;
+            }
+            byte[] fileKey = new byte[key.length];
+            in.get(fileKey);
+            if (!Arrays.equals(key, fileKey) || in.getInt() != primitives.getNumPrimitives()) {
+                UI.printWarning(Module.ACCEL, "Acceleration cache file \"%s\" does not match the geometry - rebuilding", file.getName());
+                return false;
+            }
+            accel.read(primitives, in);
+            return true;
+        } catch (IOException e) {
+            UI.printWarning(Module.ACCEL, "Unable to read acceleration cache file \"%s\": %s", file.getName(), e.getMessage());
+        } catch (RuntimeException e) {
+            // truncated file or garbage array sizes
+            UI.printWarning(Module.ACCEL, "Acceleration cache file \"%s\" is corrupt - rebuilding", file.getName());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean save(File file, byte[] key, int numPrimitives, PersistentAccelerationStructure accel) {
+        File temp = null;
+        try {
+            // write to a temporary file first so that concurrent renders never
+            // see a partial file
+            temp = File.createTempFile("accel", ".tmp", file.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.write(key);
+                out.writeInt(numPrimitives);
+                accel.write(out);
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                UI.printWarning(Module.ACCEL, "Unable to store acceleration cache file \"%s\"", file.getName());
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            if (temp != null)
+                temp.delete();
+            UI.printWarning(Module.ACCEL, "Unable to write acceleration cache file \"%s\": %s", file.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(2 * data.length);
+        for (byte b : data)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+    /**
+     * Write an array of integers, preceded by its length.
+     *
+     * @param out stream to write to
+     * @param data array to write
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeInts(DataOutput out, int[] data) throws IOException {
+        out.writeInt(data.length);
+        for (int i : data)
+            out.writeInt(i);
+    }
+
+    /**
+     * Read an array of integers written by {@link #writeInts(DataOutput, int[])}.
+     *
+     * @param in buffer to read from
+     * @return a new array
+     */
+    public static int[] readInts(ByteBuffer in) {
+        int[] data = new int[in.getInt()];
+        in.asIntBuffer().get(data);
+        in.position(in.position() + 4 * data.length);
+        return data;
+    }
+
+    /**
+     * Write an off-heap array of integers, preceded by its length. The result
+     * can be read back with {@link #readInts(ByteBuffer)} or
+     * {@link #readOffHeapInts(ByteBuffer)}.
+     *
+     * @param out stream to write to
+     * @param data array to write
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeInts(DataOutput out, OffHeapIntArray data) throws IOException {
+        if (data.getSize() > Integer.MAX_VALUE)
+            throw new IOException("array is too large for the cache format");
+        out.writeInt((int) data.getSize());
+        for (long i = 0; i < data.getSize(); i++)
+            out.writeInt(data.get(i));
+    }
+
+    /**
+     * Read an array of integers written by {@link #writeInts(DataOutput, int[])}
+     * without copying it to the heap. The array stays backed by the cache
+     * file.
+     *
+     * @param in buffer to read from
+     * @return an off-heap array
+     */
+    public static OffHeapIntArray readOffHeapInts(ByteBuffer in) {
+        int size = in.getInt();
+        OffHeapIntArray data = OffHeapIntArray.wrap(in, size);
+        in.position(in.position() + 4 * size);
+        return data;
+    }
+
+    /**
+     * Write an array of floats, preceded by its length.
+     *
+     * @param out stream to write to
+     * @param data array to write
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeFloats(DataOutput out, float[] data) throws IOException {
+        out.writeInt(data.length);
+        for (float f : data)
+            out.writeFloat(f);
+    }
+
+    /**
+     * Read an array of floats written by
+     * {@link #writeFloats(DataOutput, float[])}.
+     *
+     * @param in buffer to read from
+     * @return a new array
+     */
+    public static float[] readFloats(ByteBuffer in) {
+        float[] data = new float[in.getInt()];
+        in.asFloatBuffer().get(data);
+        in.position(in.position() + 4 * data.length);
+        return data;
+    }
+
+    /**
+     * Write a bounding box as 6 floats.
+     *
+     * @param out stream to write to
+     * @param box box to write
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeBounds(DataOutput out, BoundingBox box) throws IOException {
+        out.writeFloat(box.getMinimum().x);
+        out.writeFloat(box.getMinimum().y);
+        out.writeFloat(box.getMinimum().z);
+        out.writeFloat(box.getMaximum().x);
+        out.writeFloat(box.getMaximum().y);
+        out.writeFloat(box.getMaximum().z);
+    }
+
+    /**
+     * Read a bounding box written by
+     * {@link #writeBounds(DataOutput, BoundingBox)}.
+     *
+     * @param in buffer to read from
+     * @return a new bounding box
+     */
+    public static BoundingBox readBounds(ByteBuffer in) {
+        BoundingBox box = new BoundingBox(in.getFloat(), in.getFloat(), in.getFloat());
+        box.include(in.getFloat(), in.getFloat(), in.getFloat());
+        return box;
+    }
+}
@@ -6,7 +6,8 @@ import org.sunflow.system.UI.Module;
 
 class AccelerationStructureFactory {
     static final AccelerationStructure create(String name, int n, boolean primitives) {
-        if (name == null || name.equals("auto")) {
+        // measured selection needs the primitives, it is handled by Geometry
+        if (name == null || name.equals("auto") || name.equals(MeasuredAccelerationSelector.NAME)) {
             if (primitives) {
                 if (n > 20000000)
                     name = "uniformgrid";
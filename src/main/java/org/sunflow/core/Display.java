@@ -38,7 +38,9 @@ public interface Display {
      * necessary. Colors are passed in unprocessed. It is up the display driver
      * to do any type of quantization, gamma compensation or tone-mapping
      * needed. The array of colors will be exactly <code>w * h</code> long and
-     * in row major order.
+     * in row major order. The arrays are only valid for the duration of this
+     * call: renderers may reuse them for the next bucket, so their contents
+     * must be copied if they need to be kept.
      * 
      * @param x x coordinate of the bucket within the image
      * @param y y coordinate of the bucket within the image
@@ -0,0 +1,23 @@
+package org.sunflow.core;
+
+import org.sunflow.image.Color;
+
+/**
+ * Collects the final gather rays of shading states whose indirect diffuse
+ * bounce is computed later on, together with the gather rays of many other
+ * points, rather than recursively from within their shader. This is used by
+ * samplers which trace the rays of each bounce in large batches.
+ */
+public interface FinalGatherQueue {
+    /**
+     * Queue a final gather ray. The radiance found along the ray, multiplied
+     * by the specified weight, must be added to the radiance of the state
+     * which queued it.
+     *
+     * @param state state the ray starts from
+     * @param r ray to trace
+     * @param i instance of the ray
+     * @param weight contribution of the ray to the radiance of the state
+     */
+    public void add(ShadingState state, Ray r, int i, Color weight);
+}
@@ -20,6 +20,13 @@ public class Geometry implements RenderObject {
     private int builtAccel;
     private int builtTess;
     private String acceltype;
+    private boolean refit;
+    private boolean offHeap;
+    private MeasuredAccelerationSelector selection;
+    private long rayBudget = MeasuredAccelerationSelector.DEFAULT_RAY_BUDGET;
+    private final boolean reloadable;
+    private GeometryCache cache;
+    private volatile long lastUse;
 
     /**
      * Create a geometry from the specified tesselatable object. The actual
@@ -34,6 +41,7 @@ public class Geometry implements RenderObject {
         builtAccel = 0;
         builtTess = 0;
         acceltype = null;
+        reloadable = tesselatable instanceof ReloadableTesselatable;
     }
 
     /**
@@ -48,18 +56,27 @@ public class Geometry implements RenderObject {
         accel = null;
         builtAccel = 0;
         builtTess = 1; // already tesselated
+        reloadable = false;
     }
 
     public boolean update(ParameterList pl, SunflowAPI api) {
+        String oldAcceltype = acceltype;
         acceltype = pl.getString("accel", acceltype);
+        refit = pl.getBoolean("accel.refit", refit);
+        offHeap = pl.getBoolean("accel.offheap", offHeap);
         // clear up old tesselation if it exists
         if (tesselatable != null) {
             primitives = null;
             builtTess = 0;
         }
-        // clear acceleration structure so it will be rebuilt
-        accel = null;
+        // clear acceleration structure so it will be rebuilt - it is kept
+        // around if it might be refit to the new primitives instead
+        if (reloadable || !refit || !(acceltype == null ? oldAcceltype == null : acceltype.equals(oldAcceltype)))
+            accel = null;
         builtAccel = 0;
+        GeometryCache c = cache;
+        if (c != null)
+            c.remove(this);
         if (tesselatable != null)
             return tesselatable.update(pl, api);
         // update primitives
@@ -86,6 +103,10 @@ public class Geometry implements RenderObject {
     }
 
     void intersect(Ray r, IntersectionState state) {
+        if (reloadable) {
+            getResidentAccel().intersect(r, state);
+            return;
+        }
         if (builtTess == 0)
             tesselate();
         if (builtAccel == 0)
@@ -93,6 +114,114 @@ public class Geometry implements RenderObject {
         accel.intersect(r, state);
     }
 
+    void intersect(RayPacket packet) {
+        AccelerationStructure accel;
+        if (reloadable)
+            accel = getResidentAccel();
+        else {
+            if (builtTess == 0)
+                tesselate();
+            if (builtAccel == 0)
+                build();
+            accel = this.accel;
+        }
+        if (packet.isCoherent() && accel instanceof PacketAccelerationStructure)
+            ((PacketAccelerationStructure) accel).intersect(packet);
+        else {
+            // rays going in different directions, trace them one at a time
+            for (int i = 0; i < packet.getSize(); i++)
+                accel.intersect(packet.getRay(i), packet.getState(i));
+        }
+    }
+
+    /**
+     * Get the acceleration structure of reloadable geometry, loading it first
+     * if needed. The geometry may be discarded by another thread at any time,
+     * so the fields are only read once and under lock.
+     */
+    private AccelerationStructure getResidentAccel() {
+        touch();
+        AccelerationStructure a = accel;
+        return a != null ? a : load();
+    }
+
+    private PrimitiveList getResidentPrimitives() {
+        touch();
+        PrimitiveList p = primitives;
+        while (p == null) {
+            load();
+            synchronized (this) {
+                if (primitives == null && builtTess != 0)
+                    return null; // failed tesselation
+                p = primitives;
+            }
+        }
+        return p;
+    }
+
+    private AccelerationStructure load() {
+        AccelerationStructure a;
+        long bytes = 0;
+        synchronized (this) {
+            if (accel != null)
+                return accel;
+            tesselate();
+            build();
+            a = accel;
+            if (primitives != null)
+                bytes = ((ReloadableTesselatable) tesselatable).getMemoryUsage(primitives);
+        }
+        // must not hold the lock of this geometry here
+        GeometryCache c = cache;
+        if (bytes > 0 && c != null) {
+            c.add(this, bytes);
+            // just loaded, so it belongs to the new epoch
+            touch();
+        }
+        return a;
+    }
+
+    private void touch() {
+        GeometryCache c = cache;
+        if (c != null) {
+            // only write when the epoch changed, most rays just read
+            long e = c.getEpoch();
+            if (lastUse != e)
+                lastUse = e;
+        }
+    }
+
+    /**
+     * Sets the cache which keeps track of the memory used by this geometry,
+     * if it is reloadable. Geometry which was loaded under a different cache
+     * is discarded, so that it will be accounted for by the new one.
+     * 
+     * @param cache geometry cache of the scene being rendered
+     */
+    void setCache(GeometryCache cache) {
+        if (!reloadable || this.cache == cache)
+            return;
+        if (this.cache != null)
+            this.cache.remove(this);
+        this.cache = cache;
+        discard();
+    }
+
+    /**
+     * Throw away the primitives and acceleration structure of reloadable
+     * geometry. They will be created again when needed.
+     */
+    synchronized void discard() {
+        primitives = null;
+        accel = null;
+        builtTess = 0;
+        builtAccel = 0;
+    }
+
+    long getLastUse() {
+        return lastUse;
+    }
+
     private synchronized void tesselate() {
         // double check flag
         if (builtTess != 0)
@@ -114,10 +243,27 @@ public class Geometry implements RenderObject {
             return;
         if (primitives != null) {
             int n = primitives.getNumPrimitives();
+            if (refit && accel instanceof RefittableAccelerationStructure) {
+                if (n >= 1000)
+                    UI.printInfo(Module.GEOM, "Refitting acceleration structure for %d primitives ...", n);
+                if (((RefittableAccelerationStructure) accel).refit(primitives)) {
+                    builtAccel = 1;
+                    return;
+                }
+            }
             if (n >= 1000)
                 UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
-            accel = AccelerationStructureFactory.create(acceltype, n, true);
-            accel.build(primitives);
+            if (MeasuredAccelerationSelector.NAME.equals(acceltype)) {
+                // measure only once, the decision is kept for later renders
+                if (selection == null || !selection.isValidFor(primitives, rayBudget))
+                    selection = MeasuredAccelerationSelector.select(primitives, rayBudget);
+                accel = selection.build(primitives, offHeap);
+            } else {
+                selection = null;
+                accel = AccelerationStructureFactory.create(acceltype, n, true);
+                setOffHeap(accel, offHeap);
+                AccelerationCache.build(accel, primitives);
+            }
         } else {
             // create an empty accelerator to avoid having to check for null
             // pointers in the intersect method
@@ -126,8 +272,22 @@ public class Geometry implements RenderObject {
         builtAccel = 1;
     }
 
+    /**
+     * Select where the specified acceleration structure will be stored, if it
+     * supports off-heap storage.
+     */
+    static void setOffHeap(AccelerationStructure accel, boolean offHeap) {
+        if (accel instanceof OffHeapAccelerationStructure)
+            ((OffHeapAccelerationStructure) accel).setOffHeap(offHeap);
+        else if (offHeap)
+            UI.printWarning(Module.GEOM, "Acceleration structure %s can't be stored off-heap - using the heap", accel.getClass().getSimpleName());
+    }
+
     void prepareShadingState(ShadingState state) {
-        primitives.prepareShadingState(state);
+        if (reloadable)
+            getResidentPrimitives().prepareShadingState(state);
+        else
+            primitives.prepareShadingState(state);
     }
 
     PrimitiveList getBakingPrimitives() {
@@ -138,7 +298,64 @@ public class Geometry implements RenderObject {
         return primitives.getBakingPrimitives();
     }
 
+    /**
+     * Select the acceleration structure of this geometry now if it is chosen
+     * by measurement, so that the measurements are made before rendering
+     * starts instead of on a render thread. The structure itself is still
+     * built on demand, except for reloadable geometry which is loaded through
+     * the geometry cache right away so its memory is accounted for.
+     * 
+     * @param rayBudget number of rays this geometry is expected to be
+     *            intersected with over a frame
+     */
+    void selectAccel(long rayBudget) {
+        synchronized (this) {
+            if (!MeasuredAccelerationSelector.NAME.equals(acceltype))
+                return;
+            this.rayBudget = rayBudget;
+            // keep a structure which is already built
+            if (builtAccel != 0)
+                return;
+            if (!reloadable) {
+                if (builtTess == 0)
+                    tesselate();
+                if (primitives != null && (selection == null || !selection.isValidFor(primitives, rayBudget)))
+                    selection = MeasuredAccelerationSelector.select(primitives, rayBudget);
+                return;
+            }
+        }
+        // must not hold the lock of this geometry here
+        load();
+    }
+
+    /**
+     * Build the acceleration structure of this geometry now instead of on
+     * the first ray which reaches it. Reloadable geometry is left to be
+     * loaded on demand, within the memory budget of the geometry cache.
+     */
+    void prebuild() {
+        if (reloadable)
+            return;
+        if (builtTess == 0)
+            tesselate();
+        if (builtAccel == 0)
+            build();
+    }
+
+    /**
+     * Get the measurements made to select the acceleration structure of this
+     * geometry.
+     * 
+     * @return the selection, or <code>null</code> if the acceleration
+     *         structure was not selected by measurement
+     */
+    MeasuredAccelerationSelector getAccelSelection() {
+        return selection;
+    }
+
     PrimitiveList getPrimitiveList() {
+        if (reloadable)
+            return getResidentPrimitives();
         return primitives;
     }
 }
\ No newline at end of file
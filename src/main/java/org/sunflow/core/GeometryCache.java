@@ -0,0 +1,112 @@
+package org.sunflow.core;
+
+import java.util.ArrayList;
+
+import org.sunflow.system.Memory;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Keeps track of the memory used by the geometry of
+ * {@link ReloadableTesselatable} objects. When the total goes over the
+ * configured budget, the least recently used geometry is discarded and will
+ * be reloaded if a ray needs it again. Recency is only measured roughly, in
+ * epochs which advance each time geometry is loaded: a ray visiting geometry
+ * writes the current epoch into it only if it changed, so that render threads
+ * don't all keep writing to the same memory. Each scene has its own cache,
+ * whose budget is set from the <code>geometry.cache.size</code> option
+ * of the scene, in megabytes. A budget of 0 keeps all geometry in memory.
+ */
+final class GeometryCache {
+    private long maxBytes = 0;
+    private long usedBytes = 0;
+    private volatile long epoch = 0;
+    private final ArrayList<Geometry> resident = new ArrayList<Geometry>();
+    private final ArrayList<Long> residentBytes = new ArrayList<Long>();
+
+    /**
+     * Sets the amount of memory reloadable geometry may use. Geometry over
+     * the budget is discarded right away.
+     *
+     * @param bytes memory budget in bytes, or 0 for no limit
+     */
+    void setMaxSize(long bytes) {
+        synchronized (this) {
+            if (bytes == maxBytes)
+                return;
+            maxBytes = Math.max(bytes, 0);
+            if (maxBytes > 0)
+                UI.printInfo(Module.GEOM, "Geometry cache size: %s", Memory.bytesToString(maxBytes));
+        }
+        evict(null);
+    }
+
+    /**
+     * Gets the current epoch, used to find the least recently used geometry.
+     *
+     * @return epoch value
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Record newly loaded geometry, discarding older geometry if needed to
+     * stay within the memory budget. This must not be called while holding
+     * the lock of a geometry.
+     *
+     * @param g geometry which was just loaded
+     * @param bytes memory used by the geometry
+     */
+    void add(Geometry g, long bytes) {
+        synchronized (this) {
+            epoch++;
+            resident.add(g);
+            residentBytes.add(bytes);
+            usedBytes += bytes;
+        }
+        evict(g);
+    }
+
+    /**
+     * Forget about the specified geometry, because it was discarded or
+     * updated.
+     *
+     * @param g geometry to remove
+     */
+    synchronized void remove(Geometry g) {
+        int i = resident.indexOf(g);
+        if (i >= 0) {
+            usedBytes -= residentBytes.get(i);
+            resident.remove(i);
+            residentBytes.remove(i);
+        }
+    }
+
+    private void evict(Geometry keep) {
+        ArrayList<Geometry> victims = new ArrayList<Geometry>();
+        synchronized (this) {
+            while (maxBytes > 0 && usedBytes > maxBytes) {
+                // find least recently used geometry
+                int lru = -1;
+                for (int i = 0; i < resident.size(); i++) {
+                    Geometry g = resident.get(i);
+                    if (g != keep && (lru == -1 || g.getLastUse() < resident.get(lru).getLastUse()))
+                        lru = i;
+                }
+                if (lru == -1)
+                    break;
+                victims.add(resident.get(lru));
+                usedBytes -= residentBytes.get(lru);
+                resident.remove(lru);
+                residentBytes.remove(lru);
+            }
+            if (!victims.isEmpty())
+                UI.printDetailed(Module.GEOM, "Geometry cache: discarding %d objects - %s in use", victims.size(), Memory.bytesToString(usedBytes));
+        }
+        // discard outside of the cache lock, geometry locks are always taken
+        // first
+        for (Geometry g : victims)
+            g.discard();
+    }
+}
@@ -96,6 +96,44 @@ public class Instance implements RenderObject {
             bounds.include(geometry.getWorldBounds(o2w.getData(i)));
     }
 
+    /**
+     * Compute a world space bounding box of this instance which only covers
+     * its motion over the specified time interval. Because the transform is
+     * linearly interpolated between steps, the union of the bounds at both
+     * ends of the interval and at each step within it encloses every position
+     * in between.
+     * 
+     * @param time0 start of the time interval
+     * @param time1 end of the time interval
+     * @return bounding box in world space
+     */
+    BoundingBox getBounds(float time0, float time1) {
+        if (!o2w.isMoving())
+            return bounds;
+        BoundingBox b = geometry.getWorldBounds(o2w.sample(time0));
+        if (b == null)
+            return bounds;
+        b.include(geometry.getWorldBounds(o2w.sample(time1)));
+        float t0 = o2w.getStartTime();
+        float t1 = o2w.getEndTime();
+        int n = o2w.numSegments();
+        for (int i = 1; i < n - 1; i++) {
+            float t = t0 + (t1 - t0) * i / (n - 1);
+            if (t > time0 && t < time1)
+                b.include(geometry.getWorldBounds(o2w.getData(i)));
+        }
+        return b;
+    }
+
+    /**
+     * Get the transformation of this instance, which may change over time.
+     * 
+     * @return object to world transformation
+     */
+    MovingMatrix4 getMovingObjectToWorld() {
+        return o2w;
+    }
+
     /**
      * Checks to see if this instance is relative to the specified geometry.
      * 
@@ -155,6 +193,28 @@ public class Instance implements RenderObject {
         r.setMax(localRay.getMax());
     }
 
+    /**
+     * Intersect some of the rays of a packet with this instance. The rays are
+     * transformed into object space and traced as a new packet through the
+     * geometry.
+     * 
+     * @param packet packet of rays in world space
+     * @param rays indices of the rays to intersect
+     * @param n number of rays to intersect
+     */
+    void intersect(RayPacket packet, int[] rays, int n) {
+        RayPacket local = packet.getChild();
+        local.clear();
+        for (int j = 0; j < n; j++) {
+            IntersectionState state = packet.getState(rays[j]);
+            state.current = this;
+            local.add(packet.getRay(rays[j]).transform(w2o.sample(state.time)), state);
+        }
+        geometry.intersect(local);
+        for (int j = 0; j < n; j++)
+            packet.getRay(rays[j]).setMax(local.getRay(j).getMax());
+    }
+
     /**
      * Prepare the shading state for shader invocation. This also runs the
      * currently attached surface modifier.
@@ -182,6 +242,17 @@ public class Instance implements RenderObject {
         return shaders[i];
     }
 
+    /**
+     * Checks if this instance fully blocks shadow rays. This matches the test
+     * made by the {@link LightServer} before handling transparent shadows.
+     * 
+     * @return <code>true</code> if the instance is opaque
+     */
+    boolean isOpaque() {
+        Shader shader = getShader(0);
+        return shader == null || shader.isOpaque();
+    }
+
     /**
      * Get a modifier for the instance's list.
      * 
@@ -26,6 +26,10 @@ final class InstanceList implements PrimitiveList {
         lights = new Instance[0];
     }
 
+    final Instance getInstance(int primID) {
+        return primID < instances.length ? instances[primID] : lights[primID - instances.length];
+    }
+
     public final float getPrimitiveBound(int primID, int i) {
         if (primID < instances.length)
             return instances[primID].getBounds().getBound(i);
@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import java.util.Arrays;
+
 /**
  * This class is used to store ray/object intersections. It also provides
  * additional data to assist {@link AccelerationStructure} objects with
@@ -13,6 +15,10 @@ public final class IntersectionState {
     int id;
     private final StackNode[][] stacks = new StackNode[2][MAX_STACK_SIZE];
     Instance current;
+    boolean occlusionQuery;
+    private RayPacket shadowPacket;
+    private LightSample[] shadowSamples;
+    private float[] shadowDistances;
     long numEyeRays;
     long numShadowRays;
     long numReflectionRays;
@@ -28,6 +34,11 @@ public final class IntersectionState {
         public int node;
         public float near;
         public float far;
+        /**
+         * Bounds of the node, for structures which encode their nodes
+         * relative to the bounds of their parent.
+         */
+        public final float[] bounds = new float[6];
     }
 
     /**
@@ -39,6 +50,42 @@ public final class IntersectionState {
                 stacks[i][j] = new StackNode();
     }
 
+    /**
+     * Get the packet used to trace the shadow rays of a light sample set.
+     * This is created the first time it is needed.
+     * 
+     * @return packet of rays
+     */
+    final RayPacket getShadowPacket() {
+        if (shadowPacket == null)
+            shadowPacket = new RayPacket();
+        return shadowPacket;
+    }
+
+    /**
+     * Get the array which holds the light samples matching the rays of the
+     * shadow packet. This is created the first time it is needed.
+     * 
+     * @return array of {@link RayPacket#MAX_SIZE} samples
+     */
+    final LightSample[] getShadowSamples() {
+        if (shadowSamples == null)
+            shadowSamples = new LightSample[RayPacket.MAX_SIZE];
+        return shadowSamples;
+    }
+
+    /**
+     * Get the array which holds the original length of the rays of the shadow
+     * packet. This is created the first time it is needed.
+     * 
+     * @return array of {@link RayPacket#MAX_SIZE} distances
+     */
+    final float[] getShadowDistances() {
+        if (shadowDistances == null)
+            shadowDistances = new float[RayPacket.MAX_SIZE];
+        return shadowDistances;
+    }
+
     /**
      * Returns the time at which the intersection should be calculated. This
      * will be constant for a given ray-tree. This value is guarenteed to be
@@ -59,6 +106,25 @@ public final class IntersectionState {
         return current == null ? stacks[0] : stacks[1];
     }
 
+    /**
+     * Get stack object for tree based {@link AccelerationStructure}s which
+     * may need more than the default number of stack nodes. The stack grows
+     * as needed and keeps its size for later calls.
+     * 
+     * @param size minimum number of stack nodes
+     * @return array of at least <code>size</code> stack nodes
+     */
+    public final StackNode[] getStack(int size) {
+        int i = current == null ? 0 : 1;
+        if (stacks[i].length < size) {
+            StackNode[] stack = Arrays.copyOf(stacks[i], size);
+            for (int j = stacks[i].length; j < size; j++)
+                stack[j] = new StackNode();
+            stacks[i] = stack;
+        }
+        return stacks[i];
+    }
+
     /**
      * Checks to see if a hit has been recorded.
      * 
@@ -69,6 +135,20 @@ public final class IntersectionState {
         return instance != null;
     }
 
+    /**
+     * Checks to see if traversal can be stopped early. This happens during
+     * occlusion queries (shadow rays) as soon as an opaque surface has been
+     * hit, since finding the closest intersection is not required.
+     * {@link AccelerationStructure} objects should test this after each call
+     * to {@link PrimitiveList#intersectPrimitive(Ray, int, IntersectionState)}.
+     * 
+     * @return <code>true</code> if the ray is known to be blocked,
+     *         <code>false</code> otherwise
+     */
+    public final boolean isOccluded() {
+        return occlusionQuery && instance != null && instance.isOpaque();
+    }
+
     /**
      * Record an intersection with the specified primitive id. The parent object
      * is assumed to be the current instance. The u and v parameters are used to
@@ -13,6 +13,7 @@ public class LightSample {
     private Color ldiff;
     private Color lspec;
     LightSample next; // pointer to next item in a linked list of samples
+    private boolean shadowDeferred; // shadow ray will be traced in a packet
 
     /**
      * Creates a new light sample object (invalid by default).
@@ -44,7 +45,20 @@ public class LightSample {
      * @param state shading state representing the point to be shaded
      */
     public final void traceShadow(ShadingState state) {
-        Color opacity = state.traceShadow(shadowRay);
+        shadowDeferred = state.deferShadow();
+        if (!shadowDeferred)
+            setShadow(state.traceShadow(shadowRay));
+    }
+
+    boolean isShadowDeferred() {
+        return shadowDeferred;
+    }
+
+    /**
+     * Attenuate the sample's color by the opacity found along its shadow ray.
+     */
+    final void setShadow(Color opacity) {
+        shadowDeferred = false;
         Color.blend(ldiff, Color.BLACK, opacity, ldiff);
         Color.blend(lspec, Color.BLACK, opacity, lspec);
     }
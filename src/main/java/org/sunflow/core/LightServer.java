@@ -10,6 +10,9 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 class LightServer {
+    // fewer shadow rays from a light are traced one at a time
+    private static final int MIN_SHADOW_PACKET_SIZE = 4;
+
     // parent
     private Scene scene;
 
@@ -26,6 +29,8 @@ class LightServer {
     private int maxRefractionDepth;
     // EP : Added transparency management  
     private int maxTransparencyDepth;
+    // trace the shadow rays of each light as packets
+    private boolean shadowPackets;
 
     // indirect illumination
     private CausticPhotonMapInterface causticPhotonMap;
@@ -46,6 +51,7 @@ class LightServer {
         maxRefractionDepth = 4;
         // EP : Added transparency management
         maxTransparencyDepth = 4;
+        shadowPackets = false;
 
         causticPhotonMap = null;
         giEngine = null;
@@ -71,6 +77,7 @@ class LightServer {
         maxRefractionDepth = options.getInt("depths.refraction", maxRefractionDepth);
         // EP : Added transparency management
         maxTransparencyDepth = options.getInt("depths.transparency", maxTransparencyDepth);
+        shadowPackets = options.getBoolean("shadow.packets", shadowPackets);
         String giEngineType = options.getString("gi.engine", null);
         giEngine = PluginRegistry.giEnginePlugins.createObject(giEngineType);
         String caustics = options.getString("caustics", null);
@@ -105,6 +112,7 @@ class LightServer {
         UI.printInfo(Module.LIGHT, "      - Refraction       %d", maxRefractionDepth);
         UI.printInfo(Module.LIGHT, "  * GI engine            %s", giEngineType == null ? "none" : giEngineType);
         UI.printInfo(Module.LIGHT, "  * Caustics:            %s", caustics == null ? "none" : caustics);
+        UI.printInfo(Module.LIGHT, "  * Shadow packets:      %s", shadowPackets ? "on" : "off");
         UI.printInfo(Module.LIGHT, "  * Shader override:     %b", shaderOverride);
         UI.printInfo(Module.LIGHT, "  * Photon override:     %b", shaderOverridePhotons);
         UI.printInfo(Module.LIGHT, "  * Build time:          %s", t.toString());
@@ -261,6 +269,13 @@ class LightServer {
         // set this value once - will stay constant for the entire ray-tree
         istate.time = time;
         scene.trace(r, istate);
+        return shadeHit(rx, ry, time, i, d, r, istate, cache);
+    }
+
+    /**
+     * Shade the intersection recorded in the specified state, if any.
+     */
+    ShadingState shadeHit(float rx, float ry, float time, int i, int d, Ray r, IntersectionState istate, ShadingCache cache) {
         if (istate.hit()) {
             ShadingState state = ShadingState.createState(istate, rx, ry, time, r, i, d, this);
             state.getInstance().prepareShadingState(state);
@@ -285,6 +300,23 @@ class LightServer {
             return null;
     }
 
+    /**
+     * Shade a state created for the hit of a ray traced in a batch. Eye rays
+     * are shaded like {@link #shadeHit(float, float, float, int, int, Ray, IntersectionState, ShadingCache)},
+     * final gather rays like the path tracing {@link GIEngine}, without the
+     * shader override. The result is stored into the state.
+     */
+    void shadeQueued(ShadingState state, FinalGatherQueue queue) {
+        boolean eye = state.getDiffuseDepth() == 0;
+        Shader shader = eye ? getShader(state) : state.getShader();
+        state.setFinalGatherQueue(queue);
+        state.setResult(shader != null ? shader.getRadiance(state) : Color.BLACK);
+        state.setFinalGatherQueue(null);
+        state.clearLightSamples();
+        if (eye)
+            checkNanInf(state.getResult());
+    }
+
     private static final void checkNanInf(Color c) {
         if (c.isNan())
             UI.printWarning(Module.LIGHT, "NaN shading sample!");
@@ -358,8 +390,75 @@ class LightServer {
     }
 
     void initLightSamples(ShadingState state) {
-        for (LightSource l : lights)
+        if (!shadowPackets) {
+            for (LightSource l : lights)
+                l.getSamples(state);
+            return;
+        }
+        for (LightSource l : lights) {
+            // collect the shadow rays of the light first, they all start from
+            // the same point and are traced together
+            state.setDeferShadows(true);
             l.getSamples(state);
+            state.setDeferShadows(false);
+            traceDeferredShadows(state);
+        }
+    }
+
+    private void traceDeferredShadows(ShadingState state) {
+        int n = state.getNumDeferredShadows();
+        if (n == 0)
+            return;
+        if (n < MIN_SHADOW_PACKET_SIZE) {
+            // not worth a packet
+            for (LightSample sample : state)
+                if (sample.isShadowDeferred())
+                    sample.traceShadow(state);
+            return;
+        }
+        IntersectionState istate = state.getIntersectionState();
+        RayPacket packet = istate.getShadowPacket();
+        LightSample[] samples = istate.getShadowSamples();
+        float[] maxDist = istate.getShadowDistances();
+        int size = 0;
+        for (LightSample sample : state) {
+            if (!sample.isShadowDeferred())
+                continue;
+            samples[size++] = sample;
+            if (size == samples.length) {
+                traceShadowPacket(state, packet, samples, maxDist, size);
+                size = 0;
+            }
+        }
+        if (size > 0)
+            traceShadowPacket(state, packet, samples, maxDist, size);
+    }
+
+    private void traceShadowPacket(ShadingState state, RayPacket packet, LightSample[] samples, float[] maxDist, int n) {
+        IntersectionState istate = state.getIntersectionState();
+        packet.clear();
+        for (int i = 0; i < n; i++) {
+            Ray r = samples[i].getShadowRay();
+            maxDist[i] = r.getMax();
+            packet.add(r, istate.time);
+        }
+        scene.traceShadow(istate, packet);
+        for (int i = 0; i < n; i++) {
+            IntersectionState hit = packet.getState(i);
+            Color opacity = Color.BLACK;
+            if (hit.hit()) {
+                Shader shader = hit.instance.getShader(0);
+                if (shader == null || shader.isOpaque() || state.getShadowDepth() >= maxTransparencyDepth)
+                    opacity = Color.WHITE; // fully opaque hit
+                else {
+                    // see through the hit on its own
+                    Ray r = samples[i].getShadowRay();
+                    r.setMax(maxDist[i]);
+                    opacity = traceShadow(r, state);
+                }
+            }
+            samples[i].setShadow(opacity);
+        }
     }
 
     void initCausticSamples(ShadingState state) {
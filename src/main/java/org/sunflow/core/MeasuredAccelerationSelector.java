@@ -0,0 +1,245 @@
+package org.sunflow.core;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Picks the acceleration structure of a geometry by measuring the candidates
+ * rather than from the number of primitives alone. Each candidate is built
+ * over a regular sample of the primitives and traced against with a fixed set
+ * of probe rays. The sample timings are extrapolated to the full primitive
+ * count and the candidate with the lowest expected build time plus tracing
+ * time for the frame's ray budget wins. The measurements and the actual costs
+ * of the chosen structure are kept so they can be reported with the scene
+ * statistics.
+ */
+final class MeasuredAccelerationSelector {
+    static final String NAME = "auto-measured";
+    private static final String[] CANDIDATES = { "kdtree", "bih", "bvh" };
+    // geometries smaller than this are left to the regular auto mode
+    private static final int MIN_PRIMITIVES = 1000;
+    private static final int SAMPLE_SIZE = 16384;
+    private static final int NUM_PROBE_RAYS = 4096;
+
+    // used when no budget was set for a geometry
+    static final long DEFAULT_RAY_BUDGET = 640 * 480 * 16;
+
+    private final int numPrimitives;
+    private final long budget;
+    private String name;
+    private double predictedBuild; // seconds
+    private double predictedTrace; // seconds per ray
+    private double actualBuild;
+    private double actualTrace;
+
+    private MeasuredAccelerationSelector(int numPrimitives, long budget) {
+        this.numPrimitives = numPrimitives;
+        this.budget = budget;
+        name = null;
+        actualBuild = actualTrace = -1;
+    }
+
+    /**
+     * Checks if the decision made for a geometry can be reused for the
+     * specified primitives and ray budget.
+     *
+     * @param primitives primitives about to be built
+     * @param rayBudget number of rays the geometry is expected to be
+     *            intersected with over a frame
+     * @return <code>true</code> if no new measurements are needed
+     */
+    boolean isValidFor(PrimitiveList primitives, long rayBudget) {
+        return primitives.getNumPrimitives() == numPrimitives && Math.max(1, rayBudget) == budget;
+    }
+
+    /**
+     * Measure all candidate acceleration structures on a sample of the
+     * specified primitives.
+     *
+     * @param primitives primitives to select an acceleration structure for
+     * @param rayBudget number of rays the geometry is expected to be
+     *            intersected with over a frame
+     * @return the selection
+     */
+    static MeasuredAccelerationSelector select(PrimitiveList primitives, long rayBudget) {
+        int n = primitives.getNumPrimitives();
+        MeasuredAccelerationSelector sel = new MeasuredAccelerationSelector(n, Math.max(1, rayBudget));
+        if (n < MIN_PRIMITIVES) {
+            sel.name = "auto";
+            return sel;
+        }
+        UI.printInfo(Module.ACCEL, "Measuring acceleration structures for %d primitives ...", n);
+        SampleList sample = new SampleList(primitives, Math.min(n, SAMPLE_SIZE));
+        int m = sample.getNumPrimitives();
+        // scale factors from the sample to the full list
+        double buildScale = (n * log2(n)) / (m * log2(m));
+        double traceScale = log2(n) / log2(m);
+        Ray[] rays = createProbeRays(primitives.getWorldBounds(null));
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (String candidate : CANDIDATES) {
+            // keep the fastest of two runs, the first one is mostly spent
+            // warming up the code
+            double build = Double.POSITIVE_INFINITY;
+            double trace = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < 2; i++) {
+                AccelerationStructure accel = AccelerationStructureFactory.create(candidate, m, true);
+                Timer t = new Timer();
+                t.start();
+                accel.build(sample);
+                t.end();
+                build = Math.min(build, t.seconds() * buildScale);
+                trace = Math.min(trace, trace(accel, rays) * traceScale);
+            }
+            double cost = build + sel.budget * trace;
+            UI.printDetailed(Module.ACCEL, "  * %-8s build %s, trace %.0fns/ray, total %s", candidate, Timer.toString(build), trace * 1e9, Timer.toString(cost));
+            if (cost < bestCost) {
+                bestCost = cost;
+                sel.name = candidate;
+                sel.predictedBuild = build;
+                sel.predictedTrace = trace;
+            }
+        }
+        UI.printInfo(Module.ACCEL, "Selected \"%s\" for %d primitives and %d rays", sel.name, n, sel.budget);
+        return sel;
+    }
+
+    /**
+     * Create and build the selected acceleration structure, measuring its
+     * actual costs.
+     *
+     * @param primitives primitives to build the structure for
+     * @param offHeap store the structure off-heap if possible
+     * @return the acceleration structure
+     */
+    AccelerationStructure build(PrimitiveList primitives, boolean offHeap) {
+        AccelerationStructure accel = AccelerationStructureFactory.create(name, numPrimitives, true);
+        Geometry.setOffHeap(accel, offHeap);
+        Timer t = new Timer();
+        t.start();
+        AccelerationCache.build(accel, primitives);
+        t.end();
+        if (name.equals("auto"))
+            return accel;
+        actualBuild = t.seconds();
+        actualTrace = trace(accel, createProbeRays(primitives.getWorldBounds(null)));
+        return accel;
+    }
+
+    /**
+     * Checks if the selected acceleration structure was built and measured.
+     *
+     * @return <code>false</code> if the geometry was too small to be measured
+     */
+    boolean isMeasured() {
+        return actualBuild >= 0;
+    }
+
+    /**
+     * Print the selection along with its predicted and actual costs.
+     */
+    void printStats() {
+        UI.printInfo(Module.SCENE, "      %-8s  %9d  %9s / %-9s  %7.0fns / %7.0fns  %9s / %s", name, numPrimitives, Timer.toString(predictedBuild), Timer.toString(actualBuild), predictedTrace * 1e9, actualTrace * 1e9, Timer.toString(predictedBuild + budget * predictedTrace), Timer.toString(actualBuild + budget * actualTrace));
+    }
+
+    static void printStatsHeader() {
+        UI.printInfo(Module.SCENE, "Measured acceleration structures:");
+        UI.printInfo(Module.SCENE, "      accel     primitives  build (predicted / actual)  trace (predicted / actual)  total (predicted / actual)");
+    }
+
+    private static double log2(double x) {
+        return Math.log(Math.max(x, 2)) / Math.log(2);
+    }
+
+    /**
+     * Create a reproducible set of rays crossing the specified box.
+     */
+    private static Ray[] createProbeRays(BoundingBox bounds) {
+        Ray[] rays = new Ray[NUM_PROBE_RAYS];
+        Point3 min = bounds.getMinimum();
+        Point3 max = bounds.getMaximum();
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < rays.length; i++) {
+            float[] p = new float[6];
+            for (int j = 0; j < 6; j++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                p[j] = (seed >>> 40) / (float) (1 << 24);
+            }
+            Point3 a = new Point3(min.x + p[0] * (max.x - min.x), min.y + p[1] * (max.y - min.y), min.z + p[2] * (max.z - min.z));
+            Point3 b = new Point3(min.x + p[3] * (max.x - min.x), min.y + p[4] * (max.y - min.y), min.z + p[5] * (max.z - min.z));
+            rays[i] = new Ray(a, b);
+        }
+        return rays;
+    }
+
+    /**
+     * Trace copies of the probe rays against the specified structure.
+     *
+     * @return average time per ray in seconds
+     */
+    private static double trace(AccelerationStructure accel, Ray[] rays) {
+        IntersectionState state = new IntersectionState();
+        Timer t = new Timer();
+        t.start();
+        for (Ray r : rays) {
+            Ray ray = new Ray(r.ox, r.oy, r.oz, r.dx, r.dy, r.dz);
+            ray.setMax(r.getMax());
+            state.instance = null;
+            accel.intersect(ray, state);
+        }
+        t.end();
+        return t.seconds() / rays.length;
+    }
+
+    /**
+     * Regular sample of the primitives of a list.
+     */
+    private static final class SampleList implements PrimitiveList {
+        private final PrimitiveList primitives;
+        private final int[] ids;
+
+        SampleList(PrimitiveList primitives, int size) {
+            this.primitives = primitives;
+            int n = primitives.getNumPrimitives();
+            ids = new int[size];
+            for (int i = 0; i < size; i++)
+                ids[i] = (int) ((long) i * n / size);
+        }
+
+        public BoundingBox getWorldBounds(Matrix4 o2w) {
+            BoundingBox bounds = new BoundingBox();
+            for (int id : ids) {
+                bounds.include(primitives.getPrimitiveBound(id, 0), primitives.getPrimitiveBound(id, 2), primitives.getPrimitiveBound(id, 4));
+                bounds.include(primitives.getPrimitiveBound(id, 1), primitives.getPrimitiveBound(id, 3), primitives.getPrimitiveBound(id, 5));
+            }
+            return bounds;
+        }
+
+        public int getNumPrimitives() {
+            return ids.length;
+        }
+
+        public float getPrimitiveBound(int primID, int i) {
+            return primitives.getPrimitiveBound(ids[primID], i);
+        }
+
+        public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+            primitives.intersectPrimitive(r, ids[primID], state);
+        }
+
+        public void prepareShadingState(ShadingState state) {
+        }
+
+        public PrimitiveList getBakingPrimitives() {
+            return null;
+        }
+
+        public boolean update(ParameterList pl, SunflowAPI api) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.sunflow.core;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.MovingMatrix4;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Top level acceleration structure for scenes containing moving instances.
+ * The time interval over which instances move is cut into equal segments and
+ * a separate acceleration structure is built for each segment, using the
+ * bounds of each instance over that segment only. A ray is then only tested
+ * against the structure of the segment its time falls in, rather than against
+ * bounds covering the motion of each instance over the whole shutter
+ * interval.
+ */
+final class MotionSegmentAccelerator implements AccelerationStructure {
+    // default number of segments per transformation step
+    private static final int SEGMENTS_PER_STEP = 4;
+    private static final int MAX_SEGMENTS = 64;
+
+    private final String acceltype;
+    private int numSegments;
+    private float t0, t1, inv;
+    private AccelerationStructure[] accels;
+
+    /**
+     * Creates a motion aware acceleration structure.
+     *
+     * @param acceltype type of acceleration structure to build for each
+     *            segment
+     * @param numSegments number of segments to cut time into, or 0 to pick a
+     *            number from the transformation steps of the instances
+     */
+    MotionSegmentAccelerator(String acceltype, int numSegments) {
+        this.acceltype = acceltype;
+        this.numSegments = numSegments;
+    }
+
+    /**
+     * Checks if any instance of the list moves over time.
+     *
+     * @param list list of instances
+     * @return <code>true</code> if at least one instance is moving
+     */
+    static boolean hasMotion(InstanceList list) {
+        for (int i = 0; i < list.getNumPrimitives(); i++)
+            if (list.getInstance(i).getMovingObjectToWorld().isMoving())
+                return true;
+        return false;
+    }
+
+    public void build(PrimitiveList primitives) {
+        InstanceList list = (InstanceList) primitives;
+        int n = list.getNumPrimitives();
+        // find the time interval covered by all moving instances
+        t0 = Float.POSITIVE_INFINITY;
+        t1 = Float.NEGATIVE_INFINITY;
+        int steps = 0;
+        for (int i = 0; i < n; i++) {
+            MovingMatrix4 m = list.getInstance(i).getMovingObjectToWorld();
+            if (m.isMoving()) {
+                t0 = Math.min(t0, m.getStartTime());
+                t1 = Math.max(t1, m.getEndTime());
+                steps = Math.max(steps, m.numSegments() - 1);
+            }
+        }
+        if (steps == 0) {
+            t0 = t1 = 0;
+            numSegments = 1;
+        } else if (numSegments <= 0)
+            numSegments = SEGMENTS_PER_STEP * steps;
+        numSegments = Math.max(1, Math.min(numSegments, MAX_SEGMENTS));
+        inv = t0 < t1 ? numSegments / (t1 - t0) : 0;
+        UI.printDetailed(Module.ACCEL, "Building %d motion segments over [%.3f, %.3f] ...", numSegments, t0, t1);
+        Timer t = new Timer();
+        t.start();
+        double fullArea = 0, segmentArea = 0;
+        for (int i = 0; i < n; i++)
+            fullArea += halfArea(list.getInstance(i).getBounds());
+        accels = new AccelerationStructure[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            SegmentList segment = new SegmentList(list, t0 + (t1 - t0) * s / numSegments, t0 + (t1 - t0) * (s + 1) / numSegments);
+            segmentArea += segment.area;
+            accels[s] = AccelerationStructureFactory.create(acceltype, n, false);
+            accels[s].build(segment);
+        }
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Motion segment stats:");
+        UI.printDetailed(Module.ACCEL, "  * Segments:       %d", numSegments);
+        if (fullArea > 0)
+            UI.printDetailed(Module.ACCEL, "  * Bounds area:    %.2f%% of the whole interval", 100 * segmentArea / (numSegments * fullArea));
+        UI.printDetailed(Module.ACCEL, "  * Build time:     %s", t);
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        int s = (int) ((state.time - t0) * inv);
+        accels[s < 0 ? 0 : (s >= numSegments ? numSegments - 1 : s)].intersect(r, state);
+    }
+
+    private static float halfArea(BoundingBox b) {
+        float dx = b.getMaximum().x - b.getMinimum().x;
+        float dy = b.getMaximum().y - b.getMinimum().y;
+        float dz = b.getMaximum().z - b.getMinimum().z;
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * View of an instance list using the bounds of each instance over a time
+     * segment.
+     */
+    private static final class SegmentList implements PrimitiveList {
+        private final InstanceList list;
+        private final float[] bounds;
+        private final double area;
+
+        SegmentList(InstanceList list, float time0, float time1) {
+            this.list = list;
+            int n = list.getNumPrimitives();
+            bounds = new float[6 * n];
+            double a = 0;
+            for (int i = 0; i < n; i++) {
+                BoundingBox b = list.getInstance(i).getBounds(time0, time1);
+                for (int j = 0; j < 6; j++)
+                    bounds[6 * i + j] = b.getBound(j);
+                a += halfArea(b);
+            }
+            area = a;
+        }
+
+        public BoundingBox getWorldBounds(Matrix4 o2w) {
+            BoundingBox b = new BoundingBox();
+            for (int i = 0; i < bounds.length; i += 6) {
+                b.include(bounds[i + 0], bounds[i + 2], bounds[i + 4]);
+                b.include(bounds[i + 1], bounds[i + 3], bounds[i + 5]);
+            }
+            return b;
+        }
+
+        public int getNumPrimitives() {
+            return bounds.length / 6;
+        }
+
+        public float getPrimitiveBound(int primID, int i) {
+            return bounds[6 * primID + i];
+        }
+
+        public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+            list.intersectPrimitive(r, primID, state);
+        }
+
+        public void prepareShadingState(ShadingState state) {
+            list.prepareShadingState(state);
+        }
+
+        public PrimitiveList getBakingPrimitives() {
+            return null;
+        }
+
+        public boolean update(ParameterList pl, SunflowAPI api) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.sunflow.core;
+
+/**
+ * An acceleration structure which can keep its nodes and primitive indices
+ * outside of the Java heap. Very large scenes can then be rendered without a
+ * giant heap, and without the garbage collector having to scan the structure
+ * on every full collection.
+ */
+public interface OffHeapAccelerationStructure extends AccelerationStructure {
+    /**
+     * Select where the structure should be stored. This takes effect the next
+     * time the structure is built or read from the acceleration cache.
+     *
+     * @param offHeap <code>true</code> to store the structure off-heap,
+     *            <code>false</code> to use regular Java arrays
+     */
+    public void setOffHeap(boolean offHeap);
+}
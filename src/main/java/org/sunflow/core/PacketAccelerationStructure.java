@@ -0,0 +1,20 @@
+package org.sunflow.core;
+
+/**
+ * An acceleration structure which can trace a whole {@link RayPacket} at once.
+ * The rays share a single traversal of the structure: nodes are visited once
+ * for the packet and are skipped without looking at individual rays when the
+ * whole packet is on the same side of their split planes.
+ */
+public interface PacketAccelerationStructure extends AccelerationStructure {
+    /**
+     * Intersect all rays of the specified packet with the geometry in local
+     * space. This is only called for packets whose rays all point in the same
+     * octant (see {@link RayPacket#isCoherent()}), other packets are traced
+     * one ray at a time with {@link #intersect(Ray, IntersectionState)}. The
+     * intersections are stored into the state of each ray.
+     *
+     * @param packet rays in local space
+     */
+    public void intersect(RayPacket packet);
+}
@@ -536,7 +536,7 @@ public class ParameterList {
             this(InterpolationType.NONE, new float[] { f });
         }
 
-        private FloatParameter(InterpolationType interp, float[] data) {
+        public FloatParameter(InterpolationType interp, float[] data) {
             this.interp = interp;
             this.data = data;
         }
@@ -0,0 +1,31 @@
+package org.sunflow.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An acceleration structure which can be stored on disk once built, and
+ * restored later without rebuilding it.
+ *
+ * @see AccelerationCache
+ */
+public interface PersistentAccelerationStructure extends AccelerationStructure {
+    /**
+     * Write the built structure to the specified stream.
+     *
+     * @param out stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(DataOutput out) throws IOException;
+
+    /**
+     * Restore a structure written by {@link #write(DataOutput)}. This replaces
+     * the call to {@link #build(PrimitiveList)}, the primitives are guaranteed
+     * to be the same as the ones the structure was originally built for.
+     *
+     * @param primitives primitive list the structure was built for
+     * @param in buffer positioned at the start of the data
+     */
+    public void read(PrimitiveList primitives, ByteBuffer in);
+}
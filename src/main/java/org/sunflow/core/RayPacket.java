@@ -0,0 +1,427 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+
+/**
+ * A group of rays traced together through the scene, such as the eye rays of
+ * a small block of pixels or the shadow rays from a point towards one light.
+ * Each ray keeps its own {@link IntersectionState} to record its hit. The
+ * packet also stores the origins and inverse directions of its rays as
+ * parallel arrays, along with their bounds, so that
+ * {@link PacketAccelerationStructure}s can check a split plane against all
+ * rays at once before looking at individual rays.
+ */
+public final class RayPacket {
+    /**
+     * Largest number of rays in a packet (8x8 pixels).
+     */
+    public static final int MAX_SIZE = 64;
+    private static final int MAX_STACK_SIZE = 64;
+
+    private final Ray[] rays = new Ray[MAX_SIZE];
+    private final IntersectionState[] states = new IntersectionState[MAX_SIZE];
+    // states owned by this packet, null for packets of transformed rays which
+    // share the states of their parent packet
+    private final IntersectionState[] ownStates;
+    private int size;
+    private final float[][] org = new float[3][MAX_SIZE];
+    private final float[][] invDir = new float[3][MAX_SIZE];
+    private final float[] minOrg = new float[3];
+    private final float[] maxOrg = new float[3];
+    private final float[] minInvDir = new float[3];
+    private final float[] maxInvDir = new float[3];
+    private int signs;
+    private boolean coherent;
+    // traversal helpers
+    private final float[] near = new float[MAX_SIZE];
+    private final float[] far = new float[MAX_SIZE];
+    private float minNear, maxFar;
+    private final StackNode[] stack = new StackNode[MAX_STACK_SIZE];
+    private final int[] activeRays = new int[MAX_SIZE];
+    private final int[] selectedRays = new int[MAX_SIZE];
+    private RayPacket child;
+
+    /**
+     * Traversal stack node, holds the list of rays entering the node and the
+     * interval of each of them, along with their bounds.
+     */
+    public static final class StackNode {
+        public int node;
+        public int count;
+        public float near;
+        public float far;
+        public final int[] rays = new int[MAX_SIZE];
+        public final float[] rayNear = new float[MAX_SIZE];
+        public final float[] rayFar = new float[MAX_SIZE];
+    }
+
+    /**
+     * Creates an empty packet.
+     */
+    public RayPacket() {
+        this(true);
+    }
+
+    private RayPacket(boolean ownsStates) {
+        ownStates = ownsStates ? new IntersectionState[MAX_SIZE] : null;
+        for (int i = 0; i < stack.length; i++)
+            stack[i] = new StackNode();
+        clear();
+    }
+
+    /**
+     * Remove all rays from the packet.
+     */
+    public void clear() {
+        size = 0;
+        coherent = true;
+    }
+
+    /**
+     * Add a new ray to the packet, with a fresh intersection state.
+     *
+     * @param r ray to add
+     * @param time time at which the ray is traced
+     * @return index of the ray in the packet, or -1 if the packet is full
+     */
+    public int add(Ray r, float time) {
+        if (size == MAX_SIZE)
+            return -1;
+        IntersectionState state = ownStates[size];
+        if (state == null)
+            state = ownStates[size] = new IntersectionState();
+        state.time = time;
+        state.instance = null;
+        state.current = null;
+        state.occlusionQuery = false;
+        return add(r, state);
+    }
+
+    /**
+     * Add a ray which records its hit into an existing state, used for rays
+     * transformed into the local space of an instance.
+     */
+    int add(Ray r, IntersectionState state) {
+        int i = size++;
+        rays[i] = r;
+        states[i] = state;
+        org[0][i] = r.ox;
+        org[1][i] = r.oy;
+        org[2][i] = r.oz;
+        invDir[0][i] = 1 / r.dx;
+        invDir[1][i] = 1 / r.dy;
+        invDir[2][i] = 1 / r.dz;
+        int s = (Float.floatToRawIntBits(r.dx) >>> 31) | ((Float.floatToRawIntBits(r.dy) >>> 31) << 1) | ((Float.floatToRawIntBits(r.dz) >>> 31) << 2);
+        if (i == 0)
+            signs = s;
+        else if (s != signs)
+            coherent = false;
+        for (int a = 0; a < 3; a++) {
+            float o = org[a][i];
+            float d = invDir[a][i];
+            // rays parallel to an axis could sit right on a split plane, they
+            // can't be bounded with the others
+            if (!(Math.abs(d) <= Float.MAX_VALUE))
+                coherent = false;
+            if (i == 0 || o < minOrg[a])
+                minOrg[a] = o;
+            if (i == 0 || o > maxOrg[a])
+                maxOrg[a] = o;
+            if (i == 0 || d < minInvDir[a])
+                minInvDir[a] = d;
+            if (i == 0 || d > maxInvDir[a])
+                maxInvDir[a] = d;
+        }
+        return i;
+    }
+
+    /**
+     * Get the packet used to trace the rays of this packet in the local space
+     * of an instance.
+     */
+    RayPacket getChild() {
+        if (child == null)
+            child = new RayPacket(false);
+        return child;
+    }
+
+    /**
+     * Mark all rays as occlusion queries or as regular rays.
+     */
+    void setOcclusionQuery(boolean occlusionQuery) {
+        for (int i = 0; i < size; i++)
+            states[i].occlusionQuery = occlusionQuery;
+    }
+
+    /**
+     * Returns the number of rays in the packet.
+     *
+     * @return number of rays
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get one of the rays of the packet.
+     *
+     * @param i index of the ray
+     * @return ray
+     */
+    public Ray getRay(int i) {
+        return rays[i];
+    }
+
+    /**
+     * Get the intersection state of one of the rays of the packet.
+     *
+     * @param i index of the ray
+     * @return state holding the ray's intersection
+     */
+    public IntersectionState getState(int i) {
+        return states[i];
+    }
+
+    /**
+     * Checks if all the rays point into the same octant, with no direction
+     * component equal to zero. Only such packets can be traced with a shared
+     * traversal, so that the same child is near for all rays at each split.
+     *
+     * @return <code>true</code> if the packet can be traced as a whole
+     */
+    public boolean isCoherent() {
+        return coherent && size > 0;
+    }
+
+    /**
+     * Get the origins of the rays along the specified axis.
+     *
+     * @param axis 0, 1 or 2 for x, y or z
+     * @return array of ray origins
+     */
+    public float[] getOrigins(int axis) {
+        return org[axis];
+    }
+
+    /**
+     * Get the inverse directions of the rays along the specified axis.
+     *
+     * @param axis 0, 1 or 2 for x, y or z
+     * @return array of inverse ray directions
+     */
+    public float[] getInvDirections(int axis) {
+        return invDir[axis];
+    }
+
+    /**
+     * Returns a lower bound of the distances along each ray to the specified
+     * plane. No ray can reach the plane before this distance.
+     *
+     * @param axis axis the plane is perpendicular to
+     * @param plane position of the plane
+     * @return smallest distance to the plane
+     */
+    public float getMinDistance(int axis, float plane) {
+        float c0 = plane - maxOrg[axis];
+        float c1 = plane - minOrg[axis];
+        float i0 = minInvDir[axis];
+        float i1 = maxInvDir[axis];
+        float a = c0 * i0, b = c0 * i1, c = c1 * i0, d = c1 * i1;
+        float min0 = a < b ? a : b;
+        float min1 = c < d ? c : d;
+        return min0 < min1 ? min0 : min1;
+    }
+
+    /**
+     * Returns an upper bound of the distances along each ray to the specified
+     * plane. No ray can reach the plane after this distance.
+     *
+     * @param axis axis the plane is perpendicular to
+     * @param plane position of the plane
+     * @return largest distance to the plane
+     */
+    public float getMaxDistance(int axis, float plane) {
+        float c0 = plane - maxOrg[axis];
+        float c1 = plane - minOrg[axis];
+        float i0 = minInvDir[axis];
+        float i1 = maxInvDir[axis];
+        float a = c0 * i0, b = c0 * i1, c = c1 * i0, d = c1 * i1;
+        float max0 = a > b ? a : b;
+        float max1 = c > d ? c : d;
+        return max0 > max1 ? max0 : max1;
+    }
+
+    /**
+     * Clip the rays of the packet against the specified box. This initializes
+     * the intervals returned by {@link #getNear()} and {@link #getFar()}, and
+     * lists the rays hitting the box in {@link #getActiveRays()}. Rays which
+     * are already known to be blocked are left out.
+     *
+     * @param box bounding box of the structure being traversed
+     * @return number of rays hitting the box
+     */
+    public int clip(BoundingBox box) {
+        Point3 lo = box.getMinimum();
+        Point3 hi = box.getMaximum();
+        float[] orgX = org[0], orgY = org[1], orgZ = org[2];
+        float[] invDirX = invDir[0], invDirY = invDir[1], invDirZ = invDir[2];
+        minNear = Float.POSITIVE_INFINITY;
+        maxFar = Float.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (states[i].isOccluded())
+                continue;
+            float intervalMin = rays[i].getMin();
+            float intervalMax = rays[i].getMax();
+            float t1 = (lo.x - orgX[i]) * invDirX[i];
+            float t2 = (hi.x - orgX[i]) * invDirX[i];
+            if (invDirX[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            t1 = (lo.y - orgY[i]) * invDirY[i];
+            t2 = (hi.y - orgY[i]) * invDirY[i];
+            if (invDirY[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            t1 = (lo.z - orgZ[i]) * invDirZ[i];
+            t2 = (hi.z - orgZ[i]) * invDirZ[i];
+            if (invDirZ[i] > 0) {
+                if (t1 > intervalMin)
+                    intervalMin = t1;
+                if (t2 < intervalMax)
+                    intervalMax = t2;
+            } else {
+                if (t2 > intervalMin)
+                    intervalMin = t2;
+                if (t1 < intervalMax)
+                    intervalMax = t1;
+            }
+            if (intervalMin > intervalMax)
+                continue;
+            near[i] = intervalMin;
+            far[i] = intervalMax;
+            if (intervalMin < minNear)
+                minNear = intervalMin;
+            if (intervalMax > maxFar)
+                maxFar = intervalMax;
+            activeRays[count++] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Get the start of the current traversal interval of each ray.
+     *
+     * @return array of interval starts
+     */
+    public float[] getNear() {
+        return near;
+    }
+
+    /**
+     * Get the end of the current traversal interval of each ray.
+     *
+     * @return array of interval ends
+     */
+    public float[] getFar() {
+        return far;
+    }
+
+    /**
+     * Smallest interval start found by the last call to
+     * {@link #clip(BoundingBox)}.
+     *
+     * @return start of the packet's interval
+     */
+    public float getMinNear() {
+        return minNear;
+    }
+
+    /**
+     * Largest interval end found by the last call to
+     * {@link #clip(BoundingBox)}.
+     *
+     * @return end of the packet's interval
+     */
+    public float getMaxFar() {
+        return maxFar;
+    }
+
+    /**
+     * Get the traversal stack for tree based {@link PacketAccelerationStructure}s.
+     *
+     * @return array of stack nodes
+     */
+    public StackNode[] getStack() {
+        return stack;
+    }
+
+    /**
+     * Get the indices of the rays found by the last call to
+     * {@link #clip(BoundingBox)}. The array is large enough to hold the index
+     * of each ray of the packet, so it can be updated during traversal.
+     *
+     * @return array of ray indices
+     */
+    public int[] getActiveRays() {
+        return activeRays;
+    }
+
+    /**
+     * Checks if a ray still needs to visit a node starting at the specified
+     * distance. This is not the case once the ray has hit something closer,
+     * or has been found to be blocked.
+     *
+     * @param i index of the ray
+     * @param t distance to the node along the ray
+     * @return <code>true</code> if the node must be visited
+     */
+    public boolean isActive(int i, float t) {
+        return !(rays[i].getMax() < t) && !states[i].isOccluded();
+    }
+
+    /**
+     * Intersect some of the rays of the packet with a single primitive. Rays
+     * which are already blocked are skipped. Instances are intersected with
+     * the rays as a packet, other primitives one ray at a time.
+     *
+     * @param primitives list the primitive belongs to
+     * @param primID primitive index
+     * @param active indices of the rays to intersect
+     * @param n number of rays to intersect
+     */
+    public void intersectPrimitive(PrimitiveList primitives, int primID, int[] active, int n) {
+        if (primitives instanceof InstanceList) {
+            int k = 0;
+            for (int j = 0; j < n; j++)
+                if (!states[active[j]].isOccluded())
+                    selectedRays[k++] = active[j];
+            if (k > 0)
+                ((InstanceList) primitives).getInstance(primID).intersect(this, selectedRays, k);
+        } else {
+            for (int j = 0; j < n; j++) {
+                int i = active[j];
+                IntersectionState state = states[i];
+                if (!state.isOccluded())
+                    primitives.intersectPrimitive(rays[i], primID, state);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.sunflow.core;
+
+/**
+ * An acceleration structure which can be updated in place after its
+ * primitives have moved, without rebuilding its hierarchy. This is used to
+ * speed up animation sequences where only vertex positions or instance
+ * transforms change from frame to frame.
+ */
+public interface RefittableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Recompute the bounds stored in the structure for the moved primitives,
+     * keeping the existing hierarchy. The structure may refuse if the
+     * primitives are not compatible with the current hierarchy, or if the
+     * hierarchy would become too inefficient to trace against. In this case
+     * the structure is left in an undefined state and must be rebuilt with
+     * {@link #build(PrimitiveList)}.
+     *
+     * @param primitives the moved primitives, in the same order and number
+     *            as when the structure was built
+     * @return <code>true</code> if the structure was refit,
+     *         <code>false</code> if it needs to be rebuilt
+     */
+    public boolean refit(PrimitiveList primitives);
+}
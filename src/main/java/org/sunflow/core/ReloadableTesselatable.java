@@ -0,0 +1,19 @@
+package org.sunflow.core;
+
+/**
+ * A {@link Tesselatable} which can generate its primitives again at any time,
+ * for instance by reading them back from a file. Tesselations of these objects
+ * are tracked by the {@link GeometryCache} and may be discarded, together with
+ * their acceleration structure, when the cache runs out of memory. They are
+ * generated again the next time a ray reaches their bounding box.
+ */
+public interface ReloadableTesselatable extends Tesselatable {
+    /**
+     * Estimate the amount of memory used by primitives returned by
+     * {@link #tesselate()}, including their acceleration structure.
+     *
+     * @param primitives primitives previously returned by this object
+     * @return memory usage in bytes
+     */
+    public long getMemoryUsage(PrimitiveList primitives);
+}
@@ -1,15 +1,22 @@
 package org.sunflow.core;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
 
 import org.sunflow.core.display.FrameDisplay;
 import org.sunflow.image.Color;
+import org.sunflow.image.TileCache;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
+import org.sunflow.system.WorkerPool;
 
 /**
  * Represents a entire scene, defined as a collection of instances viewed by a
@@ -21,6 +28,8 @@ public class Scene {
     private InstanceList instanceList;
     private InstanceList infiniteInstanceList;
     private Camera camera;
+    private TextureCache textureCache;
+    private GeometryCache geometryCache;
     private AccelerationStructure intAccel;
     private String acceltype;
     private Statistics stats;
@@ -32,10 +41,12 @@ public class Scene {
     private AccelerationStructure bakingAccel;
 
     private boolean rebuildAccel;
+    private int motionSegments;
 
     // image size
     private int imageWidth;
     private int imageHeight;
+    private float pixelSpread;
 
     // global options
     private int threads;
@@ -50,6 +61,7 @@ public class Scene {
         infiniteInstanceList = new InstanceList();
         acceltype = "auto";
         stats = new Statistics();
+        geometryCache = new GeometryCache();
 
         bakingViewDependent = false;
         bakingInstance = null;
@@ -63,6 +75,7 @@ public class Scene {
         lowPriority = true;
 
         rebuildAccel = true;
+        motionSegments = 0;
     }
 
     /**
@@ -92,6 +105,18 @@ public class Scene {
         this.camera = camera;
     }
 
+    /**
+     * Sets the texture cache holding the textures of the scene. Textures
+     * which are not loaded yet are read in the background while the
+     * acceleration structures are built.
+     * 
+     * @param textureCache texture cache, or <code>null</code> to load
+     *            textures on first use only
+     */
+    public void setTextureCache(TextureCache textureCache) {
+        this.textureCache = textureCache;
+    }
+
     Camera getCamera() {
         return camera;
     }
@@ -185,6 +210,200 @@ public class Scene {
         }
     }
 
+    /**
+     * Add the eye ray through a particular pixel to a packet. Samples which
+     * can't be part of a packet, such as samples outside the lens of the
+     * camera or samples for lightmap baking, must be computed with
+     * {@link #getRadiance(IntersectionState, float, float, double, double, double, int, int, ShadingCache)}
+     * instead.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param packet packet to add the ray to
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param lensU DOF sampling variable
+     * @param lensV DOF sampling variable
+     * @param time motion blur sampling variable
+     * @return index of the ray in the packet, or -1 if the sample must be
+     *         computed on its own
+     */
+    public int addEyeRay(IntersectionState istate, RayPacket packet, float rx, float ry, double lensU, double lensV, double time) {
+        if (bakingPrimitives != null)
+            return -1;
+        float sceneTime = camera.getTime((float) time);
+        Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, sceneTime);
+        if (r == null)
+            return -1;
+        int i = packet.add(r, sceneTime);
+        if (i >= 0)
+            istate.numEyeRays++;
+        return i;
+    }
+
+    /**
+     * Find the closest intersection of each ray of a packet of eye rays.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param packet packet of eye rays
+     */
+    public void tracePacket(IntersectionState istate, RayPacket packet) {
+        istate.numRays += packet.getSize();
+        trace(packet);
+    }
+
+    /**
+     * Get the radiance seen along one of the rays of a packet traced with
+     * {@link #tracePacket(IntersectionState, RayPacket)}.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param packet packet of eye rays
+     * @param i index of the ray in the packet
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param instance QMC instance seed
+     * @return a shading state for the intersected primitive, or
+     *         <code>null</code> if nothing is seen along the ray
+     */
+    public ShadingState getRadiance(IntersectionState istate, RayPacket packet, int i, float rx, float ry, int instance, int dim, ShadingCache cache) {
+        IntersectionState hit = packet.getState(i);
+        istate.time = hit.time;
+        istate.instance = hit.instance;
+        istate.id = hit.id;
+        istate.u = hit.u;
+        istate.v = hit.v;
+        istate.w = hit.w;
+        return lightServer.shadeHit(rx, ry, hit.time, instance, dim, packet.getRay(i), istate, cache);
+    }
+
+    /**
+     * Convert a time sample into a scene time, according to the shutter of
+     * the camera.
+     * 
+     * @param time motion blur sampling variable
+     * @return time within the shutter interval
+     */
+    public float getCameraTime(double time) {
+        return camera.getTime((float) time);
+    }
+
+    /**
+     * Get the angle between the eye rays of two neighbouring pixels at the
+     * center of the image. This is used as the initial spread of the ray
+     * cones which drive texture filtering.
+     * 
+     * @return angle between neighbouring eye rays in radians, or 0 if it is
+     *         unknown
+     */
+    float getPixelSpread() {
+        return pixelSpread;
+    }
+
+    private float computePixelSpread() {
+        if (bakingPrimitives != null)
+            return 0;
+        float x = 0.5f * imageWidth, y = 0.5f * imageHeight;
+        Ray r0 = camera.getRay(x, y, imageWidth, imageHeight, 0.5, 0.5, 0);
+        Ray r1 = camera.getRay(x + 1, y, imageWidth, imageHeight, 0.5, 0.5, 0);
+        if (r0 == null || r1 == null)
+            return 0;
+        float cos = r0.dx * r1.dx + r0.dy * r1.dy + r0.dz * r1.dz;
+        return (float) Math.acos(MathUtils.clamp(cos, -1, 1));
+    }
+
+    /**
+     * Get the eye ray through a particular pixel, to be traced later in a
+     * packet. Samples which don't have an eye ray, such as samples outside the
+     * lens of the camera or samples for lightmap baking, must be computed with
+     * {@link #getRadiance(IntersectionState, float, float, double, double, double, int, int, ShadingCache)}
+     * instead.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param lensU DOF sampling variable
+     * @param lensV DOF sampling variable
+     * @param time scene time, see {@link #getCameraTime(double)}
+     * @return the eye ray, or <code>null</code> if the sample must be
+     *         computed on its own
+     */
+    public Ray getEyeRay(IntersectionState istate, float rx, float ry, double lensU, double lensV, float time) {
+        if (bakingPrimitives != null)
+            return null;
+        Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, time);
+        if (r != null)
+            istate.numEyeRays++;
+        return r;
+    }
+
+    /**
+     * Create the shading state for the hit of one of the eye rays of a packet
+     * traced with {@link #tracePacket(IntersectionState, RayPacket)}, without
+     * shading it yet.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param packet packet of eye rays
+     * @param i index of the ray in the packet
+     * @param rx pixel x coordinate
+     * @param ry pixel y coordinate
+     * @param instance QMC instance seed
+     * @return a shading state ready for {@link #shade(ShadingState, FinalGatherQueue)},
+     *         or <code>null</code> if nothing is seen along the ray
+     */
+    public ShadingState getShadingState(IntersectionState istate, RayPacket packet, int i, float rx, float ry, int instance, int dim) {
+        if (!copyHit(istate, packet.getState(i)))
+            return null;
+        ShadingState state = ShadingState.createState(istate, rx, ry, istate.time, packet.getRay(i), instance, dim, lightServer);
+        state.getInstance().prepareShadingState(state);
+        return state;
+    }
+
+    /**
+     * Create the shading state for the hit of a final gather ray queued by
+     * the specified state and traced in a packet, without shading it yet.
+     * 
+     * @param istate intersection state for ray tracing
+     * @param packet packet of final gather rays
+     * @param i index of the ray in the packet
+     * @param previous state which queued the ray
+     * @param sample instance of the ray
+     * @return a shading state ready for {@link #shade(ShadingState, FinalGatherQueue)},
+     *         or <code>null</code> if the ray didn't hit anything
+     */
+    public ShadingState getFinalGatherState(IntersectionState istate, RayPacket packet, int i, ShadingState previous, int sample) {
+        if (!copyHit(istate, packet.getState(i)))
+            return null;
+        ShadingState state = ShadingState.createFinalGatherState(previous, packet.getRay(i), sample);
+        state.getInstance().prepareShadingState(state);
+        return state;
+    }
+
+    private static boolean copyHit(IntersectionState istate, IntersectionState hit) {
+        if (!hit.hit())
+            return false;
+        istate.time = hit.time;
+        istate.instance = hit.instance;
+        istate.id = hit.id;
+        istate.u = hit.u;
+        istate.v = hit.v;
+        istate.w = hit.w;
+        return true;
+    }
+
+    /**
+     * Run the shader of a state created by
+     * {@link #getShadingState(IntersectionState, RayPacket, int, float, float, int, int)}
+     * or {@link #getFinalGatherState(IntersectionState, RayPacket, int, ShadingState, int)}.
+     * The final gather rays of the state are added to the specified queue
+     * rather than traced, the result of the state only holds the other
+     * contributions to its radiance.
+     * 
+     * @param state state to shade
+     * @param queue queue for the final gather rays of the state
+     */
+    public void shade(ShadingState state, FinalGatherQueue queue) {
+        lightServer.shadeQueued(state, queue);
+    }
+
     /**
      * Get scene world space bounding box.
      * 
@@ -208,19 +427,62 @@ public class Scene {
         // reset object
         state.instance = null;
         state.current = null;
-        for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++)
+        for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++) {
             infiniteInstanceList.intersectPrimitive(r, i, state);
+            if (state.isOccluded())
+                return;
+        }
         // reset for next accel structure
         state.current = null;
         intAccel.intersect(r, state);
     }
 
+    void trace(RayPacket packet) {
+        int n = packet.getSize();
+        for (int i = 0; i < n; i++) {
+            Ray r = packet.getRay(i);
+            IntersectionState state = packet.getState(i);
+            // reset object
+            state.instance = null;
+            state.current = null;
+            for (int j = 0; j < infiniteInstanceList.getNumPrimitives(); j++) {
+                infiniteInstanceList.intersectPrimitive(r, j, state);
+                if (state.isOccluded())
+                    break;
+            }
+            // reset for next accel structure
+            state.current = null;
+        }
+        if (packet.isCoherent() && intAccel instanceof PacketAccelerationStructure)
+            ((PacketAccelerationStructure) intAccel).intersect(packet);
+        else {
+            // coherence is lost, trace the rays one at a time
+            for (int i = 0; i < n; i++) {
+                IntersectionState state = packet.getState(i);
+                if (!state.isOccluded())
+                    intAccel.intersect(packet.getRay(i), state);
+            }
+        }
+    }
+
     Color traceShadow(Ray r, IntersectionState state) {
         state.numShadowRays++;
+        // any opaque hit will do, not just the closest one
+        state.occlusionQuery = true;
         trace(r, state);
+        state.occlusionQuery = false;
         return state.hit() ? Color.WHITE : Color.BLACK;
     }
 
+    void traceShadow(IntersectionState istate, RayPacket packet) {
+        istate.numShadowRays += packet.getSize();
+        istate.numRays += packet.getSize();
+        // any opaque hit will do, not just the closest one
+        packet.setOcclusionQuery(true);
+        trace(packet);
+        packet.setOcclusionQuery(false);
+    }
+
     void traceBake(Ray r, IntersectionState state) {
         // set the instance as if tracing a regular instanced object
         state.current = bakingInstance;
@@ -304,11 +566,27 @@ public class Scene {
         // read from options
         threads = options.getInt("threads", 0);
         lowPriority = options.getBoolean("threads.lowPriority", true);
+        // shared by all scenes, only resized when the option is given
+        if (options.getInt("threads", Integer.MIN_VALUE) != Integer.MIN_VALUE)
+            WorkerPool.setThreads(threads);
+        // shared by all scenes, only changed when the option is given
+        String accelCache = options.getString("accel.cache", null);
+        if (accelCache != null)
+            AccelerationCache.setDirectory(accelCache);
+        geometryCache.setMaxSize(options.getInt("geometry.cache.size", 0) * 1024L * 1024L);
+        for (int i = 0; i < instanceList.getNumPrimitives(); i++)
+            instanceList.getInstance(i).getGeometry().setCache(geometryCache);
+        // shared by all scenes, only changed when the option is given
+        int tileCacheSize = options.getInt("texture.cache.size", -1);
+        if (tileCacheSize >= 0)
+            TileCache.setMaxSize(tileCacheSize * 1024L * 1024L);
+        TextureCache.Preload texturePreload = textureCache != null && options.getBoolean("texture.preload", true) ? textureCache.preload() : null;
         imageWidth = options.getInt("resolutionX", 640);
         imageHeight = options.getInt("resolutionY", 480);
         // limit resolution to 16k
         imageWidth = MathUtils.clamp(imageWidth, 1, 1 << 14);
         imageHeight = MathUtils.clamp(imageHeight, 1, 1 << 14);
+        pixelSpread = computePixelSpread();
 
         // prepare lights
         createAreaLightInstances();
@@ -324,15 +602,42 @@ public class Scene {
         UI.printInfo(Module.SCENE, "  * Primitives:          %d", numPrimitives);
         String accelName = options.getString("accel", null);
         if (accelName != null) {
-            rebuildAccel = rebuildAccel || !acceltype.equals(accelName);
+            if (!acceltype.equals(accelName)) {
+                rebuildAccel = true;
+                intAccel = null;
+            }
             acceltype = accelName;
         }
-        UI.printInfo(Module.SCENE, "  * Instance accel:      %s", acceltype);
+        boolean refitAccel = options.getBoolean("accel.refit", false);
+        int segments = options.getInt("accel.motion.segments", 0);
+        if (segments != motionSegments) {
+            rebuildAccel = true;
+            motionSegments = segments;
+        }
+        boolean motion = MotionSegmentAccelerator.hasMotion(instanceList);
+        UI.printInfo(Module.SCENE, "  * Instance accel:      %s%s", acceltype, motion ? " (motion segments)" : "");
+        if (refitAccel && motion)
+            UI.printWarning(Module.SCENE, "Moving instances are bounded with motion segments - option accel.refit ignored");
         if (rebuildAccel) {
-            intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
-            intAccel.build(instanceList);
+            if (motion) {
+                // bound moving instances over short time intervals only
+                intAccel = new MotionSegmentAccelerator(acceltype, motionSegments);
+                intAccel.build(instanceList);
+            } else if (refitAccel && intAccel instanceof RefittableAccelerationStructure && ((RefittableAccelerationStructure) intAccel).refit(instanceList)) {
+                UI.printInfo(Module.SCENE, "  * Instance accel:      refit from the previous frame");
+            } else {
+                // the hierarchy from the previous frame could not be reused
+                intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
+                intAccel.build(instanceList);
+                if (refitAccel && !(intAccel instanceof RefittableAccelerationStructure))
+                    UI.printWarning(Module.SCENE, "Instance accelerator \"%s\" can't be refit - option accel.refit ignored", acceltype);
+            }
             rebuildAccel = false;
         }
+        selectAccels((long) imageWidth * imageHeight * options.getInt("accel.measured.rays", 16));
+        buildAccels();
+        if (texturePreload != null)
+            texturePreload.join();
         UI.printInfo(Module.SCENE, "  * Scene bounds:        %s", getBounds());
         UI.printInfo(Module.SCENE, "  * Scene center:        %s", getBounds().getCenter());
         UI.printInfo(Module.SCENE, "  * Scene diameter:      %.2f", getBounds().getExtents().length());
@@ -348,6 +653,7 @@ public class Scene {
         sampler.render(display);
         // show statistics
         stats.displayStats();
+        displayAccelSelections();
         lightServer.showStats();
         // discard area lights
         removeAreaLightInstances();
@@ -357,6 +663,81 @@ public class Scene {
         UI.printInfo(Module.SCENE, "Done.");
     }
 
+    /**
+     * Make the measurements of all geometries which select their acceleration
+     * structure by measurement. Each geometry is given the share of the rays
+     * of the frame which are expected to cross the bounds of its instances,
+     * relative to the bounds of the whole scene.
+     * 
+     * @param rayBudget number of rays traced over the frame
+     */
+    private void selectAccels(long rayBudget) {
+        BoundingBox sceneBounds = getBounds();
+        float sceneArea = sceneBounds == null || sceneBounds.isEmpty() ? 0 : sceneBounds.getArea();
+        LinkedHashMap<Geometry, Float> shares = new LinkedHashMap<Geometry, Float>();
+        for (int i = 0; i < instanceList.getNumPrimitives(); i++) {
+            Instance instance = instanceList.getInstance(i);
+            BoundingBox b = instance.getBounds();
+            float share = sceneArea > 0 && b != null ? b.getArea() / sceneArea : 1;
+            Float total = shares.get(instance.getGeometry());
+            shares.put(instance.getGeometry(), total == null ? share : total + share);
+        }
+        for (Map.Entry<Geometry, Float> e : shares.entrySet())
+            e.getKey().selectAccel((long) (rayBudget * Math.min(1, e.getValue())));
+    }
+
+    /**
+     * Build the acceleration structures of all geometries in parallel before
+     * rendering starts, while the textures are still being preloaded, rather
+     * than on the render threads when the first ray reaches each geometry.
+     */
+    private void buildAccels() {
+        HashSet<Geometry> geometries = new HashSet<Geometry>();
+        final ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int i = 0; i < instanceList.getNumPrimitives(); i++) {
+            final Geometry g = instanceList.getInstance(i).getGeometry();
+            if (geometries.add(g)) {
+                tasks.add(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        g.prebuild();
+                    }
+                });
+            }
+        }
+        if (tasks.isEmpty())
+            return;
+        Timer t = new Timer();
+        t.start();
+        WorkerPool.get().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        t.end();
+        UI.printInfo(Module.SCENE, "  * Geometry accels:     %d built in %s", tasks.size(), t.toString());
+    }
+
+    private void displayAccelSelections() {
+        HashSet<Geometry> geometries = new HashSet<Geometry>();
+        boolean header = false;
+        for (int i = 0; i < instanceList.getNumPrimitives(); i++) {
+            Geometry g = instanceList.getInstance(i).getGeometry();
+            MeasuredAccelerationSelector selection = g.getAccelSelection();
+            if (selection != null && selection.isMeasured() && geometries.add(g)) {
+                if (!header)
+                    MeasuredAccelerationSelector.printStatsHeader();
+                header = true;
+                selection.printStats();
+            }
+        }
+    }
+
     /**
      * Create a photon map as prescribed by the given {@link PhotonStore}.
      * 
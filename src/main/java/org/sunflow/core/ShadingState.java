@@ -48,6 +48,15 @@ public final class ShadingState implements Iterable<LightSample> {
     private PhotonStore map;
     // EP : Added transparency management  
     private int shadowDepth;
+    // shadow rays queued by the light samples
+    private boolean deferShadows;
+    private int numDeferredShadows;
+    // final gather rays are queued here instead of being traced
+    private FinalGatherQueue gatherQueue;
+    // ray cone used to pick texture filter sizes
+    private float coneWidth;
+    private float coneSpread;
+    private float uvScale;
 
     static ShadingState createPhotonState(Ray r, IntersectionState istate, int i, PhotonStore map, LightServer server) {
         // EP : Added ignoreHalton parameter 
@@ -65,6 +74,7 @@ public final class ShadingState implements Iterable<LightSample> {
         s.rx = rx;
         s.ry = ry;
         s.time = time;
+        s.coneSpread = server.getScene().getPixelSpread();
         return s;
     }
 
@@ -90,6 +100,7 @@ public final class ShadingState implements Iterable<LightSample> {
         // EP : Added ignoreHalton parameter 
         ShadingState s = new ShadingState(previous, previous.istate, r, i, 2, false);
         s.reflectionDepth++;
+        s.growCone(previous);
         return s;
     }
 
@@ -97,6 +108,7 @@ public final class ShadingState implements Iterable<LightSample> {
         // EP : Added ignoreHalton parameter 
         ShadingState s = new ShadingState(previous, previous.istate, r, i, 2, false);
         s.refractionDepth++;
+        s.growCone(previous);
         return s;
     }
 
@@ -139,6 +151,8 @@ public final class ShadingState implements Iterable<LightSample> {
             map = previous.map;
             rx = previous.rx;
             ry = previous.ry;
+            coneWidth = previous.coneWidth;
+            coneSpread = previous.coneSpread;
             this.i += previous.i;
             this.d += previous.d;
         }
@@ -159,6 +173,15 @@ public final class ShadingState implements Iterable<LightSample> {
         this.r = r;
     }
 
+    /**
+     * Continue the ray cone of the previous state from its hit point. Only
+     * specular bounces keep a narrow cone, other bounces simply inherit the
+     * cone of the previous state.
+     */
+    private void growCone(ShadingState previous) {
+        coneWidth = previous.coneWidth + previous.coneSpread * previous.r.getMax();
+    }
+
     /**
      * Create objects needed for surface shading: point, normal, texture
      * coordinates and basis.
@@ -388,6 +411,14 @@ public final class ShadingState implements Iterable<LightSample> {
         return server;
     }
 
+    /**
+     * Drop the light samples of a state which has been shaded but is kept
+     * around to create the states of its final gather rays.
+     */
+    final void clearLightSamples() {
+        lightSample = null;
+    }
+
     /**
      * Add the specified light sample to the list of lights to be used
      * 
@@ -399,6 +430,34 @@ public final class ShadingState implements Iterable<LightSample> {
         lightSample = sample;
     }
 
+    /**
+     * Select whether the shadow rays of new light samples should be queued
+     * instead of being traced right away.
+     */
+    final void setDeferShadows(boolean deferShadows) {
+        this.deferShadows = deferShadows;
+    }
+
+    /**
+     * Called by light samples about to trace their shadow ray.
+     * 
+     * @return <code>true</code> if the ray should be queued
+     */
+    final boolean deferShadow() {
+        if (deferShadows)
+            numDeferredShadows++;
+        return deferShadows;
+    }
+
+    /**
+     * Returns the number of shadow rays queued since the last call.
+     */
+    final int getNumDeferredShadows() {
+        int n = numDeferredShadows;
+        numDeferredShadows = 0;
+        return n;
+    }
+
     /**
      * Get a QMC sample from an infinite sequence.
      * 
@@ -585,6 +644,35 @@ public final class ShadingState implements Iterable<LightSample> {
         this.basis = basis;
     }
 
+    /**
+     * Define the ratio between distances in texture space and distances in
+     * world space around the current hit point. This is used to estimate the
+     * size of the texture area covered by the current ray, a value of 0
+     * disables texture filtering.
+     * 
+     * @param scale texture space units per world space unit
+     */
+    public final void setTextureScale(float scale) {
+        uvScale = scale;
+    }
+
+    /**
+     * Get the approximate width of the texture area seen through the current
+     * ray, in texture coordinates units. The footprint is estimated from a
+     * cone around the ray which starts with the size of a pixel and grows
+     * through specular bounces.
+     * 
+     * @return texture footprint width, or 0 if it is unknown
+     */
+    public final float getTextureFootprint() {
+        if (uvScale == 0 || ng == null)
+            return 0;
+        float width = coneWidth + coneSpread * r.getMax();
+        // widen the footprint on surfaces seen at grazing angles
+        float cos = Math.abs(r.dx * ng.x + r.dy * ng.y + r.dz * ng.z);
+        return width * uvScale / Math.max(cos, 0.1f);
+    }
+
     /**
      * Gets the ray that is associated with this state.
      * 
@@ -787,6 +875,50 @@ public final class ShadingState implements Iterable<LightSample> {
         return server.getIrradiance(this, diffuseReflectance);
     }
 
+    /**
+     * Checks if final gather rays from this point should be queued with
+     * {@link #queueFinalGather(Ray, int, Color)} instead of being traced with
+     * {@link #traceFinalGather(Ray, int)}. This is only the case for points
+     * shaded directly by a sampler which traces each bounce in a batch, and
+     * never for points reached through reflections or refractions, whose
+     * radiance is weighted by their shaders.
+     * 
+     * @return <code>true</code> if final gather rays should be queued
+     */
+    public final boolean isFinalGatherQueued() {
+        return gatherQueue != null;
+    }
+
+    /**
+     * Queue a final gather ray, its radiance will be multiplied by the
+     * specified weight and added to the result of this point once it has been
+     * traced. Shaders scale the irradiance they get by the diffuse reflectance
+     * over pi (see {@link #diffuse(Color)}), so the weight should include
+     * these factors.
+     * 
+     * @param r ray to shoot
+     * @param i instance of the ray
+     * @param weight contribution of the ray to the radiance of this point
+     */
+    public final void queueFinalGather(Ray r, int i, Color weight) {
+        gatherQueue.add(this, r, i, weight);
+    }
+
+    final void setFinalGatherQueue(FinalGatherQueue queue) {
+        gatherQueue = queue;
+    }
+
+    /**
+     * Trace the final gather rays of this point right away, even if the
+     * sampler would rather queue them. Queued rays are weighted as if the
+     * result of {@link #diffuse(Color)} was returned as is, so shaders which
+     * scale that result afterwards (by a texture's opacity for example) must
+     * call this before shading.
+     */
+    public final void disableFinalGatherQueue() {
+        gatherQueue = null;
+    }
+
     /**
      * Trace a final gather ray and return the intersection result as a new
      * render state
@@ -851,7 +983,8 @@ public final class ShadingState implements Iterable<LightSample> {
 
     /**
      * Computes a plain diffuse response to the current light samples and global
-     * illumination.
+     * illumination. Shaders which scale the returned color should call
+     * {@link #disableFinalGatherQueue()} first.
      * 
      * @param diff diffuse color
      * @return shaded result
@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import org.sunflow.image.TileCache;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -34,6 +36,7 @@ public class Statistics {
         cacheMisses = 0;
         cacheSumDepth = 0;
         cacheNumCaches = 0;
+        TileCache.resetStats();
     }
 
     void accumulate(IntersectionState state) {
@@ -74,6 +77,16 @@ public class Statistics {
             UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * cacheHits) / (cacheHits + cacheMisses));
             UI.printInfo(Module.LIGHT, "  * Average cache depth: %.2f", (double) cacheSumDepth / (double) cacheNumCaches);
         }
+        long tileHits = TileCache.getHits();
+        long tileMisses = TileCache.getMisses();
+        if (tileHits + tileMisses > 0) {
+            UI.printInfo(Module.TEX, "Texture cache stats:");
+            UI.printInfo(Module.TEX, "  * Lookups:             %d", tileHits + tileMisses);
+            UI.printInfo(Module.TEX, "  * Hit rate:            %.2f%%", (100.0 * tileHits) / (tileHits + tileMisses));
+            UI.printInfo(Module.TEX, "  * Tiles loaded:        %d", tileMisses);
+            UI.printInfo(Module.TEX, "  * Tiles evicted:       %d", TileCache.getEvictions());
+            UI.printInfo(Module.TEX, "  * Resident memory:     %s", Memory.bytesToString(TileCache.getResidentBytes()));
+        }
     }
 
     private void printRayTypeStats(String name, long n) {
@@ -12,12 +12,17 @@ import org.sunflow.PluginRegistry;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.BitmapReader;
 import org.sunflow.image.Color;
+import org.sunflow.image.MipMaps;
+import org.sunflow.image.TileCache;
+import org.sunflow.image.TiledBitmap;
 import org.sunflow.image.BitmapReader.BitmapFormatException;
 import org.sunflow.image.formats.BitmapBlack;
+import org.sunflow.image.formats.BitmapTiledFile;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
 import org.sunflow.system.FileUtils;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -28,9 +33,13 @@ public class Texture {
     private String filename;
     private boolean isLinear;
     private Bitmap bitmap;
-    private int loaded;
+    private volatile int loaded;
+    // downsampled versions of the bitmap, starting with the bitmap itself
+    private volatile Bitmap[] mipmaps;
     // EP : Added bitmap transparency support
     private boolean isTransparent;
+    // temporary file holding the tiles, if the texture was split into tiles
+    private File tileFile;
 
     /**
      * Creates a new texture from the specfied file.
@@ -90,11 +99,18 @@ public class Texture {
                     bitmap = null;
             }
             // EP : Check transparency
-            for (int x = 0; x < bitmap.getWidth(); x++) {
-                for (int y = 0; y < bitmap.getHeight(); y++) {
-                    if (bitmap.readAlpha(x, y) < 1) {
-                        this.isTransparent = true;
-                        break;
+            if (bitmap instanceof BitmapTiledFile) {
+                // known without reading the tiles, which also come with
+                // their mipmaps
+                isTransparent = ((BitmapTiledFile) bitmap).isTransparent();
+                mipmaps = ((BitmapTiledFile) bitmap).getMipMaps();
+            } else {
+                for (int x = 0; x < bitmap.getWidth(); x++) {
+                    for (int y = 0; y < bitmap.getHeight(); y++) {
+                        if (bitmap.readAlpha(x, y) < 1) {
+                            this.isTransparent = true;
+                            break;
+                        }
                     }
                 }
             }
@@ -102,8 +118,11 @@ public class Texture {
             if (bitmap == null) {
                 UI.printError(Module.TEX, "Bitmap reading failed");
                 bitmap = new BitmapBlack();
-            } else
+            } else {
                 UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", bitmap.getWidth(), bitmap.getHeight());
+                if (TileCache.isEnabled() && !(bitmap instanceof TiledBitmap))
+                    createTiles();
+            }
         } catch (IOException e) {
             UI.printError(Module.TEX, "%s", e.getMessage());
         } catch (BitmapFormatException e) {
@@ -112,6 +131,38 @@ public class Texture {
         loaded = 1;
     }
 
+    /**
+     * Gets the name of the file the texture is read from.
+     * 
+     * @return texture filename
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Has the bitmap been read already?
+     * 
+     * @return <code>true</code> if the texture is ready for lookups
+     */
+    boolean isLoaded() {
+        return loaded != 0;
+    }
+
+    /**
+     * Delete the temporary file holding the tiles of this texture, if any.
+     * Called when the texture is dropped from its {@link TextureCache}. The
+     * tiles already mapped stay readable until the texture is collected, so
+     * shaders still holding the texture keep working.
+     */
+    synchronized void deleteTiles() {
+        if (tileFile == null)
+            return;
+        if (tileFile.delete())
+            UI.printDetailed(Module.TEX, "Deleted texture tiles of \"%s\"", filename);
+        tileFile = null;
+    }
+
     public Bitmap getBitmap() {
         if (loaded == 0)
             load();
@@ -129,7 +180,84 @@ public class Texture {
      * @return filtered color at location (x,y)
      */
     public Color getPixel(float x, float y) {
+        return lookup(getBitmap(), x, y);
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, averaged over a square
+     * area of the specified width. The lookup is performed in the two mipmap
+     * levels whose pixel size is closest to the footprint, and the results
+     * are blended linearly. A footprint smaller than a pixel of the texture
+     * gives the same result as {@link #getPixel(float, float)}.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param footprint width of the filtered area, in texture coordinates
+     * @return filtered color at location (x,y)
+     */
+    public Color getPixel(float x, float y, float footprint) {
+        if (!(footprint > 0))
+            return getPixel(x, y);
         Bitmap bitmap = getBitmap();
+        float texels = footprint * Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (texels <= 1)
+            return lookup(bitmap, x, y);
+        Bitmap[] levels = getMipMaps();
+        float lod = (float) (Math.log(texels) / Math.log(2));
+        int level = (int) lod;
+        if (level >= levels.length - 1)
+            return lookup(levels[levels.length - 1], x, y);
+        Color c0 = lookup(levels[level], x, y);
+        Color c1 = lookup(levels[level + 1], x, y);
+        return Color.blend(c0, c1, lod - level);
+    }
+
+    private Bitmap[] getMipMaps() {
+        Bitmap[] levels = mipmaps;
+        if (levels == null)
+            levels = createMipMaps();
+        return levels;
+    }
+
+    private synchronized Bitmap[] createMipMaps() {
+        if (mipmaps != null)
+            return mipmaps;
+        Bitmap[] levels = MipMaps.create(bitmap);
+        UI.printDetailed(Module.TEX, "Created %d mipmap levels for \"%s\"", levels.length, filename);
+        mipmaps = levels;
+        return levels;
+    }
+
+    /**
+     * Replace the bitmap and its mipmaps with tiled copies which are written
+     * to a temporary file and read back tile by tile through the
+     * {@link TileCache}, so that only the tiles which are used stay in memory.
+     */
+    private void createTiles() {
+        Bitmap[] levels = createMipMaps();
+        try {
+            File file = File.createTempFile("sunflow", ".sft");
+            // deleted with the texture, or when the process exits at the latest
+            file.deleteOnExit();
+            Bitmap[] tiled;
+            try {
+                // tiles are compressed, each is only inflated on a cache miss
+                long bytes = BitmapTiledFile.write(file.getAbsolutePath(), levels, isLinear, true);
+                tiled = BitmapTiledFile.open(file.getAbsolutePath());
+                UI.printDetailed(Module.TEX, "Texture split into tiles: %s on disk", Memory.bytesToString(bytes));
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            tileFile = file;
+            bitmap = tiled[0];
+            mipmaps = tiled;
+        } catch (IOException e) {
+            UI.printError(Module.TEX, "Unable to create texture tiles, keeping \"%s\" in memory: %s", filename, e.getMessage());
+        }
+    }
+
+    private static Color lookup(Bitmap bitmap, float x, float y) {
         x = MathUtils.frac(x);
         y = MathUtils.frac(y);
         float dx = x * (bitmap.getWidth() - 1);
@@ -1,8 +1,18 @@
 package org.sunflow.core;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.TiledBitmap;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
+import org.sunflow.system.WorkerPool;
 import org.sunflow.system.UI.Module;
 
 /**
@@ -41,11 +51,100 @@ public final class TextureCache {
 
     /**
      * Flush all textures from the cache, this will cause them to be reloaded
-     * anew the next time they are accessed.
+     * anew the next time they are accessed. The temporary files holding the
+     * tiles of the textures are deleted.
      */
     // EP : Removed static to enable GC to free Texture memory
     public synchronized void flush() {
         UI.printInfo(Module.TEX, "Flushing texture cache");
+        for (Texture t : textures.values())
+            t.deleteTiles();
         textures.clear();
     }
+
+    /**
+     * Start loading all the textures which were not loaded yet, in parallel
+     * on the {@link WorkerPool}. Textures are requested by shaders, modifiers
+     * and lights when they are updated, so this covers every texture of the
+     * scene. Loading them up front keeps render threads from waiting on each
+     * other for the first lookup in a texture.
+     * 
+     * @return handle to wait for the textures, or <code>null</code> if
+     *         there is nothing to load
+     */
+    public Preload preload() {
+        ArrayList<Texture> pending = new ArrayList<Texture>();
+        synchronized (this) {
+            for (Texture t : textures.values())
+                if (!t.isLoaded())
+                    pending.add(t);
+        }
+        if (pending.isEmpty())
+            return null;
+        UI.printInfo(Module.TEX, "Preloading %d textures ...", pending.size());
+        return new Preload(pending);
+    }
+
+    /**
+     * Textures being loaded in the background.
+     */
+    public static final class Preload {
+        private final int count;
+        private final ForkJoinTask<Void> task;
+        private final AtomicLong decodeNanos = new AtomicLong();
+        private final Timer timer = new Timer();
+
+        private Preload(ArrayList<Texture> textures) {
+            count = textures.size();
+            final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+            for (int i = 0; i < count; i++)
+                tasks[i] = loadTask(textures.get(i));
+            timer.start();
+            task = WorkerPool.get().submit(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+
+        private RecursiveAction loadTask(final Texture t) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    long start = System.nanoTime();
+                    Bitmap b;
+                    try {
+                        b = t.getBitmap();
+                    } catch (RuntimeException e) {
+                        // leave the error to the first lookup
+                        UI.printError(Module.TEX, "Unable to preload \"%s\": %s", t.getFilename(), e);
+                        b = null;
+                    }
+                    long nanos = System.nanoTime() - start;
+                    decodeNanos.addAndGet(nanos);
+                    if (b == null)
+                        return;
+                    long fileSize = new File(t.getFilename()).length();
+                    UI.printInfo(Module.TEX, "  * \"%s\": %dx%d%s%s in %s", t.getFilename(), b.getWidth(), b.getHeight(), b instanceof TiledBitmap ? " tiled" : "", fileSize > 0 ? String.format(", %s on disk", Memory.bytesToString(fileSize)) : "", Timer.toString(nanos));
+                }
+            };
+        }
+
+        /**
+         * Wait for all the textures to be loaded.
+         */
+        public void join() {
+            Timer wait = new Timer();
+            wait.start();
+            task.join();
+            wait.end();
+            timer.end();
+            UI.printInfo(Module.TEX, "Texture preload: %d textures, %s decoding, %s elapsed, %s waiting", count, Timer.toString(decodeNanos.get()), timer.toString(), wait.toString());
+        }
+    }
 }
\ No newline at end of file
@@ -1,19 +1,34 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.core.AccelerationCache;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.OffHeapAccelerationStructure;
+import org.sunflow.core.PacketAccelerationStructure;
+import org.sunflow.core.PersistentAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
+import org.sunflow.util.OffHeapIntArray;
 
-public class BoundingIntervalHierarchy implements AccelerationStructure {
+public class BoundingIntervalHierarchy implements PersistentAccelerationStructure, OffHeapAccelerationStructure, PacketAccelerationStructure {
     private int[] tree;
     private int[] objects;
+    // the same arrays when stored off-heap, the heap arrays are null then
+    private boolean offHeap;
+    private OffHeapIntArray offHeapTree;
+    private OffHeapIntArray offHeapObjects;
+    // read access to whichever arrays are in use, for the scalar traversal
+    private Storage storage;
     private PrimitiveList primitives;
     private BoundingBox bounds;
     private int maxPrims;
@@ -22,8 +37,13 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         maxPrims = 2;
     }
 
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
     public void build(PrimitiveList primitives) {
         this.primitives = primitives;
+        offHeapTree = offHeapObjects = null;
         int n = primitives.getNumPrimitives();
         UI.printDetailed(Module.ACCEL, "Getting bounding box ...");
         bounds = primitives.getWorldBounds(null);
@@ -46,6 +66,74 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Usage of init:  %6.2f%%", (double) (100.0 * tree.length) / initialSize);
         UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s", Memory.sizeof(tree));
         UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+        if (offHeap)
+            moveOffHeap();
+        updateStorage();
+    }
+
+    private void updateStorage() {
+        storage = offHeapTree != null ? new OffHeapStorage(offHeapTree, offHeapObjects) : new HeapStorage(tree, objects);
+    }
+
+    /**
+     * Reads the nodes and object indices of the tree. The traversal goes
+     * through this class so the same code serves heap and off-heap arrays.
+     */
+    private static abstract class Storage {
+        abstract int node(int i);
+
+        abstract int object(int i);
+    }
+
+    private static final class HeapStorage extends Storage {
+        private final int[] tree;
+        private final int[] objects;
+
+        HeapStorage(int[] tree, int[] objects) {
+            this.tree = tree;
+            this.objects = objects;
+        }
+
+        @Override
+        int node(int i) {
+            return tree[i];
+        }
+
+        @Override
+        int object(int i) {
+            return objects[i];
+        }
+    }
+
+    private static final class OffHeapStorage extends Storage {
+        private final OffHeapIntArray tree;
+        private final OffHeapIntArray objects;
+
+        OffHeapStorage(OffHeapIntArray tree, OffHeapIntArray objects) {
+            this.tree = tree;
+            this.objects = objects;
+        }
+
+        @Override
+        int node(int i) {
+            return tree.get(i);
+        }
+
+        @Override
+        int object(int i) {
+            return objects.get(i);
+        }
+    }
+
+    /**
+     * Copy the tree and indices out of the Java heap, releasing the heap
+     * arrays.
+     */
+    private void moveOffHeap() {
+        offHeapTree = OffHeapIntArray.copyOf(tree);
+        offHeapObjects = OffHeapIntArray.copyOf(objects);
+        tree = objects = null;
+        UI.printDetailed(Module.ACCEL, "  * Off-heap memory: %s", Memory.bytesToString(offHeapTree.getBytes() + offHeapObjects.getBytes()));
     }
 
     private static class BuildStats {
@@ -335,6 +423,9 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         if (loopCount > 100) {
             System.arraycopy(gridBoxCopy, 0, gridBox, 0, gridBox.length);
             System.arraycopy(nodeBoxCopy, 0, nodeBox, 0, nodeBox.length);
+            // don't leave the node unwritten, it would point back to the root
+            stats.updateLeaf(depth, right - left + 1);
+            createNode(tempTree, nodeIndex, left, right);
             return;
         }
         // EP : End of modification
@@ -386,7 +477,47 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             stats.updateLeaf(depth + 1, 0);
     }
 
+    BoundingBox getBounds() {
+        return bounds;
+    }
+
+    int[] getTree() {
+        return tree;
+    }
+
+    int[] getObjects() {
+        return objects;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        AccelerationCache.writeBounds(out, bounds);
+        if (offHeapTree != null) {
+            AccelerationCache.writeInts(out, offHeapTree);
+            AccelerationCache.writeInts(out, offHeapObjects);
+        } else {
+            AccelerationCache.writeInts(out, tree);
+            AccelerationCache.writeInts(out, objects);
+        }
+    }
+
+    public void read(PrimitiveList primitives, ByteBuffer in) {
+        this.primitives = primitives;
+        bounds = AccelerationCache.readBounds(in);
+        if (offHeap) {
+            // use the cache file directly
+            tree = objects = null;
+            offHeapTree = AccelerationCache.readOffHeapInts(in);
+            offHeapObjects = AccelerationCache.readOffHeapInts(in);
+        } else {
+            offHeapTree = offHeapObjects = null;
+            tree = AccelerationCache.readInts(in);
+            objects = AccelerationCache.readInts(in);
+        }
+        updateStorage();
+    }
+
     public void intersect(Ray r, IntersectionState state) {
+        Storage storage = this.storage;
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -474,14 +605,14 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
 
         while (true) {
             pushloop: while (true) {
-                int tn = tree[node];
+                int tn = storage.node(node);
                 int axis = tn & (7 << 29);
                 int offset = tn & ~(7 << 29);
                 switch (axis) {
                     case 0: {
                         // x axis
-                        float tf = (Float.intBitsToFloat(tree[node + offsetXFront]) - orgX) * invDirX;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetXBack]) - orgX) * invDirX;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetXFront)) - orgX) * invDirX;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetXBack)) - orgX) * invDirX;
                         // ray passes between clip zones
                         if (tf < intervalMin && tb > intervalMax)
                             break pushloop;
@@ -514,8 +645,8 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                         continue;
                     }
                     case 1 << 30: {
-                        float tf = (Float.intBitsToFloat(tree[node + offsetYFront]) - orgY) * invDirY;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetYBack]) - orgY) * invDirY;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetYFront)) - orgY) * invDirY;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetYBack)) - orgY) * invDirY;
                         // ray passes between clip zones
                         if (tf < intervalMin && tb > intervalMax)
                             break pushloop;
@@ -549,8 +680,8 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     }
                     case 2 << 30: {
                         // z axis
-                        float tf = (Float.intBitsToFloat(tree[node + offsetZFront]) - orgZ) * invDirZ;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetZBack]) - orgZ) * invDirZ;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetZFront)) - orgZ) * invDirZ;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetZBack)) - orgZ) * invDirZ;
                         // ray passes between clip zones
                         if (tf < intervalMin && tb > intervalMax)
                             break pushloop;
@@ -584,17 +715,19 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     }
                     case 3 << 30: {
                         // leaf - test some objects
-                        int n = tree[node + 1];
+                        int n = storage.node(node + 1);
                         while (n > 0) {
-                            primitives.intersectPrimitive(r, objects[offset], state);
+                            primitives.intersectPrimitive(r, storage.object(offset), state);
+                            if (state.isOccluded())
+                                return;
                             n--;
                             offset++;
                         }
                         break pushloop;
                     }
                     case 1 << 29: {
-                        float tf = (Float.intBitsToFloat(tree[node + offsetXFront]) - orgX) * invDirX;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetXBack]) - orgX) * invDirX;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetXFront)) - orgX) * invDirX;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetXBack)) - orgX) * invDirX;
                         node = offset;
                         intervalMin = (tf >= intervalMin) ? tf : intervalMin;
                         intervalMax = (tb <= intervalMax) ? tb : intervalMax;
@@ -603,8 +736,8 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                         continue;
                     }
                     case 3 << 29: {
-                        float tf = (Float.intBitsToFloat(tree[node + offsetYFront]) - orgY) * invDirY;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetYBack]) - orgY) * invDirY;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetYFront)) - orgY) * invDirY;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetYBack)) - orgY) * invDirY;
                         node = offset;
                         intervalMin = (tf >= intervalMin) ? tf : intervalMin;
                         intervalMax = (tb <= intervalMax) ? tb : intervalMax;
@@ -613,8 +746,8 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                         continue;
                     }
                     case 5 << 29: {
-                        float tf = (Float.intBitsToFloat(tree[node + offsetZFront]) - orgZ) * invDirZ;
-                        float tb = (Float.intBitsToFloat(tree[node + offsetZBack]) - orgZ) * invDirZ;
+                        float tf = (Float.intBitsToFloat(storage.node(node + offsetZFront)) - orgZ) * invDirZ;
+                        float tb = (Float.intBitsToFloat(storage.node(node + offsetZBack)) - orgZ) * invDirZ;
                         node = offset;
                         intervalMin = (tf >= intervalMin) ? tf : intervalMin;
                         intervalMax = (tb <= intervalMax) ? tb : intervalMax;
@@ -646,4 +779,192 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             } while (true);
         }
     }
+
+    public void intersect(RayPacket packet) {
+        if (offHeapTree != null) {
+            for (int i = 0; i < packet.getSize(); i++)
+                intersect(packet.getRay(i), packet.getState(i));
+            return;
+        }
+        int count = packet.clip(bounds);
+        if (count == 0)
+            return;
+        int[] active = packet.getActiveRays();
+        float[] near = packet.getNear();
+        float[] far = packet.getFar();
+        float intervalMin = packet.getMinNear();
+        float intervalMax = packet.getMaxFar();
+
+        // all rays share the same direction signs
+        Ray r = packet.getRay(0);
+        int[] signs = {
+                Float.floatToRawIntBits(r.dx) >>> 31,
+                Float.floatToRawIntBits(r.dy) >>> 31,
+                Float.floatToRawIntBits(r.dz) >>> 31 };
+
+        RayPacket.StackNode[] stack = packet.getStack();
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            pushloop: while (true) {
+                int tn = tree[node];
+                int axis = tn & (7 << 29);
+                int offset = tn & ~(7 << 29);
+                switch (axis) {
+                    case 0:
+                    case 1 << 30:
+                    case 2 << 30: {
+                        int a = axis >>> 30;
+                        float planeFront = Float.intBitsToFloat(tree[node + 1 + signs[a]]);
+                        float planeBack = Float.intBitsToFloat(tree[node + 2 - signs[a]]);
+                        int front = offset + signs[a] * 3;
+                        int back = offset + (signs[a] ^ 1) * 3;
+                        // the whole packet passes through one side of the
+                        // clip zones, keep the ray intervals as they are
+                        boolean noFront = packet.getMaxDistance(a, planeFront) < intervalMin;
+                        boolean noBack = packet.getMinDistance(a, planeBack) > intervalMax;
+                        if (noFront) {
+                            if (noBack)
+                                break pushloop;
+                            node = back;
+                            continue;
+                        }
+                        if (noBack) {
+                            node = front;
+                            continue;
+                        }
+                        // EP : Give up if stack is full
+                        if (stackPos == stack.length)
+                            break pushloop;
+                        // clip the interval of each ray
+                        float[] org = packet.getOrigins(a);
+                        float[] invDir = packet.getInvDirections(a);
+                        RayPacket.StackNode e = stack[stackPos];
+                        int[] backRays = e.rays;
+                        float[] backNear = e.rayNear;
+                        float[] backFar = e.rayFar;
+                        float frontMin = Float.POSITIVE_INFINITY, frontMax = Float.NEGATIVE_INFINITY;
+                        float backMin = Float.POSITIVE_INFINITY, backMax = Float.NEGATIVE_INFINITY;
+                        int frontCount = 0, backCount = 0;
+                        for (int j = 0; j < count; j++) {
+                            int i = active[j];
+                            float tmin = near[i];
+                            float tmax = far[i];
+                            float tf = (planeFront - org[i]) * invDir[i];
+                            float tb = (planeBack - org[i]) * invDir[i];
+                            float bn = (tb >= tmin) ? tb : tmin;
+                            if (bn <= tmax) {
+                                backNear[i] = bn;
+                                backFar[i] = tmax;
+                                backRays[backCount++] = i;
+                                backMin = bn < backMin ? bn : backMin;
+                                backMax = tmax > backMax ? tmax : backMax;
+                            }
+                            float ff = (tf <= tmax) ? tf : tmax;
+                            if (tmin <= ff) {
+                                far[i] = ff;
+                                active[frontCount++] = i;
+                                frontMin = tmin < frontMin ? tmin : frontMin;
+                                frontMax = ff > frontMax ? ff : frontMax;
+                            }
+                        }
+                        if (frontCount > 0) {
+                            if (backCount > 0) {
+                                // push back node
+                                e.node = back;
+                                e.count = backCount;
+                                e.near = backMin;
+                                e.far = backMax;
+                                stackPos++;
+                            }
+                            node = front;
+                            intervalMin = frontMin;
+                            intervalMax = frontMax;
+                            count = frontCount;
+                            continue;
+                        }
+                        if (backCount > 0) {
+                            for (int j = 0; j < backCount; j++) {
+                                int i = backRays[j];
+                                near[i] = backNear[i];
+                                far[i] = backFar[i];
+                                active[j] = i;
+                            }
+                            node = back;
+                            intervalMin = backMin;
+                            intervalMax = backMax;
+                            count = backCount;
+                            continue;
+                        }
+                        break pushloop;
+                    }
+                    case 3 << 30: {
+                        // leaf - test some objects
+                        for (int n = tree[node + 1]; n > 0; n--, offset++)
+                            packet.intersectPrimitive(primitives, objects[offset], active, count);
+                        break pushloop;
+                    }
+                    case 1 << 29:
+                    case 3 << 29:
+                    case 5 << 29: {
+                        int a = axis >>> 30;
+                        float planeFront = Float.intBitsToFloat(tree[node + 1 + signs[a]]);
+                        float planeBack = Float.intBitsToFloat(tree[node + 2 - signs[a]]);
+                        float[] org = packet.getOrigins(a);
+                        float[] invDir = packet.getInvDirections(a);
+                        node = offset;
+                        intervalMin = Float.POSITIVE_INFINITY;
+                        intervalMax = Float.NEGATIVE_INFINITY;
+                        int k = 0;
+                        for (int j = 0; j < count; j++) {
+                            int i = active[j];
+                            float tf = (planeFront - org[i]) * invDir[i];
+                            float tb = (planeBack - org[i]) * invDir[i];
+                            float tmin = (tf >= near[i]) ? tf : near[i];
+                            float tmax = (tb <= far[i]) ? tb : far[i];
+                            if (tmin <= tmax) {
+                                near[i] = tmin;
+                                far[i] = tmax;
+                                active[k++] = i;
+                                intervalMin = tmin < intervalMin ? tmin : intervalMin;
+                                intervalMax = tmax > intervalMax ? tmax : intervalMax;
+                            }
+                        }
+                        count = k;
+                        if (count == 0)
+                            break pushloop;
+                        continue;
+                    }
+                    default:
+                        return; // should not happen
+                } // switch
+            } // traversal loop
+            // move back up the stack, dropping the rays which have hit
+            // something closer than the node
+            do {
+                // stack is empty?
+                if (stackPos == 0)
+                    return;
+                stackPos--;
+                RayPacket.StackNode e = stack[stackPos];
+                count = 0;
+                intervalMin = Float.POSITIVE_INFINITY;
+                intervalMax = Float.NEGATIVE_INFINITY;
+                for (int j = 0; j < e.count; j++) {
+                    int i = e.rays[j];
+                    float tmin = e.rayNear[i];
+                    if (packet.isActive(i, tmin)) {
+                        float tmax = e.rayFar[i];
+                        near[i] = tmin;
+                        far[i] = tmax;
+                        active[count++] = i;
+                        intervalMin = tmin < intervalMin ? tmin : intervalMin;
+                        intervalMax = tmax > intervalMax ? tmax : intervalMax;
+                    }
+                }
+                node = e.node;
+            } while (count == 0);
+        }
+    }
 }
\ No newline at end of file
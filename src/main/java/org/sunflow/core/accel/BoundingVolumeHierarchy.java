@@ -0,0 +1,557 @@
+package org.sunflow.core.accel;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveTask;
+
+import org.sunflow.core.AccelerationCache;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PersistentAccelerationStructure;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.RefittableAccelerationStructure;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.system.WorkerPool;
+
+/**
+ * Bounding volume hierarchy built with the surface area heuristic evaluated
+ * over a fixed number of bins per axis. Subtrees are built in parallel on the
+ * shared {@link WorkerPool} and the result is flattened into plain arrays in
+ * depth first order, so that the left child of a node always directly follows
+ * its parent.
+ */
+public class BoundingVolumeHierarchy implements PersistentAccelerationStructure, RefittableAccelerationStructure {
+    private static final int NUM_BINS = 16;
+    // subtrees with fewer primitives than this are built serially
+    private static final int PARALLEL_THRESHOLD = 4096;
+    // keep the tree shallow enough for the traversal stack
+    private static final int MAX_DEPTH = 60;
+    // relative cost of a traversal step vs. a primitive intersection
+    private static final float TRAVERSAL_COST = 0.5f;
+    private static final int MAX_LEAF_SIZE = 16;
+    // refitting is abandoned once the tree gets this much more expensive to
+    // trace than right after it was built
+    private static final float MAX_REFIT_COST_RATIO = 1.5f;
+
+    // node layout: 2 ints per node. For inner nodes: index of the right child
+    // followed by -1 - split axis. For leaves: offset into the objects array
+    // followed by the number of objects.
+    private int[] nodes;
+    // node bounds: 6 floats per node, ordered as min x, max x, min y, max y,
+    // min z, max z
+    private float[] bounds;
+    private int[] objects;
+    private PrimitiveList primitives;
+    private int maxPrims;
+    // SAH cost of the tree as originally built
+    private float buildCost;
+
+    public BoundingVolumeHierarchy() {
+        maxPrims = 4;
+    }
+
+    public void build(PrimitiveList primitives) {
+        this.primitives = primitives;
+        int n = primitives.getNumPrimitives();
+        UI.printDetailed(Module.ACCEL, "Getting primitive bounds ...");
+        Timer total = new Timer();
+        total.start();
+        float[] primBounds = new float[6 * n];
+        float[] centroids = new float[3 * n];
+        for (int i = 0, j = 0; i < n; i++) {
+            for (int k = 0; k < 6; k++)
+                primBounds[6 * i + k] = primitives.getPrimitiveBound(i, k);
+            for (int k = 0; k < 3; k++, j++)
+                centroids[j] = 0.5f * (primBounds[6 * i + 2 * k] + primBounds[6 * i + 2 * k + 1]);
+        }
+        objects = new int[n];
+        for (int i = 0; i < n; i++)
+            objects[i] = i;
+        UI.printDetailed(Module.ACCEL, "Creating tree using %d threads ...", WorkerPool.getThreads());
+        Timer t = new Timer();
+        t.start();
+        BuildNode root = WorkerPool.get().invoke(new BuildTask(primBounds, centroids, 0, n, 0));
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Flattening tree ...");
+        nodes = new int[2 * root.numNodes];
+        bounds = new float[6 * root.numNodes];
+        flatten(root, 0);
+        buildCost = sahCost();
+        total.end();
+        // display stats
+        BuildStats stats = new BuildStats();
+        stats.update(this, 0, 0);
+        stats.printStats();
+        UI.printDetailed(Module.ACCEL, "  * Creation time:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * SAH cost:       %.2f", buildCost);
+        UI.printDetailed(Module.ACCEL, "  * Total time:     %s", total);
+        UI.printDetailed(Module.ACCEL, "  * Node memory:    %s", Memory.bytesToString(4L * (nodes.length + bounds.length)));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+    }
+
+    /**
+     * Copies the subtree starting at the specified node into the flat arrays.
+     *
+     * @return index of the next free node
+     */
+    private int flatten(BuildNode node, int index) {
+        System.arraycopy(node.bounds, 0, bounds, 6 * index, 6);
+        if (node.left == null) {
+            nodes[2 * index + 0] = node.offset;
+            nodes[2 * index + 1] = node.count;
+            return index + 1;
+        }
+        int right = flatten(node.left, index + 1);
+        nodes[2 * index + 0] = right;
+        nodes[2 * index + 1] = -1 - node.axis;
+        return flatten(node.right, right);
+    }
+
+    public boolean refit(PrimitiveList primitives) {
+        int n = primitives.getNumPrimitives();
+        if (nodes == null || n != objects.length)
+            return false;
+        Timer t = new Timer();
+        t.start();
+        this.primitives = primitives;
+        // children are always stored after their parent, so walking the nodes
+        // backwards visits both children before the node itself
+        for (int i = nodes.length / 2 - 1; i >= 0; i--) {
+            int b = 6 * i;
+            int count = nodes[2 * i + 1];
+            if (count < 0) {
+                System.arraycopy(bounds, 6 * (i + 1), bounds, b, 6);
+                include(bounds, i, bounds, nodes[2 * i + 0]);
+            } else {
+                for (int k = 0; k < 6; k += 2) {
+                    bounds[b + k + 0] = Float.POSITIVE_INFINITY;
+                    bounds[b + k + 1] = Float.NEGATIVE_INFINITY;
+                }
+                for (int j = nodes[2 * i + 0], end = j + count; j < end; j++) {
+                    int obj = objects[j];
+                    for (int k = 0; k < 6; k += 2) {
+                        float min = primitives.getPrimitiveBound(obj, k + 0);
+                        float max = primitives.getPrimitiveBound(obj, k + 1);
+                        if (min < bounds[b + k + 0])
+                            bounds[b + k + 0] = min;
+                        if (max > bounds[b + k + 1])
+                            bounds[b + k + 1] = max;
+                    }
+                }
+            }
+        }
+        float cost = sahCost();
+        t.end();
+        if (!(cost <= MAX_REFIT_COST_RATIO * buildCost)) {
+            UI.printDetailed(Module.ACCEL, "BVH refit rejected: SAH cost went from %.2f to %.2f", buildCost, cost);
+            return false;
+        }
+        UI.printDetailed(Module.ACCEL, "BVH refit %d nodes in %s (SAH cost %.2f, was %.2f when built)", nodes.length / 2, t, cost, buildCost);
+        return true;
+    }
+
+    /**
+     * Estimates the cost of tracing a ray through the tree with the surface
+     * area heuristic, in units of primitive intersections.
+     */
+    private float sahCost() {
+        double cost = 0;
+        for (int i = 0; i < nodes.length / 2; i++) {
+            int count = nodes[2 * i + 1];
+            cost += halfArea(bounds, i) * (count < 0 ? TRAVERSAL_COST : count);
+        }
+        float rootArea = halfArea(bounds, 0);
+        return rootArea > 0 ? (float) (cost / rootArea) : 0;
+    }
+
+    private static final class BuildNode {
+        final float[] bounds = new float[6];
+        BuildNode left, right;
+        int axis;
+        int offset, count;
+        int numNodes;
+    }
+
+    /**
+     * Builds the subtree over a range of the objects array, forking the
+     * construction of large children.
+     */
+    private final class BuildTask extends RecursiveTask<BuildNode> {
+        private static final long serialVersionUID = 1L;
+        private final float[] primBounds;
+        private final float[] centroids;
+        private final int left, right, depth;
+        // scratch memory, only used until the objects have been partitioned
+        private final float[] cb = new float[6];
+        private final float[] scale = new float[3];
+        private final int[] binCount = new int[3 * NUM_BINS];
+        private final float[] binBounds = new float[3 * 6 * NUM_BINS];
+        private final float[] rightArea = new float[NUM_BINS];
+        private final int[] rightCount = new int[NUM_BINS];
+        private final float[] acc = new float[6];
+
+        BuildTask(float[] primBounds, float[] centroids, int left, int right, int depth) {
+            this.primBounds = primBounds;
+            this.centroids = centroids;
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
+
+        @Override
+        protected BuildNode compute() {
+            return buildNode(left, right, depth, right - left >= PARALLEL_THRESHOLD);
+        }
+
+        private BuildNode buildNode(int left, int right, int depth, boolean parallel) {
+            BuildNode node = new BuildNode();
+            float[] b = node.bounds;
+            b[0] = b[2] = b[4] = Float.POSITIVE_INFINITY;
+            b[1] = b[3] = b[5] = Float.NEGATIVE_INFINITY;
+            cb[0] = cb[2] = cb[4] = Float.POSITIVE_INFINITY;
+            cb[1] = cb[3] = cb[5] = Float.NEGATIVE_INFINITY;
+            for (int i = left; i < right; i++) {
+                int o = objects[i];
+                include(b, primBounds, o);
+                for (int k = 0, c = 3 * o; k < 3; k++, c++) {
+                    if (centroids[c] < cb[2 * k + 0])
+                        cb[2 * k + 0] = centroids[c];
+                    if (centroids[c] > cb[2 * k + 1])
+                        cb[2 * k + 1] = centroids[c];
+                }
+            }
+            int n = right - left;
+            node.numNodes = 1;
+            if (n <= maxPrims || depth >= MAX_DEPTH)
+                return makeLeaf(node, left, n);
+
+            // bin objects along all three axes at once, small nodes don't need
+            // as many bins
+            int numBins = Math.min(NUM_BINS, 2 * n);
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = cb[2 * axis + 1] - cb[2 * axis + 0];
+                scale[axis] = extent > 0 ? numBins / extent : 0;
+            }
+            for (int i = 0; i < 3 * numBins; i++) {
+                binCount[i] = 0;
+                binBounds[6 * i + 0] = binBounds[6 * i + 2] = binBounds[6 * i + 4] = Float.POSITIVE_INFINITY;
+                binBounds[6 * i + 1] = binBounds[6 * i + 3] = binBounds[6 * i + 5] = Float.NEGATIVE_INFINITY;
+            }
+            for (int i = left; i < right; i++) {
+                int o = objects[i];
+                for (int axis = 0; axis < 3; axis++) {
+                    int bin = axis * numBins + binIndex(centroids[3 * o + axis], cb[2 * axis + 0], scale[axis], numBins);
+                    binCount[bin]++;
+                    include(binBounds, bin, primBounds, o);
+                }
+            }
+
+            // find the best split plane among all bins on all axes
+            int bestAxis = -1;
+            int bestBin = 0;
+            float bestCost = Float.POSITIVE_INFINITY;
+            for (int axis = 0; axis < 3; axis++) {
+                if (scale[axis] == 0)
+                    continue;
+                // sweep from the right to get the area of each right side
+                acc[0] = acc[2] = acc[4] = Float.POSITIVE_INFINITY;
+                acc[1] = acc[3] = acc[5] = Float.NEGATIVE_INFINITY;
+                int count = 0;
+                float area = 0;
+                for (int i = numBins - 1; i > 0; i--) {
+                    // empty bins don't change the area
+                    if (binCount[axis * numBins + i] != 0) {
+                        include(acc, binBounds, axis * numBins + i);
+                        count += binCount[axis * numBins + i];
+                        area = halfArea(acc);
+                    }
+                    rightArea[i] = area;
+                    rightCount[i] = count;
+                }
+                // sweep from the left and evaluate each split
+                acc[0] = acc[2] = acc[4] = Float.POSITIVE_INFINITY;
+                acc[1] = acc[3] = acc[5] = Float.NEGATIVE_INFINITY;
+                count = 0;
+                area = 0;
+                for (int i = 1; i < numBins; i++) {
+                    if (binCount[axis * numBins + i - 1] != 0) {
+                        include(acc, binBounds, axis * numBins + i - 1);
+                        count += binCount[axis * numBins + i - 1];
+                        area = halfArea(acc);
+                    }
+                    if (count == 0 || rightCount[i] == 0)
+                        continue;
+                    float cost = count * area + rightCount[i] * rightArea[i];
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = i;
+                    }
+                }
+            }
+            if (bestAxis == -1) {
+                // all centroids are in the same spot
+                if (n <= MAX_LEAF_SIZE)
+                    return makeLeaf(node, left, n);
+                return makeInner(node, left, left + n / 2, right, 0, depth, parallel);
+            }
+            float leafCost = n;
+            float splitCost = TRAVERSAL_COST + bestCost / halfArea(b);
+            if (n <= MAX_LEAF_SIZE && leafCost <= splitCost)
+                return makeLeaf(node, left, n);
+
+            // partition objects in place
+            float cmin = cb[2 * bestAxis + 0];
+            float s = scale[bestAxis];
+            int i = left;
+            int j = right - 1;
+            while (i <= j) {
+                if (binIndex(centroids[3 * objects[i] + bestAxis], cmin, s, numBins) < bestBin)
+                    i++;
+                else {
+                    int tmp = objects[i];
+                    objects[i] = objects[j];
+                    objects[j] = tmp;
+                    j--;
+                }
+            }
+            return makeInner(node, left, i, right, bestAxis, depth, parallel);
+        }
+
+        private BuildNode makeInner(BuildNode node, int left, int split, int right, int axis, int depth, boolean parallel) {
+            node.axis = axis;
+            if (parallel) {
+                BuildTask leftTask = new BuildTask(primBounds, centroids, left, split, depth + 1);
+                BuildTask rightTask = new BuildTask(primBounds, centroids, split, right, depth + 1);
+                rightTask.fork();
+                node.left = leftTask.compute();
+                node.right = rightTask.join();
+            } else {
+                node.left = buildNode(left, split, depth + 1, false);
+                node.right = buildNode(split, right, depth + 1, false);
+            }
+            node.numNodes = 1 + node.left.numNodes + node.right.numNodes;
+            return node;
+        }
+
+        private BuildNode makeLeaf(BuildNode node, int left, int n) {
+            node.offset = left;
+            node.count = n;
+            return node;
+        }
+    }
+
+    private static int binIndex(float c, float cmin, float scale, int numBins) {
+        int bin = (int) ((c - cmin) * scale);
+        return bin < 0 ? 0 : (bin >= numBins ? numBins - 1 : bin);
+    }
+
+    /**
+     * Grows the box stored at the start of <code>acc</code> to include box
+     * <code>i</code> of array <code>b</code>.
+     */
+    private static void include(float[] acc, float[] b, int i) {
+        include(acc, 0, b, i);
+    }
+
+    private static void include(float[] acc, int j, float[] b, int i) {
+        for (int k = 0, a = 6 * j, c = 6 * i; k < 3; k++, a += 2, c += 2) {
+            if (b[c] < acc[a])
+                acc[a] = b[c];
+            if (b[c + 1] > acc[a + 1])
+                acc[a + 1] = b[c + 1];
+        }
+    }
+
+    private static float halfArea(float[] b) {
+        return halfArea(b, 0);
+    }
+
+    private static float halfArea(float[] b, int i) {
+        float dx = b[6 * i + 1] - b[6 * i + 0];
+        float dy = b[6 * i + 3] - b[6 * i + 2];
+        float dz = b[6 * i + 5] - b[6 * i + 4];
+        if (!(dx >= 0) || !(dy >= 0) || !(dz >= 0))
+            return 0;
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private static class BuildStats {
+        private int numNodes;
+        private int numLeaves;
+        private int sumObjects;
+        private int minObjects;
+        private int maxObjects;
+        private int sumDepth;
+        private int minDepth;
+        private int maxDepth;
+
+        BuildStats() {
+            numNodes = numLeaves = 0;
+            sumObjects = 0;
+            minObjects = Integer.MAX_VALUE;
+            maxObjects = Integer.MIN_VALUE;
+            sumDepth = 0;
+            minDepth = Integer.MAX_VALUE;
+            maxDepth = Integer.MIN_VALUE;
+        }
+
+        void update(BoundingVolumeHierarchy bvh, int node, int depth) {
+            int n = bvh.nodes[2 * node + 1];
+            if (n < 0) {
+                numNodes++;
+                update(bvh, node + 1, depth + 1);
+                update(bvh, bvh.nodes[2 * node + 0], depth + 1);
+                return;
+            }
+            numLeaves++;
+            minDepth = Math.min(depth, minDepth);
+            maxDepth = Math.max(depth, maxDepth);
+            sumDepth += depth;
+            minObjects = Math.min(n, minObjects);
+            maxObjects = Math.max(n, maxObjects);
+            sumObjects += n;
+        }
+
+        void printStats() {
+            UI.printDetailed(Module.ACCEL, "BVH stats:");
+            UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
+            UI.printDetailed(Module.ACCEL, "  * Leaves:         %d", numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Objects: min    %d", minObjects);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumObjects / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxObjects);
+            UI.printDetailed(Module.ACCEL, "  * Depth:   min    %d", minDepth);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumDepth / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxDepth);
+        }
+    }
+
+    int[] getNodes() {
+        return nodes;
+    }
+
+    float[] getNodeBounds() {
+        return bounds;
+    }
+
+    int[] getObjects() {
+        return objects;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        AccelerationCache.writeInts(out, nodes);
+        AccelerationCache.writeFloats(out, bounds);
+        AccelerationCache.writeInts(out, objects);
+    }
+
+    public void read(PrimitiveList primitives, ByteBuffer in) {
+        this.primitives = primitives;
+        nodes = AccelerationCache.readInts(in);
+        bounds = AccelerationCache.readFloats(in);
+        objects = AccelerationCache.readInts(in);
+        buildCost = sahCost();
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        float orgX = r.ox;
+        float orgY = r.oy;
+        float orgZ = r.oz;
+        float invDirX = 1 / r.dx;
+        float invDirY = 1 / r.dy;
+        float invDirZ = 1 / r.dz;
+        // offsets of the near planes from the direction sign bit
+        int nearX = (Float.floatToRawIntBits(r.dx) >>> 31);
+        int nearY = (Float.floatToRawIntBits(r.dy) >>> 31) + 2;
+        int nearZ = (Float.floatToRawIntBits(r.dz) >>> 31) + 4;
+
+        if (intersectBox(0, r.getMin(), r.getMax(), orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ) == Float.POSITIVE_INFINITY)
+            return;
+
+        IntersectionState.StackNode[] stack = state.getStack();
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            int info = nodes[2 * node + 1];
+            if (info < 0) {
+                // inner node - test both children and visit the closest one
+                // first
+                int left = node + 1;
+                int right = nodes[2 * node + 0];
+                float intervalMin = r.getMin();
+                float intervalMax = r.getMax();
+                float tl = intersectBox(left, intervalMin, intervalMax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ);
+                float tr = intersectBox(right, intervalMin, intervalMax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ);
+                if (tl != Float.POSITIVE_INFINITY) {
+                    if (tr != Float.POSITIVE_INFINITY) {
+                        // push back node
+                        if (tl <= tr) {
+                            stack[stackPos].node = right;
+                            stack[stackPos].near = tr;
+                            node = left;
+                        } else {
+                            stack[stackPos].node = left;
+                            stack[stackPos].near = tl;
+                            node = right;
+                        }
+                        stackPos++;
+                    } else
+                        node = left;
+                    continue;
+                } else if (tr != Float.POSITIVE_INFINITY) {
+                    node = right;
+                    continue;
+                }
+            } else {
+                // leaf - test some objects
+                for (int i = nodes[2 * node + 0], n = info; n > 0; n--, i++) {
+                    primitives.intersectPrimitive(r, objects[i], state);
+                    if (state.isOccluded())
+                        return;
+                }
+            }
+            do {
+                // stack is empty?
+                if (stackPos == 0)
+                    return;
+                // move back up the stack, skipping nodes beyond the closest
+                // hit found so far
+                stackPos--;
+            } while (stack[stackPos].near > r.getMax());
+            node = stack[stackPos].node;
+        }
+    }
+
+    /**
+     * Clips the ray interval against the bounds of the specified node.
+     *
+     * @return distance at which the ray enters the box, or
+     *         {@link Float#POSITIVE_INFINITY} if the box is missed
+     */
+    private float intersectBox(int node, float intervalMin, float intervalMax, float orgX, float orgY, float orgZ, float invDirX, float invDirY, float invDirZ, int nearX, int nearY, int nearZ) {
+        int b = 6 * node;
+        float t1 = (bounds[b + nearX] - orgX) * invDirX;
+        float t2 = (bounds[b + (nearX ^ 1)] - orgX) * invDirX;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        t1 = (bounds[b + nearY] - orgY) * invDirY;
+        t2 = (bounds[b + (nearY ^ 1)] - orgY) * invDirY;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        t1 = (bounds[b + nearZ] - orgZ) * invDirZ;
+        t2 = (bounds[b + (nearZ ^ 1)] - orgZ) * invDirZ;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        return intervalMin <= intervalMax ? intervalMin : Float.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,427 @@
+package org.sunflow.core.accel;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.core.AccelerationCache;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PersistentAccelerationStructure;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.IntArray;
+
+/**
+ * Bounding interval hierarchy using a compact node encoding, meant for scenes
+ * too large for the regular {@link BoundingIntervalHierarchy}. The hierarchy
+ * is built the same way and then re-encoded with two ints per node instead of
+ * three: both clip planes of a node are quantized to 16 bits relative to the
+ * bounds of the node along its split axis, rounding outwards so that no
+ * primitive can be missed. Leaves store their object offset and count in the
+ * two words of a node, leaving no unused word behind. The bounds of the node
+ * are tracked during traversal to decode the planes.
+ */
+public class CompactBoundingIntervalHierarchy implements PersistentAccelerationStructure {
+    // reserved plane codes, all other codes are uniform steps across the node
+    private static final int NEG_INF = 0;
+    private static final int POS_INF = 0xFFFF;
+    private static final float INV_STEPS = 1.0f / 0xFFFF;
+
+    // node layout: 2 ints per node. The first word holds the node type and
+    // child offset exactly like the regular hierarchy, the second word holds
+    // the quantized lower plane in its upper 16 bits and the quantized upper
+    // plane in its lower 16 bits. Leaves store the number of objects instead.
+    private int[] tree;
+    private int[] objects;
+    private PrimitiveList primitives;
+    private BoundingBox bounds;
+
+    public void build(PrimitiveList primitives) {
+        BoundingIntervalHierarchy bih = new BoundingIntervalHierarchy();
+        bih.build(primitives);
+        this.primitives = primitives;
+        bounds = bih.getBounds();
+        objects = bih.getObjects();
+        int[] full = bih.getTree();
+        UI.printDetailed(Module.ACCEL, "Encoding compact tree ...");
+        Timer t = new Timer();
+        t.start();
+        IntArray tempTree = new IntArray(2 * (full.length / 3));
+        tempTree.add(0);
+        tempTree.add(0);
+        float[] box = { bounds.getMinimum().x, bounds.getMaximum().x,
+                bounds.getMinimum().y, bounds.getMaximum().y,
+                bounds.getMinimum().z, bounds.getMaximum().z };
+        encode(full, 0, tempTree, 0, box);
+        tree = tempTree.trim();
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Compact tree stats:");
+        UI.printDetailed(Module.ACCEL, "  * Encoding time:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s (%.2f%% of regular tree)", Memory.sizeof(tree), full.length > 0 ? 100.0 * tree.length / full.length : 0.0);
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+    }
+
+    /**
+     * Re-encodes the subtree of the regular hierarchy at <code>node</code>
+     * into the compact node at <code>cnode</code>. The box holds the bounds
+     * of the node as they will be decoded during traversal.
+     */
+    private void encode(int[] full, int node, IntArray tempTree, int cnode, float[] box) {
+        int tn = full[node];
+        int offset = tn & ~(7 << 29);
+        if ((tn & (3 << 30)) == (3 << 30)) {
+            // leaf
+            tempTree.set(cnode + 0, tn);
+            tempTree.set(cnode + 1, full[node + 1]);
+            return;
+        }
+        int axis = tn >>> 30;
+        float lo = box[2 * axis + 0];
+        float hi = box[2 * axis + 1];
+        float clipL = Float.intBitsToFloat(full[node + 1]);
+        float clipR = Float.intBitsToFloat(full[node + 2]);
+        if ((tn & (1 << 29)) != 0) {
+            // bvh2 clip node - the planes bound the single child
+            int ql = quantizeDown(clipL, lo, hi);
+            int qr = quantizeUp(clipR, lo, hi);
+            int child = tempTree.getSize();
+            tempTree.add(0);
+            tempTree.add(0);
+            tempTree.set(cnode + 0, (axis << 30) | (1 << 29) | child);
+            tempTree.set(cnode + 1, (ql << 16) | qr);
+            float[] childBox = box.clone();
+            childBox[2 * axis + 0] = decode(ql, lo, hi);
+            childBox[2 * axis + 1] = qr == POS_INF ? hi : decode(qr, lo, hi);
+            encode(full, offset, tempTree, child, childBox);
+            return;
+        }
+        // split node - the left child ends at the first plane, the right
+        // child starts at the second one
+        int ql = quantizeUp(clipL, lo, hi);
+        int qr = quantizeDown(clipR, lo, hi);
+        boolean hasLeft = ql != NEG_INF;
+        boolean hasRight = qr != POS_INF;
+        int nextIndex = tempTree.getSize();
+        // only allocate the children which can be reached, like the regular
+        // hierarchy does
+        if (hasLeft) {
+            tempTree.add(0);
+            tempTree.add(0);
+        } else
+            nextIndex -= 2;
+        if (hasRight) {
+            tempTree.add(0);
+            tempTree.add(0);
+        }
+        tempTree.set(cnode + 0, (axis << 30) | nextIndex);
+        tempTree.set(cnode + 1, (ql << 16) | qr);
+        if (hasLeft) {
+            float[] boxL = box.clone();
+            boxL[2 * axis + 1] = ql == POS_INF ? hi : decode(ql, lo, hi);
+            encode(full, offset, tempTree, nextIndex, boxL);
+        }
+        if (hasRight) {
+            float[] boxR = box.clone();
+            boxR[2 * axis + 0] = decode(qr, lo, hi);
+            encode(full, offset + 3, tempTree, nextIndex + 2, boxR);
+        }
+    }
+
+    /**
+     * Decodes a plane the same way traversal does, without handling the
+     * reserved codes.
+     */
+    private static float decode(int q, float lo, float hi) {
+        float scale = (hi - lo) * INV_STEPS;
+        return lo + q * scale;
+    }
+
+    /**
+     * Finds the smallest code decoding to a plane at or above the specified
+     * value.
+     */
+    private static int quantizeUp(float v, float lo, float hi) {
+        if (v == Float.NEGATIVE_INFINITY)
+            return NEG_INF;
+        if (v == Float.POSITIVE_INFINITY)
+            return POS_INF;
+        // decoding is monotonic, so binary search over the finite codes.
+        // Falls back to infinity when the value can't be represented.
+        int min = 1, max = POS_INF;
+        while (min < max) {
+            int q = (min + max) >>> 1;
+            if (decode(q, lo, hi) >= v)
+                max = q;
+            else
+                min = q + 1;
+        }
+        return min;
+    }
+
+    /**
+     * Finds the largest code decoding to a plane at or below the specified
+     * value.
+     */
+    private static int quantizeDown(float v, float lo, float hi) {
+        if (v == Float.NEGATIVE_INFINITY)
+            return NEG_INF;
+        if (v == Float.POSITIVE_INFINITY)
+            return POS_INF;
+        int min = NEG_INF, max = POS_INF - 1;
+        while (min < max) {
+            int q = (min + max + 1) >>> 1;
+            if (decode(q, lo, hi) <= v)
+                min = q;
+            else
+                max = q - 1;
+        }
+        return min;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        AccelerationCache.writeBounds(out, bounds);
+        AccelerationCache.writeInts(out, tree);
+        AccelerationCache.writeInts(out, objects);
+    }
+
+    public void read(PrimitiveList primitives, ByteBuffer in) {
+        this.primitives = primitives;
+        bounds = AccelerationCache.readBounds(in);
+        tree = AccelerationCache.readInts(in);
+        objects = AccelerationCache.readInts(in);
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        float intervalMin = r.getMin();
+        float intervalMax = r.getMax();
+        float orgX = r.ox;
+        float dirX = r.dx, invDirX = 1 / dirX;
+        float t1, t2;
+        t1 = (bounds.getMinimum().x - orgX) * invDirX;
+        t2 = (bounds.getMaximum().x - orgX) * invDirX;
+        if (invDirX > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return;
+        float orgY = r.oy;
+        float dirY = r.dy, invDirY = 1 / dirY;
+        t1 = (bounds.getMinimum().y - orgY) * invDirY;
+        t2 = (bounds.getMaximum().y - orgY) * invDirY;
+        if (invDirY > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return;
+        float orgZ = r.oz;
+        float dirZ = r.dz, invDirZ = 1 / dirZ;
+        t1 = (bounds.getMinimum().z - orgZ) * invDirZ;
+        t2 = (bounds.getMaximum().z - orgZ) * invDirZ;
+        if (invDirZ > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return;
+
+        // sign of the direction selects the front child
+        boolean negX = Float.floatToRawIntBits(dirX) < 0;
+        boolean negY = Float.floatToRawIntBits(dirY) < 0;
+        boolean negZ = Float.floatToRawIntBits(dirZ) < 0;
+
+        // bounds of the current node
+        float minX = bounds.getMinimum().x, maxX = bounds.getMaximum().x;
+        float minY = bounds.getMinimum().y, maxY = bounds.getMaximum().y;
+        float minZ = bounds.getMinimum().z, maxZ = bounds.getMaximum().z;
+
+        IntersectionState.StackNode[] stack = state.getStack();
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            pushloop: while (true) {
+                int tn = tree[node];
+                int offset = tn & ~(7 << 29);
+                if ((tn & (3 << 30)) == (3 << 30)) {
+                    // leaf - test some objects
+                    int n = tree[node + 1];
+                    while (n > 0) {
+                        primitives.intersectPrimitive(r, objects[offset], state);
+                        if (state.isOccluded())
+                            return;
+                        n--;
+                        offset++;
+                    }
+                    break pushloop;
+                }
+                int axis = tn >>> 30;
+                float lo, hi, org, invDir;
+                boolean neg;
+                if (axis == 0) {
+                    lo = minX;
+                    hi = maxX;
+                    org = orgX;
+                    invDir = invDirX;
+                    neg = negX;
+                } else if (axis == 1) {
+                    lo = minY;
+                    hi = maxY;
+                    org = orgY;
+                    invDir = invDirY;
+                    neg = negY;
+                } else {
+                    lo = minZ;
+                    hi = maxZ;
+                    org = orgZ;
+                    invDir = invDirZ;
+                    neg = negZ;
+                }
+                // decode both planes
+                int q = tree[node + 1];
+                int ql = q >>> 16;
+                int qr = q & 0xFFFF;
+                float scale = (hi - lo) * INV_STEPS;
+                float fl = lo + ql * scale;
+                float fr = lo + qr * scale;
+                float tl = ((ql == NEG_INF ? Float.NEGATIVE_INFINITY : (ql == POS_INF ? Float.POSITIVE_INFINITY : fl)) - org) * invDir;
+                float tr = ((qr == NEG_INF ? Float.NEGATIVE_INFINITY : (qr == POS_INF ? Float.POSITIVE_INFINITY : fr)) - org) * invDir;
+                if ((tn & (1 << 29)) != 0) {
+                    // bvh2 clip node
+                    float tf = neg ? tr : tl;
+                    float tb = neg ? tl : tr;
+                    node = offset;
+                    intervalMin = (tf >= intervalMin) ? tf : intervalMin;
+                    intervalMax = (tb <= intervalMax) ? tb : intervalMax;
+                    if (intervalMin > intervalMax)
+                        break pushloop;
+                    lo = fl;
+                    hi = qr == POS_INF ? hi : fr;
+                } else {
+                    float leftMax = ql == POS_INF ? hi : fl;
+                    float tf, tb, frontMin, frontMax, backMin, backMax;
+                    int front, back;
+                    if (neg) {
+                        tf = tr;
+                        tb = tl;
+                        front = offset + 2;
+                        back = offset;
+                        frontMin = fr;
+                        frontMax = hi;
+                        backMin = lo;
+                        backMax = leftMax;
+                    } else {
+                        tf = tl;
+                        tb = tr;
+                        front = offset;
+                        back = offset + 2;
+                        frontMin = lo;
+                        frontMax = leftMax;
+                        backMin = fr;
+                        backMax = hi;
+                    }
+                    // ray passes between clip zones
+                    if (tf < intervalMin && tb > intervalMax)
+                        break pushloop;
+                    if (tf < intervalMin) {
+                        // ray passes through far node only
+                        node = back;
+                        lo = backMin;
+                        hi = backMax;
+                        intervalMin = (tb >= intervalMin) ? tb : intervalMin;
+                    } else if (tb > intervalMax) {
+                        // ray passes through near node only
+                        node = front;
+                        lo = frontMin;
+                        hi = frontMax;
+                        intervalMax = (tf <= intervalMax) ? tf : intervalMax;
+                    } else {
+                        // EP : Give up if stack is full
+                        if (stackPos == stack.length)
+                            break pushloop;
+                        // EP : End of modification
+                        // ray passes through both nodes
+                        // push back node along with its bounds
+                        IntersectionState.StackNode entry = stack[stackPos];
+                        entry.node = back;
+                        entry.near = (tb >= intervalMin) ? tb : intervalMin;
+                        entry.far = intervalMax;
+                        float[] b = entry.bounds;
+                        b[0] = minX;
+                        b[1] = maxX;
+                        b[2] = minY;
+                        b[3] = maxY;
+                        b[4] = minZ;
+                        b[5] = maxZ;
+                        b[2 * axis + 0] = backMin;
+                        b[2 * axis + 1] = backMax;
+                        stackPos++;
+                        // update ray interval for front node
+                        intervalMax = (tf <= intervalMax) ? tf : intervalMax;
+                        node = front;
+                        lo = frontMin;
+                        hi = frontMax;
+                    }
+                }
+                // store the bounds of the new node
+                if (axis == 0) {
+                    minX = lo;
+                    maxX = hi;
+                } else if (axis == 1) {
+                    minY = lo;
+                    maxY = hi;
+                } else {
+                    minZ = lo;
+                    maxZ = hi;
+                }
+            } // traversal loop
+            do {
+                // stack is empty?
+                if (stackPos == 0 || Float.isNaN(r.dx) || Float.isNaN(r.dy) || Float.isNaN(r.dz))
+                    return;
+                // move back up the stack
+                stackPos--;
+                intervalMin = stack[stackPos].near;
+                if (r.getMax() < intervalMin)
+                    continue;
+                node = stack[stackPos].node;
+                intervalMax = stack[stackPos].far;
+                float[] b = stack[stackPos].bounds;
+                minX = b[0];
+                maxX = b[1];
+                minY = b[2];
+                maxY = b[3];
+                minZ = b[4];
+                maxZ = b[5];
+                break;
+            } while (true);
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package org.sunflow.core.accel;
 
+import java.io.DataOutput;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.AccelerationCache;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PacketAccelerationStructure;
+import org.sunflow.core.PersistentAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
@@ -14,20 +22,30 @@ import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
+import org.sunflow.system.WorkerPool;
 import org.sunflow.util.IntArray;
 
-public class KDTree implements AccelerationStructure {
+public class KDTree implements PersistentAccelerationStructure, PacketAccelerationStructure {
     private int[] tree;
     private int[] primitives;
     private PrimitiveList primitiveList;
     private BoundingBox bounds;
 
     private int maxPrims;
+    private int forkDepth;
+    // one left/right table per build thread, only used while building
+    private ConcurrentHashMap<Thread, byte[]> leftRightTables;
 
     private static final float INTERSECT_COST = 0.5f;
     private static final float TRAVERSAL_COST = 1;
     private static final float EMPTY_BONUS = 0.2f;
     private static final int MAX_DEPTH = 64;
+    // packets with fewer active rays are traced one ray at a time
+    private static final int MIN_PACKET_RAYS = 4;
+    // smallest subtree worth building on another thread
+    private static final int MIN_FORK_OBJECTS = 1024;
+    // smallest number of splits worth sorting in parallel
+    private static final int MIN_PARALLEL_SPLITS = 1 << 16;
 
     private static boolean dump = false;
     private static String dumpPrefix = "kdtree";
@@ -55,6 +73,11 @@ public class KDTree implements AccelerationStructure {
         private int numLeaves3;
         private int numLeaves4;
         private int numLeaves4p;
+        // time spent in each phase of the recursion, summed over all threads
+        private long searchTime;
+        private long partitionTime;
+        private long leafTime;
+        private long mergeTime;
 
         BuildStats() {
             numNodes = numLeaves = 0;
@@ -70,12 +93,34 @@ public class KDTree implements AccelerationStructure {
             numLeaves3 = 0;
             numLeaves4 = 0;
             numLeaves4p = 0;
+            searchTime = partitionTime = leafTime = mergeTime = 0;
         }
 
         void updateInner() {
             numNodes++;
         }
 
+        void add(BuildStats stats) {
+            numNodes += stats.numNodes;
+            numLeaves += stats.numLeaves;
+            sumObjects += stats.sumObjects;
+            minObjects = Math.min(stats.minObjects, minObjects);
+            maxObjects = Math.max(stats.maxObjects, maxObjects);
+            sumDepth += stats.sumDepth;
+            minDepth = Math.min(stats.minDepth, minDepth);
+            maxDepth = Math.max(stats.maxDepth, maxDepth);
+            numLeaves0 += stats.numLeaves0;
+            numLeaves1 += stats.numLeaves1;
+            numLeaves2 += stats.numLeaves2;
+            numLeaves3 += stats.numLeaves3;
+            numLeaves4 += stats.numLeaves4;
+            numLeaves4p += stats.numLeaves4p;
+            searchTime += stats.searchTime;
+            partitionTime += stats.partitionTime;
+            leafTime += stats.leafTime;
+            mergeTime += stats.mergeTime;
+        }
+
         void updateLeaf(int depth, int n) {
             numLeaves++;
             minDepth = Math.min(depth, minDepth);
@@ -124,6 +169,13 @@ public class KDTree implements AccelerationStructure {
             UI.printDetailed(Module.ACCEL, "               N=4  %3d%%", 100 * numLeaves4 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N>4  %3d%%", 100 * numLeaves4p / numLeaves);
         }
+
+        void printTimes() {
+            UI.printDetailed(Module.ACCEL, "  * Split search:   %s", Timer.toString(searchTime));
+            UI.printDetailed(Module.ACCEL, "  * Partitioning:   %s", Timer.toString(partitionTime));
+            UI.printDetailed(Module.ACCEL, "  * Leaf creation:  %s", Timer.toString(leafTime));
+            UI.printDetailed(Module.ACCEL, "  * Subtree merges: %s", Timer.toString(mergeTime));
+        }
     }
 
     public static void setDumpMode(boolean dump, String prefix) {
@@ -139,6 +191,13 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Intersect cost: %.2f", INTERSECT_COST);
         UI.printDetailed(Module.ACCEL, "  * Empty bonus:    %.2f", EMPTY_BONUS);
         UI.printDetailed(Module.ACCEL, "  * Dump leaves:    %s", dump ? "enabled" : "disabled");
+        // only fork subtrees near the root, enough to keep all threads busy
+        int threads = WorkerPool.getThreads();
+        forkDepth = 0;
+        if (threads > 1)
+            for (forkDepth = 3; (1 << (forkDepth - 3)) < threads; forkDepth++) {
+            }
+        UI.printDetailed(Module.ACCEL, "  * Build threads:  %d", threads);
         Timer total = new Timer();
         total.start();
         primitiveList = primitives;
@@ -148,21 +207,10 @@ public class KDTree implements AccelerationStructure {
         BuildTask task = new BuildTask(nPrim);
         Timer prepare = new Timer();
         prepare.start();
-        for (int i = 0; i < nPrim; i++) {
-            for (int axis = 0; axis < 3; axis++) {
-                float ls = primitiveList.getPrimitiveBound(i, 2 * axis + 0);
-                float rs = primitiveList.getPrimitiveBound(i, 2 * axis + 1);
-                if (ls == rs) {
-                    // flat in this dimension
-                    task.splits[nSplits] = pack(ls, PLANAR, axis, i);
-                    nSplits++;
-                } else {
-                    task.splits[nSplits + 0] = pack(ls, OPENED, axis, i);
-                    task.splits[nSplits + 1] = pack(rs, CLOSED, axis, i);
-                    nSplits += 2;
-                }
-            }
-        }
+        if (threads > 1 && 6 * nPrim >= MIN_PARALLEL_SPLITS)
+            nSplits = prepareSplits(task.splits, threads);
+        else
+            nSplits = prepareSplits(task.splits, 0, nPrim, 0);
         task.n = nSplits;
         prepare.end();
         Timer t = new Timer();
@@ -174,11 +222,25 @@ public class KDTree implements AccelerationStructure {
         // sort it
         Timer sorting = new Timer();
         sorting.start();
-        radix12(task.splits, task.n);
+        if (threads > 1 && task.n >= MIN_PARALLEL_SPLITS)
+            radix12(task.splits, task.n, threads);
+        else
+            radix12(task.splits, task.n);
         sorting.end();
         // build the actual tree
         BuildStats stats = new BuildStats();
-        buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        if (forkDepth > 0) {
+            SubtreeTask root = new SubtreeTask(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1);
+            task = null;
+            leftRightTables = new ConcurrentHashMap<Thread, byte[]>();
+            WorkerPool.get().invoke(root);
+            leftRightTables = null;
+            root.merge(tempTree, 0, tempList, stats);
+        } else {
+            // 2 bits per object
+            task.leftRightTable = new byte[(nPrim + 3) / 4];
+            buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        }
         t.end();
         // write out final arrays
         // free some memory
@@ -195,6 +257,7 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Prepare time:   %s", prepare);
         UI.printDetailed(Module.ACCEL, "  * Sorting time:   %s", sorting);
         UI.printDetailed(Module.ACCEL, "  * Tree creation:  %s", t);
+        stats.printTimes();
         UI.printDetailed(Module.ACCEL, "  * Build time:     %s", total);
         if (dump) {
             try {
@@ -403,6 +466,156 @@ public class KDTree implements AccelerationStructure {
         }
     }
 
+    /**
+     * Write the split candidates of a range of primitives.
+     * 
+     * @return index following the last split written
+     */
+    private int prepareSplits(long[] splits, int start, int end, int nSplits) {
+        for (int i = start; i < end; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                float ls = primitiveList.getPrimitiveBound(i, 2 * axis + 0);
+                float rs = primitiveList.getPrimitiveBound(i, 2 * axis + 1);
+                if (ls == rs) {
+                    // flat in this dimension
+                    splits[nSplits] = pack(ls, PLANAR, axis, i);
+                    nSplits++;
+                } else {
+                    splits[nSplits + 0] = pack(ls, OPENED, axis, i);
+                    splits[nSplits + 1] = pack(rs, CLOSED, axis, i);
+                    nSplits += 2;
+                }
+            }
+        }
+        return nSplits;
+    }
+
+    /**
+     * Write the split candidates of all primitives using several threads. The
+     * number of splits of each chunk of primitives is counted first so that
+     * the splits end up in the same order as with a single thread.
+     * 
+     * @return number of splits written
+     */
+    private int prepareSplits(final long[] splits, int numChunks) {
+        final int nPrim = primitiveList.getNumPrimitives();
+        final int[] start = new int[numChunks + 1];
+        for (int c = 0; c <= numChunks; c++)
+            start[c] = (int) ((long) nPrim * c / numChunks);
+        final int[] offsets = new int[numChunks + 1];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            final int chunk = c;
+            tasks[c] = new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    int n = 0;
+                    for (int i = start[chunk]; i < start[chunk + 1]; i++)
+                        for (int axis = 0; axis < 3; axis++)
+                            n += primitiveList.getPrimitiveBound(i, 2 * axis + 0) == primitiveList.getPrimitiveBound(i, 2 * axis + 1) ? 1 : 2;
+                    offsets[chunk + 1] = n;
+                }
+            };
+        }
+        WorkerPool.get().invoke(new ForkAll(tasks));
+        for (int c = 0; c < numChunks; c++)
+            offsets[c + 1] += offsets[c];
+        for (int c = 0; c < numChunks; c++) {
+            final int chunk = c;
+            tasks[c] = new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    prepareSplits(splits, start[chunk], start[chunk + 1], offsets[chunk]);
+                }
+            };
+        }
+        WorkerPool.get().invoke(new ForkAll(tasks));
+        return offsets[numChunks];
+    }
+
+    // parallel version of radix12 - sorts each digit by having every thread
+    // histogram and then scatter its own chunk of the input, the result is
+    // identical to the serial sort
+    private static void radix12(final long[] splits, final int n, int numChunks) {
+        final long[] sorted = new long[n];
+        final int[] start = new int[numChunks + 1];
+        for (int c = 0; c <= numChunks; c++)
+            start[c] = (int) ((long) n * c / numChunks);
+        final int[][] hist = new int[numChunks][512];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numChunks];
+        final int[] shifts = { 28, 37, 46, 55 };
+        for (int pass = 0; pass < 4; pass++) {
+            final int shift = shifts[pass];
+            final long[] src = (pass & 1) == 0 ? splits : sorted;
+            final long[] dst = (pass & 1) == 0 ? sorted : splits;
+            // histogram each chunk
+            for (int c = 0; c < numChunks; c++) {
+                final int chunk = c;
+                tasks[c] = new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        int[] h = hist[chunk];
+                        for (int i = 0; i < 512; i++)
+                            h[i] = 0;
+                        for (int i = start[chunk]; i < start[chunk + 1]; i++)
+                            h[(int) (src[i] >>> shift) & 0x1FF]++;
+                    }
+                };
+            }
+            WorkerPool.get().invoke(new ForkAll(tasks));
+            // turn counts into write positions, chunks keep their order within
+            // each bucket
+            int sum = 0;
+            for (int i = 0; i < 512; i++) {
+                for (int c = 0; c < numChunks; c++) {
+                    int count = hist[c][i];
+                    hist[c][i] = sum;
+                    sum += count;
+                }
+            }
+            // scatter each chunk
+            for (int c = 0; c < numChunks; c++) {
+                final int chunk = c;
+                tasks[c] = new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        int[] h = hist[chunk];
+                        for (int i = start[chunk]; i < start[chunk + 1]; i++) {
+                            long pi = src[i];
+                            dst[h[(int) (pi >>> shift) & 0x1FF]++] = pi;
+                        }
+                    }
+                };
+            }
+            WorkerPool.get().invoke(new ForkAll(tasks));
+        }
+    }
+
+    /**
+     * Runs a set of independent tasks and waits for all of them.
+     */
+    private static final class ForkAll extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ForkJoinTask<?>[] tasks;
+
+        ForkAll(ForkJoinTask<?>[] tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
     private static class BuildTask {
         long[] splits;
         int numObjects;
@@ -413,8 +626,6 @@ public class KDTree implements AccelerationStructure {
             splits = new long[6 * numObjects];
             this.numObjects = numObjects;
             n = 0;
-            // 2 bits per object
-            leftRightTable = new byte[(numObjects + 3) / 4];
         }
 
         BuildTask(int numObjects, BuildTask parent) {
@@ -428,6 +639,7 @@ public class KDTree implements AccelerationStructure {
     private void buildTree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth, IntArray tempTree, int offset, IntArray tempList, BuildStats stats) {
         // get node bounding box extents
         if (task.numObjects > maxPrims && depth < MAX_DEPTH) {
+            long searchStart = System.nanoTime();
             float dx = maxx - minx;
             float dy = maxy - miny;
             float dz = maxz - minz;
@@ -522,6 +734,8 @@ public class KDTree implements AccelerationStructure {
                 if (numLeft != task.numObjects || numRight != 0)
                     UI.printError(Module.ACCEL, "Didn't scan full range of objects @depth=%d. Left overs for axis %d: [L: %d] [R: %d]", depth, axis, numLeft, numRight);
             }
+            long partitionStart = System.nanoTime();
+            stats.searchTime += partitionStart - searchStart;
             // found best split?
             if (bestAxis != -1) {
                 // allocate space for child nodes
@@ -595,33 +809,39 @@ public class KDTree implements AccelerationStructure {
                 // create current node
                 tempTree.set(offset + 0, (bestAxis << 30) | nextOffset);
                 tempTree.set(offset + 1, Float.floatToRawIntBits(bestSplit));
+                stats.partitionTime += System.nanoTime() - partitionStart;
                 // recurse for child nodes - free object arrays after each step
                 stats.updateInner();
-                switch (bestAxis) {
-                    case 0:
-                        buildTree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(bestSplit, maxx, miny, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 1:
-                        buildTree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, bestSplit, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    case 2:
-                        buildTree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
-                        taskL = null;
-                        buildTree(minx, maxx, miny, maxy, bestSplit, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
-                        taskR = null;
-                        return;
-                    default:
-                        assert false;
+                float lmaxx = bestAxis == 0 ? bestSplit : maxx;
+                float lmaxy = bestAxis == 1 ? bestSplit : maxy;
+                float lmaxz = bestAxis == 2 ? bestSplit : maxz;
+                float rminx = bestAxis == 0 ? bestSplit : minx;
+                float rminy = bestAxis == 1 ? bestSplit : miny;
+                float rminz = bestAxis == 2 ? bestSplit : minz;
+                if (depth <= forkDepth && bnr >= MIN_FORK_OBJECTS) {
+                    // build the right child on another thread, into its own
+                    // arrays which get appended once the left child is done
+                    // so the final layout matches the serial build
+                    SubtreeTask right = new SubtreeTask(rminx, maxx, rminy, maxy, rminz, maxz, taskR, depth + 1);
+                    taskR = null;
+                    right.fork();
+                    buildTree(minx, lmaxx, miny, lmaxy, minz, lmaxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                    taskL = null;
+                    right.join();
+                    long mergeStart = System.nanoTime();
+                    right.merge(tempTree, nextOffset + 2, tempList, stats);
+                    stats.mergeTime += System.nanoTime() - mergeStart;
+                } else {
+                    buildTree(minx, lmaxx, miny, lmaxy, minz, lmaxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                    taskL = null;
+                    buildTree(rminx, maxx, rminy, maxy, rminz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
+                    taskR = null;
                 }
+                return;
             }
         }
         // create leaf node
+        long leafStart = System.nanoTime();
         int listOffset = tempList.getSize();
         int n = 0;
         for (int i = 0; i < task.n; i++) {
@@ -638,6 +858,96 @@ public class KDTree implements AccelerationStructure {
         tempTree.set(offset + 1, task.numObjects);
         // free some memory
         task.splits = null;
+        stats.leafTime += System.nanoTime() - leafStart;
+    }
+
+    /**
+     * Builds a subtree on a thread of the {@link WorkerPool}. The nodes are
+     * stored in private arrays with the subtree root at offset 0 and must be
+     * relocated with {@link #merge(IntArray, int, IntArray, BuildStats)}.
+     */
+    private final class SubtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final float minx, maxx, miny, maxy, minz, maxz;
+        private final int depth;
+        private BuildTask task;
+        private IntArray tree;
+        private IntArray list;
+        private BuildStats stats;
+
+        SubtreeTask(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth) {
+            this.minx = minx;
+            this.maxx = maxx;
+            this.miny = miny;
+            this.maxy = maxy;
+            this.minz = minz;
+            this.maxz = maxz;
+            this.depth = depth;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            // the left/right table is indexed by object and objects can
+            // straddle splits, so each thread needs its own. A thread only
+            // runs another subtree while this one waits for a child, which is
+            // after the table was last used for the current node.
+            Thread thread = Thread.currentThread();
+            byte[] lrtable = leftRightTables.get(thread);
+            if (lrtable == null) {
+                // 2 bits per object
+                lrtable = new byte[(primitiveList.getNumPrimitives() + 3) / 4];
+                leftRightTables.put(thread, lrtable);
+            }
+            task.leftRightTable = lrtable;
+            tree = new IntArray();
+            list = new IntArray();
+            stats = new BuildStats();
+            tree.add(0);
+            tree.add(0);
+            buildTree(minx, maxx, miny, maxy, minz, maxz, task, depth, tree, 0, list, stats);
+            task = null;
+        }
+
+        /**
+         * Append this subtree to the end of the specified arrays and store its
+         * root node at the given offset.
+         */
+        void merge(IntArray tempTree, int offset, IntArray tempList, BuildStats tempStats) {
+            int treeBase = tempTree.getSize() - 2;
+            int listBase = tempList.getSize();
+            for (int i = 0; i < tree.getSize(); i += 2) {
+                int tn = tree.get(i);
+                if ((tn >>> 30) == 3)
+                    tn += listBase;
+                else
+                    tn += treeBase;
+                if (i == 0) {
+                    tempTree.set(offset + 0, tn);
+                    tempTree.set(offset + 1, tree.get(1));
+                } else {
+                    tempTree.add(tn);
+                    tempTree.add(tree.get(i + 1));
+                }
+            }
+            for (int i = 0; i < list.getSize(); i++)
+                tempList.add(list.get(i));
+            tempStats.add(stats);
+            tree = list = null;
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        AccelerationCache.writeBounds(out, bounds);
+        AccelerationCache.writeInts(out, tree);
+        AccelerationCache.writeInts(out, primitives);
+    }
+
+    public void read(PrimitiveList primitives, ByteBuffer in) {
+        primitiveList = primitives;
+        bounds = AccelerationCache.readBounds(in);
+        tree = AccelerationCache.readInts(in);
+        this.primitives = AccelerationCache.readInts(in);
     }
 
     public void intersect(Ray r, IntersectionState state) {
@@ -695,6 +1005,18 @@ public class KDTree implements AccelerationStructure {
         }
         if (intervalMin > intervalMax)
             return;
+        traverse(r, state, 0, intervalMin, intervalMax);
+    }
+
+    /**
+     * Intersect a single ray with the subtree below the specified node,
+     * between the given distances along the ray.
+     */
+    private void traverse(Ray r, IntersectionState state, int node, float intervalMin, float intervalMax) {
+        float orgX = r.ox, orgY = r.oy, orgZ = r.oz;
+        float dirX = r.dx, invDirX = 1 / dirX;
+        float dirY = r.dy, invDirY = 1 / dirY;
+        float dirZ = r.dz, invDirZ = 1 / dirZ;
 
         // compute custom offsets from direction sign bit
         int offsetXFront = (Float.floatToRawIntBits(dirX) & (1 << 31)) >>> 30;
@@ -707,7 +1029,6 @@ public class KDTree implements AccelerationStructure {
 
         IntersectionState.StackNode[] stack = state.getStack();
         int stackPos = 0;
-        int node = 0;
 
         while (true) {
             int tn = tree[node];
@@ -775,6 +1096,8 @@ public class KDTree implements AccelerationStructure {
                     int n = tree[node + 1];
                     while (n > 0) {
                         primitiveList.intersectPrimitive(r, primitives[offset], state);
+                        if (state.isOccluded())
+                            return;
                         n--;
                         offset++;
                     }
@@ -797,4 +1120,141 @@ public class KDTree implements AccelerationStructure {
             } // switch
         } // traversal loop
     }
+
+    public void intersect(RayPacket packet) {
+        int count = packet.clip(bounds);
+        int[] active = packet.getActiveRays();
+        float[] near = packet.getNear();
+        float[] far = packet.getFar();
+        float intervalMin = packet.getMinNear();
+        float intervalMax = packet.getMaxFar();
+
+        // all rays share the same direction signs
+        Ray r = packet.getRay(0);
+        int[] offsetFront = {
+                (Float.floatToRawIntBits(r.dx) & (1 << 31)) >>> 30,
+                (Float.floatToRawIntBits(r.dy) & (1 << 31)) >>> 30,
+                (Float.floatToRawIntBits(r.dz) & (1 << 31)) >>> 30 };
+
+        RayPacket.StackNode[] stack = packet.getStack();
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            if (count < MIN_PACKET_RAYS) {
+                // too few rays left to share the traversal, finish the
+                // subtree one ray at a time
+                for (int j = 0; j < count; j++) {
+                    int i = active[j];
+                    traverse(packet.getRay(i), packet.getState(i), node, near[i], far[i]);
+                }
+            } else if ((tree[node] & (3 << 30)) != 3 << 30) {
+                int tn = tree[node];
+                int a = tn >>> 30;
+                int offset = tn & ~(3 << 30);
+                float split = Float.intBitsToFloat(tree[node + 1]);
+                int front = offset + offsetFront[a];
+                int back = offset + (offsetFront[a] ^ 2);
+                // the whole packet goes through one side of the split, the
+                // intervals of the rays don't change
+                if (packet.getMinDistance(a, split) > intervalMax) {
+                    node = front;
+                    continue;
+                }
+                if (packet.getMaxDistance(a, split) < intervalMin) {
+                    node = back;
+                    continue;
+                }
+                // split the interval of each ray
+                float[] org = packet.getOrigins(a);
+                float[] invDir = packet.getInvDirections(a);
+                RayPacket.StackNode e = stack[stackPos];
+                int[] backRays = e.rays;
+                float[] backNear = e.rayNear;
+                float[] backFar = e.rayFar;
+                float frontMin = Float.POSITIVE_INFINITY, frontMax = Float.NEGATIVE_INFINITY;
+                float backMin = Float.POSITIVE_INFINITY, backMax = Float.NEGATIVE_INFINITY;
+                int frontCount = 0, backCount = 0;
+                for (int j = 0; j < count; j++) {
+                    int i = active[j];
+                    float tmin = near[i];
+                    float tmax = far[i];
+                    float d = (split - org[i]) * invDir[i];
+                    float bn = (d >= tmin) ? d : tmin;
+                    if (bn <= tmax) {
+                        backNear[i] = bn;
+                        backFar[i] = tmax;
+                        backRays[backCount++] = i;
+                        backMin = bn < backMin ? bn : backMin;
+                        backMax = tmax > backMax ? tmax : backMax;
+                    }
+                    float ff = (d <= tmax) ? d : tmax;
+                    if (tmin <= ff) {
+                        far[i] = ff;
+                        active[frontCount++] = i;
+                        frontMin = tmin < frontMin ? tmin : frontMin;
+                        frontMax = ff > frontMax ? ff : frontMax;
+                    }
+                }
+                if (frontCount > 0) {
+                    if (backCount > 0) {
+                        // push back node
+                        e.node = back;
+                        e.count = backCount;
+                        e.near = backMin;
+                        e.far = backMax;
+                        stackPos++;
+                    }
+                    node = front;
+                    intervalMin = frontMin;
+                    intervalMax = frontMax;
+                    count = frontCount;
+                    continue;
+                }
+                if (backCount > 0) {
+                    for (int j = 0; j < backCount; j++) {
+                        int i = backRays[j];
+                        near[i] = backNear[i];
+                        far[i] = backFar[i];
+                        active[j] = i;
+                    }
+                    node = back;
+                    intervalMin = backMin;
+                    intervalMax = backMax;
+                    count = backCount;
+                    continue;
+                }
+            } else {
+                // leaf - test some objects
+                int offset = tree[node] & ~(3 << 30);
+                for (int n = tree[node + 1]; n > 0; n--, offset++)
+                    packet.intersectPrimitive(primitiveList, primitives[offset], active, count);
+            }
+            // move back up the stack, dropping the rays which have hit
+            // something closer than the node
+            do {
+                // stack is empty?
+                if (stackPos == 0)
+                    return;
+                stackPos--;
+                RayPacket.StackNode e = stack[stackPos];
+                count = 0;
+                intervalMin = Float.POSITIVE_INFINITY;
+                intervalMax = Float.NEGATIVE_INFINITY;
+                for (int j = 0; j < e.count; j++) {
+                    int i = e.rays[j];
+                    float tmin = e.rayNear[i];
+                    if (packet.isActive(i, tmin)) {
+                        float tmax = e.rayFar[i];
+                        near[i] = tmin;
+                        far[i] = tmax;
+                        active[count++] = i;
+                        intervalMin = tmin < intervalMin ? tmin : intervalMin;
+                        intervalMax = tmax > intervalMax ? tmax : intervalMax;
+                    }
+                }
+                node = e.node;
+            } while (count == 0);
+        } // traversal loop
+    }
 }
\ No newline at end of file
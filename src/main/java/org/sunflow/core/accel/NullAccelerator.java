@@ -1,11 +1,12 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
 import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PacketAccelerationStructure;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
 
-public class NullAccelerator implements AccelerationStructure {
+public class NullAccelerator implements PacketAccelerationStructure {
     private PrimitiveList primitives;
     private int n;
 
@@ -20,7 +21,19 @@ public class NullAccelerator implements AccelerationStructure {
     }
 
     public void intersect(Ray r, IntersectionState state) {
-        for (int i = 0; i < n; i++)
+        for (int i = 0; i < n; i++) {
             primitives.intersectPrimitive(r, i, state);
+            if (state.isOccluded())
+                return;
+        }
+    }
+
+    public void intersect(RayPacket packet) {
+        int[] active = packet.getActiveRays();
+        int size = packet.getSize();
+        for (int i = 0; i < size; i++)
+            active[i] = i;
+        for (int i = 0; i < n; i++)
+            packet.intersectPrimitive(primitives, i, active, size);
     }
 }
\ No newline at end of file
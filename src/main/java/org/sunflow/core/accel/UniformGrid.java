@@ -7,6 +7,7 @@ import org.sunflow.core.Ray;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -96,6 +97,7 @@ public final class UniformGrid implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Objects/Cell:        %.2f", (double) numInFull / (double) cells.length);
         UI.printDetailed(Module.ACCEL, "  * Objects/Used Cell:   %.2f", (double) numInFull / (double) (cells.length - numEmpty));
         UI.printDetailed(Module.ACCEL, "  * Cells/Object:        %.2f", (double) numCellsPerObject / (double) n);
+        UI.printDetailed(Module.ACCEL, "  * Cells memory:        %s", Memory.bytesToString(4L * (cells.length + numInFull)));
         UI.printDetailed(Module.ACCEL, "  * Build time:          %s", t.toString());
     }
 
@@ -239,8 +241,11 @@ public final class UniformGrid implements AccelerationStructure {
         for (;;) {
             if (tnextX < tnextY && tnextX < tnextZ) {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
                         primitives.intersectPrimitive(r, i, state);
+                        if (state.isOccluded())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextX && r.getMax() < intervalMax))
                         return;
                 }
@@ -254,8 +259,11 @@ public final class UniformGrid implements AccelerationStructure {
                 cell += cellstepX;
             } else if (tnextY < tnextZ) {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
                         primitives.intersectPrimitive(r, i, state);
+                        if (state.isOccluded())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextY && r.getMax() < intervalMax))
                         return;
                 }
@@ -269,8 +277,11 @@ public final class UniformGrid implements AccelerationStructure {
                 cell += cellstepY;
             } else {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
                         primitives.intersectPrimitive(r, i, state);
+                        if (state.isOccluded())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextZ && r.getMax() < intervalMax))
                         return;
                 }
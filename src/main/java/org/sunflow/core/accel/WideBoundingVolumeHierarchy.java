@@ -0,0 +1,412 @@
+package org.sunflow.core.accel;
+
+import java.util.Arrays;
+
+import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.math.Point3;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Bounding volume hierarchy with four children per node. The tree is built as
+ * a binary {@link BoundingVolumeHierarchy} which is then collapsed, always
+ * opening the largest child until a node has four. The bounds of the children
+ * of a node are stored as structures of arrays, so that a ray is tested
+ * against all four boxes with the same sequence of operations on adjacent
+ * values. Triangle meshes additionally get their triangles stored in packets
+ * of four, in the same layout, which are tested the same way.
+ */
+public class WideBoundingVolumeHierarchy implements AccelerationStructure {
+    private static final int WIDTH = 4;
+    // floats per node: min and max of each axis for all four children
+    private static final int NODE_SIZE = 6 * WIDTH;
+    // floats per triangle packet: first vertex and both edges for all four
+    // triangles
+    private static final int PACKET_SIZE = 9 * WIDTH;
+
+    // child bounds, ordered as min x, max x, min y, max y, min z, max z with
+    // the four children next to each other for each value
+    private float[] nodeBounds;
+    // child references, 4 per node: the index of an inner node, or the
+    // complement of an index into the leaves array
+    private int[] children;
+    // leaves: offset and count, 2 ints per leaf. Counts are in packets of
+    // triangles for triangle meshes, in objects otherwise. Leaf 0 is empty
+    // and is used for unused child slots.
+    private int[] leaves;
+    private int[] objects;
+    private float[] packets;
+    private int[] packetIds;
+    private PrimitiveList primitives;
+    private int numNodes;
+    private int numLeaves;
+    private int numPackets;
+    // deepest level of wide nodes, the root being at depth 1
+    private int maxDepth;
+
+    public void build(PrimitiveList primitives) {
+        BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy();
+        bvh.build(primitives);
+        this.primitives = primitives;
+        UI.printDetailed(Module.ACCEL, "Collapsing tree to %d wide nodes ...", WIDTH);
+        Timer t = new Timer();
+        t.start();
+        int[] binaryNodes = bvh.getNodes();
+        float[] binaryBounds = bvh.getNodeBounds();
+        objects = bvh.getObjects();
+        // the collapsed tree can't have more nodes, leaves or packets than
+        // these
+        int maxLeaves = 1;
+        int maxPackets = 0;
+        for (int i = 0; i < binaryNodes.length; i += 2) {
+            if (binaryNodes[i + 1] >= 0) {
+                maxLeaves++;
+                maxPackets += (binaryNodes[i + 1] + WIDTH - 1) / WIDTH;
+            }
+        }
+        int maxNodes = Math.max(1, binaryNodes.length / 2 - maxLeaves + 2);
+        nodeBounds = new float[NODE_SIZE * maxNodes];
+        children = new int[WIDTH * maxNodes];
+        leaves = new int[2 * maxLeaves];
+        numNodes = 0;
+        numLeaves = 1;
+        numPackets = 0;
+        maxDepth = 0;
+        TriangleMesh mesh = primitives instanceof TriangleMesh ? (TriangleMesh) primitives : null;
+        if (mesh != null) {
+            packets = new float[PACKET_SIZE * maxPackets];
+            packetIds = new int[WIDTH * maxPackets];
+        }
+        if (binaryNodes[1] < 0)
+            collapse(binaryNodes, binaryBounds, mesh, 0, 1);
+        else {
+            // the whole tree is a single leaf
+            int[] slots = { 0 };
+            createNode(binaryNodes, binaryBounds, mesh, slots, 1, 1);
+        }
+        nodeBounds = Arrays.copyOf(nodeBounds, NODE_SIZE * numNodes);
+        children = Arrays.copyOf(children, WIDTH * numNodes);
+        leaves = Arrays.copyOf(leaves, 2 * numLeaves);
+        if (mesh != null) {
+            packets = Arrays.copyOf(packets, PACKET_SIZE * numPackets);
+            packetIds = Arrays.copyOf(packetIds, WIDTH * numPackets);
+            // triangles are only referenced through the packets
+            objects = null;
+        }
+        t.end();
+        long nodeBytes = 4L * (nodeBounds.length + children.length + leaves.length);
+        long primBytes = mesh != null ? 4L * (packets.length + packetIds.length) : 4L * objects.length;
+        UI.printDetailed(Module.ACCEL, "Wide BVH stats:");
+        UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
+        UI.printDetailed(Module.ACCEL, "  * Leaves:         %d", numLeaves - 1);
+        UI.printDetailed(Module.ACCEL, "  * Max depth:      %d", maxDepth);
+        if (mesh != null)
+            UI.printDetailed(Module.ACCEL, "  * Packets:        %d (%.2f%% used)", numPackets, numPackets > 0 ? 100.0 * primitives.getNumPrimitives() / (WIDTH * numPackets) : 0.0);
+        UI.printDetailed(Module.ACCEL, "  * Collapse time:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Node memory:    %s", Memory.bytesToString(nodeBytes));
+        UI.printDetailed(Module.ACCEL, "  * %s %s", mesh != null ? "Packet memory: " : "Indices memory:", Memory.bytesToString(primBytes));
+    }
+
+    /**
+     * Create a wide node from the subtree of the binary tree at the specified
+     * inner node.
+     *
+     * @return index of the new node
+     */
+    private int collapse(int[] binaryNodes, float[] binaryBounds, TriangleMesh mesh, int node, int depth) {
+        int[] slots = new int[WIDTH];
+        slots[0] = node + 1;
+        slots[1] = binaryNodes[2 * node + 0];
+        int n = 2;
+        while (n < WIDTH) {
+            // open the inner child with the largest area
+            int best = -1;
+            float bestArea = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (binaryNodes[2 * slots[i] + 1] >= 0)
+                    continue;
+                float area = halfArea(binaryBounds, slots[i]);
+                if (area > bestArea) {
+                    best = i;
+                    bestArea = area;
+                }
+            }
+            if (best == -1)
+                break;
+            int open = slots[best];
+            slots[best] = open + 1;
+            slots[n++] = binaryNodes[2 * open + 0];
+        }
+        return createNode(binaryNodes, binaryBounds, mesh, slots, n, depth);
+    }
+
+    private int createNode(int[] binaryNodes, float[] binaryBounds, TriangleMesh mesh, int[] slots, int n, int depth) {
+        int index = numNodes++;
+        maxDepth = Math.max(maxDepth, depth);
+        int b = NODE_SIZE * index;
+        for (int i = 0; i < WIDTH; i++) {
+            if (i < n) {
+                for (int k = 0; k < 6; k++)
+                    nodeBounds[b + k * WIDTH + i] = binaryBounds[6 * slots[i] + k];
+            } else {
+                // unused slot - an inverted box is never hit
+                for (int k = 0; k < 6; k += 2) {
+                    nodeBounds[b + k * WIDTH + i] = Float.POSITIVE_INFINITY;
+                    nodeBounds[b + (k + 1) * WIDTH + i] = Float.NEGATIVE_INFINITY;
+                }
+                children[WIDTH * index + i] = ~0;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int child = slots[i];
+            if (binaryNodes[2 * child + 1] < 0)
+                children[WIDTH * index + i] = collapse(binaryNodes, binaryBounds, mesh, child, depth + 1);
+            else
+                children[WIDTH * index + i] = ~createLeaf(mesh, binaryNodes[2 * child + 0], binaryNodes[2 * child + 1]);
+        }
+        return index;
+    }
+
+    private int createLeaf(TriangleMesh mesh, int offset, int count) {
+        int leaf = numLeaves++;
+        if (mesh == null) {
+            leaves[2 * leaf + 0] = offset;
+            leaves[2 * leaf + 1] = count;
+            return leaf;
+        }
+        leaves[2 * leaf + 0] = numPackets;
+        leaves[2 * leaf + 1] = (count + WIDTH - 1) / WIDTH;
+        Point3 v0 = new Point3();
+        Point3 v1 = new Point3();
+        Point3 v2 = new Point3();
+        for (int i = 0; i < count; i += WIDTH) {
+            int p = numPackets++;
+            int b = PACKET_SIZE * p;
+            for (int lane = 0; lane < WIDTH; lane++) {
+                // fill incomplete packets by repeating the last triangle
+                int tri = objects[offset + Math.min(i + lane, count - 1)];
+                mesh.getPoint(tri, 0, v0);
+                mesh.getPoint(tri, 1, v1);
+                mesh.getPoint(tri, 2, v2);
+                packets[b + 0 * WIDTH + lane] = v0.x;
+                packets[b + 1 * WIDTH + lane] = v0.y;
+                packets[b + 2 * WIDTH + lane] = v0.z;
+                packets[b + 3 * WIDTH + lane] = v1.x - v0.x;
+                packets[b + 4 * WIDTH + lane] = v1.y - v0.y;
+                packets[b + 5 * WIDTH + lane] = v1.z - v0.z;
+                packets[b + 6 * WIDTH + lane] = v2.x - v0.x;
+                packets[b + 7 * WIDTH + lane] = v2.y - v0.y;
+                packets[b + 8 * WIDTH + lane] = v2.z - v0.z;
+                packetIds[WIDTH * p + lane] = tri;
+            }
+        }
+        return leaf;
+    }
+
+    private static float halfArea(float[] b, int i) {
+        float dx = b[6 * i + 1] - b[6 * i + 0];
+        float dy = b[6 * i + 3] - b[6 * i + 2];
+        float dz = b[6 * i + 5] - b[6 * i + 4];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        float orgX = r.ox;
+        float orgY = r.oy;
+        float orgZ = r.oz;
+        float invDirX = 1 / r.dx;
+        float invDirY = 1 / r.dy;
+        float invDirZ = 1 / r.dz;
+        // offsets of the near planes from the direction sign bit
+        int nearX = (Float.floatToRawIntBits(r.dx) >>> 31) * WIDTH;
+        int nearY = (Float.floatToRawIntBits(r.dy) >>> 31) * WIDTH + 2 * WIDTH;
+        int nearZ = (Float.floatToRawIntBits(r.dz) >>> 31) * WIDTH + 4 * WIDTH;
+        int farX = nearX ^ WIDTH;
+        int farY = nearY ^ WIDTH;
+        int farZ = nearZ ^ WIDTH;
+
+        // the stack never holds more than 3 children per level of the tree
+        IntersectionState.StackNode[] stack = state.getStack((WIDTH - 1) * maxDepth);
+        int stackPos = 0;
+        int node = 0;
+
+        while (true) {
+            if (node >= 0) {
+                // inner node - test all four children, then visit them from
+                // the closest one
+                int b = NODE_SIZE * node;
+                int c = WIDTH * node;
+                float tmin = r.getMin();
+                float tmax = r.getMax();
+                float t0 = intersectBox(b + 0, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ, farX, farY, farZ);
+                float t1 = intersectBox(b + 1, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ, farX, farY, farZ);
+                float t2 = intersectBox(b + 2, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ, farX, farY, farZ);
+                float t3 = intersectBox(b + 3, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ, nearX, nearY, nearZ, farX, farY, farZ);
+                int c0 = children[c + 0];
+                int c1 = children[c + 1];
+                int c2 = children[c + 2];
+                int c3 = children[c + 3];
+                // sort the children by distance
+                if (t1 < t0) {
+                    float t = t0;
+                    t0 = t1;
+                    t1 = t;
+                    int i = c0;
+                    c0 = c1;
+                    c1 = i;
+                }
+                if (t3 < t2) {
+                    float t = t2;
+                    t2 = t3;
+                    t3 = t;
+                    int i = c2;
+                    c2 = c3;
+                    c3 = i;
+                }
+                if (t2 < t0) {
+                    float t = t0;
+                    t0 = t2;
+                    t2 = t;
+                    int i = c0;
+                    c0 = c2;
+                    c2 = i;
+                }
+                if (t3 < t1) {
+                    float t = t1;
+                    t1 = t3;
+                    t3 = t;
+                    int i = c1;
+                    c1 = c3;
+                    c3 = i;
+                }
+                if (t2 < t1) {
+                    float t = t1;
+                    t1 = t2;
+                    t2 = t;
+                    int i = c1;
+                    c1 = c2;
+                    c2 = i;
+                }
+                if (t0 != Float.POSITIVE_INFINITY) {
+                    // push back the farther children
+                    if (t3 != Float.POSITIVE_INFINITY) {
+                        stack[stackPos].node = c3;
+                        stack[stackPos].near = t3;
+                        stackPos++;
+                    }
+                    if (t2 != Float.POSITIVE_INFINITY) {
+                        stack[stackPos].node = c2;
+                        stack[stackPos].near = t2;
+                        stackPos++;
+                    }
+                    if (t1 != Float.POSITIVE_INFINITY) {
+                        stack[stackPos].node = c1;
+                        stack[stackPos].near = t1;
+                        stackPos++;
+                    }
+                    node = c0;
+                    continue;
+                }
+            } else {
+                // leaf - test some objects
+                int leaf = 2 * ~node;
+                int offset = leaves[leaf + 0];
+                int count = leaves[leaf + 1];
+                if (packets != null) {
+                    for (int p = offset, end = offset + count; p < end; p++) {
+                        intersectPacket(r, p, state);
+                        if (state.isOccluded())
+                            return;
+                    }
+                } else {
+                    for (int i = offset, end = offset + count; i < end; i++) {
+                        primitives.intersectPrimitive(r, objects[i], state);
+                        if (state.isOccluded())
+                            return;
+                    }
+                }
+            }
+            do {
+                // stack is empty?
+                if (stackPos == 0)
+                    return;
+                // move back up the stack, skipping nodes beyond the closest
+                // hit found so far
+                stackPos--;
+            } while (stack[stackPos].near > r.getMax());
+            node = stack[stackPos].node;
+        }
+    }
+
+    /**
+     * Clips the ray interval against the bounds of one child. The argument
+     * <code>b</code> is the offset of the node plus the child slot.
+     *
+     * @return distance at which the ray enters the box, or
+     *         {@link Float#POSITIVE_INFINITY} if the box is missed
+     */
+    private float intersectBox(int b, float intervalMin, float intervalMax, float orgX, float orgY, float orgZ, float invDirX, float invDirY, float invDirZ, int nearX, int nearY, int nearZ, int farX, int farY, int farZ) {
+        float t1 = (nodeBounds[b + nearX] - orgX) * invDirX;
+        float t2 = (nodeBounds[b + farX] - orgX) * invDirX;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        t1 = (nodeBounds[b + nearY] - orgY) * invDirY;
+        t2 = (nodeBounds[b + farY] - orgY) * invDirY;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        t1 = (nodeBounds[b + nearZ] - orgZ) * invDirZ;
+        t2 = (nodeBounds[b + farZ] - orgZ) * invDirZ;
+        if (t1 > intervalMin)
+            intervalMin = t1;
+        if (t2 < intervalMax)
+            intervalMax = t2;
+        return intervalMin <= intervalMax ? intervalMin : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Intersects the ray with the four triangles of a packet, keeping the
+     * closest hit.
+     */
+    private void intersectPacket(Ray r, int packet, IntersectionState state) {
+        int b = PACKET_SIZE * packet;
+        for (int lane = 0; lane < WIDTH; lane++, b++) {
+            float e1x = packets[b + 3 * WIDTH];
+            float e1y = packets[b + 4 * WIDTH];
+            float e1z = packets[b + 5 * WIDTH];
+            float e2x = packets[b + 6 * WIDTH];
+            float e2y = packets[b + 7 * WIDTH];
+            float e2z = packets[b + 8 * WIDTH];
+            float px = r.dy * e2z - r.dz * e2y;
+            float py = r.dz * e2x - r.dx * e2z;
+            float pz = r.dx * e2y - r.dy * e2x;
+            float inv = 1 / (e1x * px + e1y * py + e1z * pz);
+            float sx = r.ox - packets[b + 0 * WIDTH];
+            float sy = r.oy - packets[b + 1 * WIDTH];
+            float sz = r.oz - packets[b + 2 * WIDTH];
+            float u = (sx * px + sy * py + sz * pz) * inv;
+            if (u < 0 || u > 1)
+                continue;
+            float qx = sy * e1z - sz * e1y;
+            float qy = sz * e1x - sx * e1z;
+            float qz = sx * e1y - sy * e1x;
+            float v = (r.dx * qx + r.dy * qy + r.dz * qz) * inv;
+            if (v < 0 || u + v > 1)
+                continue;
+            float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+            if (!r.isInside(t))
+                continue;
+            r.setMax(t);
+            state.setIntersection(packetIds[WIDTH * packet + lane], u, v);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.sunflow.PluginRegistry;
 import org.sunflow.core.Display;
 import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
+import org.sunflow.image.PackedBitmapWriter;
 import org.sunflow.system.FileUtils;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -52,6 +53,22 @@ public class FileDisplay implements Display {
     public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
         if (writer == null)
             return;
+        if (writer instanceof PackedBitmapWriter) {
+            // a single packed row, repeated with a zero stride
+            float[] row = new float[4 * w];
+            for (int i = 0; i < row.length; i += 4) {
+                row[i + 0] = c.getRed();
+                row[i + 1] = c.getGreen();
+                row[i + 2] = c.getBlue();
+                row[i + 3] = alpha;
+            }
+            try {
+                ((PackedBitmapWriter) writer).writeTile(x, y, w, h, row, 0, 0);
+            } catch (IOException e) {
+                UI.printError(Module.IMG, "I/O error occured while writing image tile [(%d,%d) %dx%d] image for display: %s", x, y, w, h, e.getMessage());
+            }
+            return;
+        }
         Color[] colorTile = new Color[w * h];
         float[] alphaTile = new float[w * h];
         for (int i = 0; i < colorTile.length; i++) {
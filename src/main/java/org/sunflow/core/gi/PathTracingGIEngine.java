@@ -30,6 +30,9 @@ public class PathTracingGIEngine implements GIEngine {
         OrthoNormalBasis onb = state.getBasis();
         Vector3 w = new Vector3();
         int n = state.getDiffuseDepth() == 0 ? samples : 1;
+        // weight of each ray in the shaded result: pi / n for the
+        // irradiance, times the reflectance over pi applied by the shader
+        Color weight = state.isFinalGatherQueued() ? diffuseReflectance.copy().mul(1.0f / n) : null;
         for (int i = 0; i < n; i++) {
             float xi = (float) state.getRandom(i, 0, n);
             float xj = (float) state.getRandom(i, 1, n);
@@ -42,6 +45,10 @@ public class PathTracingGIEngine implements GIEngine {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
+            if (weight != null) {
+                state.queueFinalGather(new Ray(state.getPoint(), w), i, weight);
+                continue;
+            }
             ShadingState temp = state.traceFinalGather(new Ray(state.getPoint(), w), i);
             if (temp != null) {
                 temp.getInstance().prepareShadingState(temp);
@@ -27,6 +27,12 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
         numSamples = 4;
     }
 
+    @Override
+    protected boolean allowCompactStorage() {
+        // sampling reads the mesh arrays directly
+        return false;
+    }
+
     @Override
     public boolean update(ParameterList pl, SunflowAPI api) {
         radiance = pl.getColor("radiance", radiance);
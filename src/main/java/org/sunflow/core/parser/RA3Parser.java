@@ -1,17 +1,11 @@
 package org.sunflow.core.parser;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
 import org.sunflow.SunflowAPIInterface;
 import org.sunflow.core.SceneParser;
+import org.sunflow.system.MappedFile;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -19,23 +13,21 @@ public class RA3Parser implements SceneParser {
     public boolean parse(String filename, SunflowAPIInterface api) {
         try {
             UI.printInfo(Module.USER, "RA3 - Reading geometry: \"%s\" ...", filename);
-            File file = new File(filename);
-            FileInputStream stream = new FileInputStream(filename);
-            MappedByteBuffer map = stream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
-            map.order(ByteOrder.LITTLE_ENDIAN);
-            IntBuffer ints = map.asIntBuffer();
-            FloatBuffer buffer = map.asFloatBuffer();
-            int numVerts = ints.get(0);
-            int numTris = ints.get(1);
-            UI.printInfo(Module.USER, "RA3 -   * Reading %d vertices ...", numVerts);
-            float[] verts = new float[3 * numVerts];
-            for (int i = 0; i < verts.length; i++)
-                verts[i] = buffer.get(2 + i);
-            UI.printInfo(Module.USER, "RA3 -   * Reading %d triangles ...", numTris);
-            int[] tris = new int[3 * numTris];
-            for (int i = 0; i < tris.length; i++)
-                tris[i] = ints.get(2 + verts.length + i);
-            stream.close();
+            MappedFile file = new MappedFile(filename);
+            float[] verts;
+            int[] tris;
+            try {
+                int numVerts = file.getInt(0);
+                int numTris = file.getInt(4);
+                UI.printInfo(Module.USER, "RA3 -   * Reading %d vertices ...", numVerts);
+                verts = new float[3 * numVerts];
+                file.getFloats(8, verts);
+                UI.printInfo(Module.USER, "RA3 -   * Reading %d triangles ...", numTris);
+                tris = new int[3 * numTris];
+                file.getInts(8 + 4L * verts.length, tris);
+            } finally {
+                file.close();
+            }
             UI.printInfo(Module.USER, "RA3 -   * Creating mesh ...");
 
             // create geometry
@@ -0,0 +1,303 @@
+package org.sunflow.core.primitive;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.sunflow.core.ParameterList;
+import org.sunflow.core.ParameterList.FloatParameter;
+import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.system.MappedFile;
+import org.sunflow.system.WorkerPool;
+
+/**
+ * Reads and writes triangle meshes in a chunked, compressed binary format.
+ * Each data stream (points, triangle indices, normals and texture
+ * coordinates) is cut into chunks of a fixed number of values which are
+ * compressed independently with deflate. An index at the start of the file
+ * gives the position of every chunk, so they can be decompressed in parallel.
+ * <p>
+ * Before compression, the bytes of the 32 bit values of a chunk are regrouped
+ * by significance, and triangle indices are stored as differences from the
+ * previous index, which both make the data much more compressible. All values
+ * are little endian.
+ */
+public final class ChunkedMeshFile {
+    private static final int MAGIC = 0x434d4653; // "SFMC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHUNK_VALUES = 1 << 18;
+
+    private static final int STREAM_POINTS = 0;
+    private static final int STREAM_TRIANGLES = 1;
+    private static final int STREAM_NORMALS = 2;
+    private static final int STREAM_UVS = 3;
+
+    private ChunkedMeshFile() {
+    }
+
+    /**
+     * Write a mesh to the specified file.
+     *
+     * @param filename file to write
+     * @param triangles vertex indices
+     * @param points vertex positions
+     * @param normals normals, may have no data
+     * @param uvs texture coordinates, may have no data
+     * @throws IOException if the file can't be written
+     */
+    public static void write(String filename, int[] triangles, float[] points, FloatParameter normals, FloatParameter uvs) throws IOException {
+        Stream[] streams = new Stream[4];
+        int numStreams = 0;
+        streams[numStreams++] = new Stream(STREAM_POINTS, InterpolationType.VERTEX, points, null);
+        streams[numStreams++] = new Stream(STREAM_TRIANGLES, InterpolationType.NONE, null, triangles);
+        if (normals.data != null)
+            streams[numStreams++] = new Stream(STREAM_NORMALS, normals.interp, normals.data, null);
+        if (uvs.data != null)
+            streams[numStreams++] = new Stream(STREAM_UVS, uvs.interp, uvs.data, null);
+        // compress all chunks in parallel
+        int numChunks = 0;
+        for (int s = 0; s < numStreams; s++)
+            numChunks += streams[s].numChunks;
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numChunks];
+        for (int s = 0, c = 0; s < numStreams; s++)
+            for (int i = 0; i < streams[s].numChunks; i++, c++)
+                tasks[c] = streams[s].compressTask(i);
+        invokeAll(tasks);
+        // header and chunk index
+        int headerSize = 12 + 16 * numStreams + 12 * numChunks;
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(numStreams);
+        for (int s = 0; s < numStreams; s++) {
+            header.putInt(streams[s].type);
+            header.putInt(streams[s].interp.ordinal());
+            header.putInt(streams[s].length);
+            header.putInt(streams[s].numChunks);
+        }
+        long offset = headerSize;
+        for (int s = 0; s < numStreams; s++) {
+            for (byte[] chunk : streams[s].compressed) {
+                header.putLong(offset);
+                header.putInt(chunk.length);
+                offset += chunk.length;
+            }
+        }
+        FileOutputStream file = new FileOutputStream(filename);
+        try {
+            file.write(header.array());
+            for (int s = 0; s < numStreams; s++)
+                for (byte[] chunk : streams[s].compressed)
+                    file.write(chunk);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read a mesh from the specified file. The result contains the
+     * <code>triangles</code> and <code>points</code> parameters, and the
+     * <code>normals</code> and <code>uvs</code> parameters if they were
+     * stored in the file.
+     *
+     * @param filename file to read
+     * @return mesh parameters
+     * @throws IOException if the file can't be read or is invalid
+     */
+    public static ParameterList read(String filename) throws IOException {
+        MappedFile file = new MappedFile(filename);
+        try {
+            ByteBuffer buffer = file.map(0, Math.min(file.getSize(), 12));
+            if (file.getSize() < 12 || buffer.getInt(0) != MAGIC)
+                throw new IOException("not a chunked mesh file");
+            if (buffer.getInt(4) != FORMAT_VERSION)
+                throw new IOException(String.format("unsupported version %d", buffer.getInt(4)));
+            int numStreams = buffer.getInt(8);
+            if (numStreams < 0 || numStreams > 4)
+                throw new IOException("invalid stream count");
+            buffer = file.map(12, 16 * numStreams);
+            Stream[] streams = new Stream[numStreams];
+            int numChunks = 0;
+            for (int s = 0; s < numStreams; s++) {
+                int type = buffer.getInt(16 * s + 0);
+                int interp = buffer.getInt(16 * s + 4);
+                int length = buffer.getInt(16 * s + 8);
+                if (type < STREAM_POINTS || type > STREAM_UVS || interp < 0 || interp >= InterpolationType.values().length || length < 0)
+                    throw new IOException("invalid stream header");
+                streams[s] = new Stream(type, InterpolationType.values()[interp], length);
+                if (streams[s].numChunks != buffer.getInt(16 * s + 12))
+                    throw new IOException("invalid chunk count");
+                numChunks += streams[s].numChunks;
+            }
+            // decompress all chunks in parallel
+            buffer = file.map(12 + 16 * numStreams, 12 * numChunks);
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numChunks];
+            for (int s = 0, c = 0; s < numStreams; s++)
+                for (int i = 0; i < streams[s].numChunks; i++, c++)
+                    tasks[c] = streams[s].decompressTask(i, file, buffer.getLong(12 * c), buffer.getInt(12 * c + 8));
+            try {
+                invokeAll(tasks);
+            } catch (RuntimeException e) {
+                throw new IOException(e.getMessage());
+            }
+            ParameterList pl = new ParameterList();
+            for (Stream s : streams) {
+                switch (s.type) {
+                    case STREAM_POINTS:
+                        pl.addPoints("points", s.interp, s.floats);
+                        break;
+                    case STREAM_TRIANGLES:
+                        pl.addIntegerArray("triangles", s.ints);
+                        break;
+                    case STREAM_NORMALS:
+                        pl.addVectors("normals", s.interp, s.floats);
+                        break;
+                    case STREAM_UVS:
+                        pl.addTexCoords("uvs", s.interp, s.floats);
+                        break;
+                }
+            }
+            return pl;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void invokeAll(final ForkJoinTask<?>[] tasks) {
+        WorkerPool.get().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * One data stream of the mesh. Exactly one of the two arrays is used.
+     */
+    private static final class Stream {
+        final int type;
+        final InterpolationType interp;
+        final int length;
+        final int numChunks;
+        float[] floats;
+        int[] ints;
+        byte[][] compressed;
+
+        Stream(int type, InterpolationType interp, float[] floats, int[] ints) {
+            this.type = type;
+            this.interp = interp;
+            this.floats = floats;
+            this.ints = ints;
+            length = floats != null ? floats.length : ints.length;
+            numChunks = (length + CHUNK_VALUES - 1) / CHUNK_VALUES;
+            compressed = new byte[numChunks][];
+        }
+
+        Stream(int type, InterpolationType interp, int length) {
+            this.type = type;
+            this.interp = interp;
+            this.length = length;
+            numChunks = (length + CHUNK_VALUES - 1) / CHUNK_VALUES;
+            if (type == STREAM_TRIANGLES)
+                ints = new int[length];
+            else
+                floats = new float[length];
+        }
+
+        private int getValue(int i) {
+            return floats != null ? Float.floatToRawIntBits(floats[i]) : ints[i];
+        }
+
+        private void setValue(int i, int v) {
+            if (floats != null)
+                floats[i] = Float.intBitsToFloat(v);
+            else
+                ints[i] = v;
+        }
+
+        RecursiveAction compressTask(final int chunk) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    int first = chunk * CHUNK_VALUES;
+                    int n = Math.min(CHUNK_VALUES, length - first);
+                    // group bytes of equal significance together
+                    byte[] raw = new byte[4 * n];
+                    int prev = 0;
+                    for (int i = 0; i < n; i++) {
+                        int v = getValue(first + i);
+                        if (type == STREAM_TRIANGLES) {
+                            int d = v - prev;
+                            prev = v;
+                            v = d;
+                        }
+                        raw[i] = (byte) v;
+                        raw[n + i] = (byte) (v >>> 8);
+                        raw[2 * n + i] = (byte) (v >>> 16);
+                        raw[3 * n + i] = (byte) (v >>> 24);
+                    }
+                    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    byte[] out = new byte[4 * n + 1024];
+                    int size = 0;
+                    while (!deflater.finished()) {
+                        if (size == out.length)
+                            out = Arrays.copyOf(out, 2 * out.length);
+                        size += deflater.deflate(out, size, out.length - size);
+                    }
+                    deflater.end();
+                    compressed[chunk] = Arrays.copyOf(out, size);
+                }
+            };
+        }
+
+        RecursiveAction decompressTask(final int chunk, final MappedFile file, final long offset, final int size) {
+            return new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    int first = chunk * CHUNK_VALUES;
+                    int n = Math.min(CHUNK_VALUES, length - first);
+                    byte[] in = new byte[size];
+                    byte[] raw = new byte[4 * n];
+                    Inflater inflater = new Inflater();
+                    try {
+                        file.map(offset, size).get(in);
+                        inflater.setInput(in);
+                        if (inflater.inflate(raw) != raw.length)
+                            throw new RuntimeException("truncated chunk");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.getMessage());
+                    } catch (DataFormatException e) {
+                        throw new RuntimeException("corrupted chunk");
+                    } finally {
+                        inflater.end();
+                    }
+                    int prev = 0;
+                    for (int i = 0; i < n; i++) {
+                        int v = (raw[i] & 0xFF) | (raw[n + i] & 0xFF) << 8 | (raw[2 * n + i] & 0xFF) << 16 | (raw[3 * n + i] & 0xFF) << 24;
+                        if (type == STREAM_TRIANGLES) {
+                            v += prev;
+                            prev = v;
+                        }
+                        setValue(first + i, v);
+                    }
+                }
+            };
+        }
+    }
+}
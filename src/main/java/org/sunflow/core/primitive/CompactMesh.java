@@ -0,0 +1,404 @@
+package org.sunflow.core.primitive;
+
+import org.sunflow.core.Instance;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Ray;
+import org.sunflow.core.ShadingState;
+import org.sunflow.core.ParameterList.FloatParameter;
+import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.OrthoNormalBasis;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.ByteUtil;
+
+/**
+ * Reduced memory storage for the data of a {@link TriangleMesh}. Vertex
+ * indices use 16 bits when the mesh has few enough vertices. Points are
+ * quantized to 21 bits per axis over the bounding box of the mesh and packed
+ * into a single long. Normals are stored as two 16 bit octahedral
+ * coordinates, and texture coordinates as two half floats. No per-triangle
+ * data is precomputed, triangles are set up when they are intersected.
+ */
+final class CompactMesh {
+    private static final int POINT_BITS = 21;
+    private static final long POINT_MASK = (1L << POINT_BITS) - 1;
+
+    private final int numTriangles;
+    private final int numVertices;
+    // vertex indices, only one of the two arrays is used
+    private final short[] shortIndices;
+    private final int[] intIndices;
+    // quantized points
+    private final long[] points;
+    private final float minX, minY, minZ;
+    private final float scaleX, scaleY, scaleZ;
+    // octahedral normals and half float uvs
+    private final InterpolationType normalsInterp;
+    private final int[] normals;
+    private final InterpolationType uvsInterp;
+    private final int[] uvs;
+
+    CompactMesh(int[] triangles, float[] points, FloatParameter normals, FloatParameter uvs) {
+        numTriangles = triangles.length / 3;
+        numVertices = points.length / 3;
+        if (numVertices <= 0x10000) {
+            shortIndices = new short[3 * numTriangles];
+            for (int i = 0; i < shortIndices.length; i++)
+                shortIndices[i] = (short) triangles[i];
+            intIndices = null;
+        } else {
+            shortIndices = null;
+            intIndices = new int[3 * numTriangles];
+            System.arraycopy(triangles, 0, intIndices, 0, intIndices.length);
+        }
+        BoundingBox bounds = new BoundingBox();
+        for (int i = 0; i < points.length; i += 3)
+            bounds.include(points[i], points[i + 1], points[i + 2]);
+        Point3 min = bounds.getMinimum();
+        Point3 max = bounds.getMaximum();
+        minX = min.x;
+        minY = min.y;
+        minZ = min.z;
+        scaleX = (max.x - min.x) / POINT_MASK;
+        scaleY = (max.y - min.y) / POINT_MASK;
+        scaleZ = (max.z - min.z) / POINT_MASK;
+        this.points = new long[numVertices];
+        for (int i = 0, j = 0; i < numVertices; i++, j += 3) {
+            long x = quantize(points[j + 0], minX, scaleX);
+            long y = quantize(points[j + 1], minY, scaleY);
+            long z = quantize(points[j + 2], minZ, scaleZ);
+            this.points[i] = (x << (2 * POINT_BITS)) | (y << POINT_BITS) | z;
+        }
+        normalsInterp = normals.interp;
+        if (normals.interp == InterpolationType.VERTEX || normals.interp == InterpolationType.FACEVARYING) {
+            this.normals = new int[normals.data.length / 3];
+            for (int i = 0, j = 0; i < this.normals.length; i++, j += 3)
+                this.normals[i] = encodeNormal(normals.data[j + 0], normals.data[j + 1], normals.data[j + 2]);
+        } else
+            this.normals = null;
+        uvsInterp = uvs.interp;
+        if (uvs.interp == InterpolationType.VERTEX || uvs.interp == InterpolationType.FACEVARYING) {
+            this.uvs = new int[uvs.data.length / 2];
+            for (int i = 0, j = 0; i < this.uvs.length; i++, j += 2)
+                this.uvs[i] = (ByteUtil.floatToHalf(uvs.data[j + 0]) << 16) | ByteUtil.floatToHalf(uvs.data[j + 1]);
+        } else
+            this.uvs = null;
+    }
+
+    private static long quantize(float x, float min, float scale) {
+        return scale > 0 ? Math.min(Math.round((x - min) / scale), POINT_MASK) : 0;
+    }
+
+    /**
+     * Encode a normal with octahedral mapping, two signed 16 bit coordinates.
+     */
+    private static int encodeNormal(float x, float y, float z) {
+        float l = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (l == 0)
+            return encodeSnorm(0) << 16 | encodeSnorm(0);
+        x /= l;
+        y /= l;
+        if (z < 0) {
+            float ox = x;
+            x = (1 - Math.abs(y)) * (ox >= 0 ? 1 : -1);
+            y = (1 - Math.abs(ox)) * (y >= 0 ? 1 : -1);
+        }
+        return encodeSnorm(x) << 16 | encodeSnorm(y);
+    }
+
+    private static int encodeSnorm(float x) {
+        return Math.round(Math.max(-1, Math.min(1, x)) * 32767) & 0xFFFF;
+    }
+
+    private static void decodeNormal(int n, Vector3 v) {
+        float x = (short) (n >>> 16) / 32767.0f;
+        float y = (short) n / 32767.0f;
+        float z = 1 - Math.abs(x) - Math.abs(y);
+        if (z < 0) {
+            float ox = x;
+            x = (1 - Math.abs(y)) * (ox >= 0 ? 1 : -1);
+            y = (1 - Math.abs(ox)) * (y >= 0 ? 1 : -1);
+        }
+        v.set(x, y, z).normalize();
+    }
+
+    int getNumPrimitives() {
+        return numTriangles;
+    }
+
+    int getIndex(int i) {
+        return shortIndices != null ? shortIndices[i] & 0xFFFF : intIndices[i];
+    }
+
+    float getX(int v) {
+        return minX + ((points[v] >>> (2 * POINT_BITS)) & POINT_MASK) * scaleX;
+    }
+
+    float getY(int v) {
+        return minY + ((points[v] >>> POINT_BITS) & POINT_MASK) * scaleY;
+    }
+
+    float getZ(int v) {
+        return minZ + (points[v] & POINT_MASK) * scaleZ;
+    }
+
+    void getPoint(int v, Point3 p) {
+        p.set(getX(v), getY(v), getZ(v));
+    }
+
+    BoundingBox getWorldBounds(Matrix4 o2w) {
+        BoundingBox bounds = new BoundingBox();
+        for (int i = 0; i < numVertices; i++) {
+            float x = getX(i);
+            float y = getY(i);
+            float z = getZ(i);
+            if (o2w == null)
+                bounds.include(x, y, z);
+            else
+                bounds.include(o2w.transformPX(x, y, z), o2w.transformPY(x, y, z), o2w.transformPZ(x, y, z));
+        }
+        return bounds;
+    }
+
+    float getPrimitiveBound(int primID, int i) {
+        int tri = 3 * primID;
+        int a = getIndex(tri + 0);
+        int b = getIndex(tri + 1);
+        int c = getIndex(tri + 2);
+        float pa, pb, pc;
+        switch (i >>> 1) {
+            case 0:
+                pa = getX(a);
+                pb = getX(b);
+                pc = getX(c);
+                break;
+            case 1:
+                pa = getY(a);
+                pb = getY(b);
+                pc = getY(c);
+                break;
+            default:
+                pa = getZ(a);
+                pb = getZ(b);
+                pc = getZ(c);
+                break;
+        }
+        if ((i & 1) == 0)
+            return Math.min(pa, Math.min(pb, pc));
+        else
+            return Math.max(pa, Math.max(pb, pc));
+    }
+
+    void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+        // same test as the Kensler test of TriangleMesh, on the decoded points
+        int tri = 3 * primID;
+        int a = getIndex(tri + 0);
+        int b = getIndex(tri + 1);
+        int c = getIndex(tri + 2);
+        float ax = getX(a), ay = getY(a), az = getZ(a);
+        float edge0x = getX(b) - ax;
+        float edge0y = getY(b) - ay;
+        float edge0z = getZ(b) - az;
+        float edge1x = ax - getX(c);
+        float edge1y = ay - getY(c);
+        float edge1z = az - getZ(c);
+        float nx = edge0y * edge1z - edge0z * edge1y;
+        float ny = edge0z * edge1x - edge0x * edge1z;
+        float nz = edge0x * edge1y - edge0y * edge1x;
+        float v = r.dot(nx, ny, nz);
+        float iv = 1 / v;
+        float edge2x = ax - r.ox;
+        float edge2y = ay - r.oy;
+        float edge2z = az - r.oz;
+        float va = nx * edge2x + ny * edge2y + nz * edge2z;
+        float t = iv * va;
+        if (!r.isInside(t))
+            return;
+        float ix = edge2y * r.dz - edge2z * r.dy;
+        float iy = edge2z * r.dx - edge2x * r.dz;
+        float iz = edge2x * r.dy - edge2y * r.dx;
+        float v1 = ix * edge1x + iy * edge1y + iz * edge1z;
+        float beta = iv * v1;
+        if (beta < 0)
+            return;
+        float v2 = ix * edge0x + iy * edge0y + iz * edge0z;
+        if ((v1 + v2) * v > v * v)
+            return;
+        float gamma = iv * v2;
+        if (gamma < 0)
+            return;
+        r.setMax(t);
+        state.setIntersection(primID, beta, gamma);
+    }
+
+    void prepareShadingState(ShadingState state, byte[] faceShaders) {
+        state.init();
+        Instance parent = state.getInstance();
+        int primID = state.getPrimitiveID();
+        float u = state.getU();
+        float v = state.getV();
+        float w = 1 - u - v;
+        state.getRay().getPoint(state.getPoint());
+        int tri = 3 * primID;
+        int index0 = getIndex(tri + 0);
+        int index1 = getIndex(tri + 1);
+        int index2 = getIndex(tri + 2);
+        Point3 v0p = new Point3();
+        Point3 v1p = new Point3();
+        Point3 v2p = new Point3();
+        getPoint(index0, v0p);
+        getPoint(index1, v1p);
+        getPoint(index2, v2p);
+        Vector3 ng = Point3.normal(v0p, v1p, v2p);
+        ng = state.transformNormalObjectToWorld(ng);
+        ng.normalize();
+        state.getGeoNormal().set(ng);
+        if (normals == null)
+            state.getNormal().set(ng);
+        else {
+            int i0, i1, i2;
+            if (normalsInterp == InterpolationType.VERTEX) {
+                i0 = index0;
+                i1 = index1;
+                i2 = index2;
+            } else {
+                i0 = tri;
+                i1 = tri + 1;
+                i2 = tri + 2;
+            }
+            Vector3 n0 = new Vector3();
+            Vector3 n1 = new Vector3();
+            Vector3 n2 = new Vector3();
+            decodeNormal(normals[i0], n0);
+            decodeNormal(normals[i1], n1);
+            decodeNormal(normals[i2], n2);
+            state.getNormal().x = w * n0.x + u * n1.x + v * n2.x;
+            state.getNormal().y = w * n0.y + u * n1.y + v * n2.y;
+            state.getNormal().z = w * n0.z + u * n1.z + v * n2.z;
+            state.getNormal().set(state.transformNormalObjectToWorld(state.getNormal()));
+            state.getNormal().normalize();
+        }
+        if (uvs != null) {
+            int i0, i1, i2;
+            if (uvsInterp == InterpolationType.VERTEX) {
+                i0 = index0;
+                i1 = index1;
+                i2 = index2;
+            } else {
+                i0 = tri;
+                i1 = tri + 1;
+                i2 = tri + 2;
+            }
+            float uv00 = ByteUtil.halfToFloat(uvs[i0] >>> 16);
+            float uv01 = ByteUtil.halfToFloat(uvs[i0] & 0xFFFF);
+            float uv10 = ByteUtil.halfToFloat(uvs[i1] >>> 16);
+            float uv11 = ByteUtil.halfToFloat(uvs[i1] & 0xFFFF);
+            float uv20 = ByteUtil.halfToFloat(uvs[i2] >>> 16);
+            float uv21 = ByteUtil.halfToFloat(uvs[i2] & 0xFFFF);
+            // get exact uv coords and compute tangent vectors
+            state.getUV().x = w * uv00 + u * uv10 + v * uv20;
+            state.getUV().y = w * uv01 + u * uv11 + v * uv21;
+            float du1 = uv00 - uv20;
+            float du2 = uv10 - uv20;
+            float dv1 = uv01 - uv21;
+            float dv2 = uv11 - uv21;
+            Vector3 dp1 = Point3.sub(v0p, v2p, new Vector3()), dp2 = Point3.sub(v1p, v2p, new Vector3());
+            float determinant = du1 * dv2 - dv1 * du2;
+            if (determinant == 0.0f) {
+                // create basis in world space
+                state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
+            } else {
+                float invdet = 1.f / determinant;
+                Vector3 dpdv = new Vector3();
+                dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
+                dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
+                dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
+                dpdv = state.transformVectorObjectToWorld(dpdv);
+                // create basis in world space
+                state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
+                // ratio of texture area to world area, for texture filtering
+                float area = Vector3.cross(state.transformVectorObjectToWorld(dp1), state.transformVectorObjectToWorld(dp2), new Vector3()).length();
+                if (area > 0)
+                    state.setTextureScale((float) Math.sqrt(Math.abs(determinant) / area));
+            }
+        } else {
+            state.getUV().x = 0;
+            state.getUV().y = 0;
+            state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
+        }
+        int shaderIndex = faceShaders == null ? 0 : (faceShaders[primID] & 0xFF);
+        state.setShader(parent.getShader(shaderIndex));
+        state.setModifier(parent.getModifier(shaderIndex));
+    }
+
+    /**
+     * Decode the vertex indices.
+     */
+    int[] getTriangles() {
+        int[] triangles = new int[3 * numTriangles];
+        for (int i = 0; i < triangles.length; i++)
+            triangles[i] = getIndex(i);
+        return triangles;
+    }
+
+    /**
+     * Decode the points.
+     */
+    float[] getPoints() {
+        float[] p = new float[3 * numVertices];
+        for (int i = 0, j = 0; i < numVertices; i++, j += 3) {
+            p[j + 0] = getX(i);
+            p[j + 1] = getY(i);
+            p[j + 2] = getZ(i);
+        }
+        return p;
+    }
+
+    /**
+     * Decode the normals.
+     */
+    FloatParameter getNormals() {
+        if (normals == null)
+            return new FloatParameter();
+        float[] data = new float[3 * normals.length];
+        Vector3 n = new Vector3();
+        for (int i = 0, j = 0; i < normals.length; i++, j += 3) {
+            decodeNormal(normals[i], n);
+            data[j + 0] = n.x;
+            data[j + 1] = n.y;
+            data[j + 2] = n.z;
+        }
+        return new FloatParameter(normalsInterp, data);
+    }
+
+    /**
+     * Decode the texture coordinates.
+     */
+    FloatParameter getUVs() {
+        if (uvs == null)
+            return new FloatParameter();
+        float[] data = new float[2 * uvs.length];
+        for (int i = 0, j = 0; i < uvs.length; i++, j += 2) {
+            data[j + 0] = ByteUtil.halfToFloat(uvs[i] >>> 16);
+            data[j + 1] = ByteUtil.halfToFloat(uvs[i] & 0xFFFF);
+        }
+        return new FloatParameter(uvsInterp, data);
+    }
+
+    /**
+     * Returns the amount of memory used by the mesh data.
+     *
+     * @return size in bytes
+     */
+    long getBytes() {
+        long bytes = shortIndices != null ? 2L * shortIndices.length : 4L * intIndices.length;
+        bytes += 8L * points.length;
+        if (normals != null)
+            bytes += 4L * normals.length;
+        if (uvs != null)
+            bytes += 4L * uvs.length;
+        return bytes;
+    }
+}
@@ -19,6 +19,7 @@ import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -30,6 +31,8 @@ public class TriangleMesh implements PrimitiveList {
     private FloatParameter normals;
     private FloatParameter uvs;
     private byte[] faceShaders;
+    private boolean compactStorage;
+    private CompactMesh compact;
 
     public static void setSmallTriangles(boolean smallTriangles) {
         if (smallTriangles)
@@ -44,9 +47,13 @@ public class TriangleMesh implements PrimitiveList {
         points = null;
         normals = uvs = new FloatParameter();
         faceShaders = null;
+        compactStorage = false;
+        compact = null;
     }
 
     public void writeObj(String filename) {
+        float[] points = compact == null ? this.points : compact.getPoints();
+        int[] triangles = compact == null ? this.triangles : compact.getTriangles();
         try {
             FileWriter file = new FileWriter(filename);
             file.write(String.format("o object\n"));
@@ -61,8 +68,37 @@ public class TriangleMesh implements PrimitiveList {
         }
     }
 
+    /**
+     * Write this mesh in the chunked binary format read by the
+     * <code>file_mesh</code> and <code>proxy</code> geometry types (see
+     * {@link ChunkedMeshFile}). Unlike {@link #writeObj(String)}, normals and
+     * texture coordinates are preserved.
+     *
+     * @param filename file to write, should end in <code>.sfm</code>
+     */
+    public void writeChunked(String filename) {
+        try {
+            if (compact == null)
+                ChunkedMeshFile.write(filename, triangles, points, normals, uvs);
+            else
+                ChunkedMeshFile.write(filename, compact.getTriangles(), compact.getPoints(), compact.getNormals(), compact.getUVs());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public boolean update(ParameterList pl, SunflowAPI api) {
         boolean updatedTopology = false;
+        if (compact != null) {
+            // restore the full precision arrays so that they can be partially
+            // updated, the mesh is compacted again below
+            triangles = compact.getTriangles();
+            points = compact.getPoints();
+            normals = compact.getNormals();
+            uvs = compact.getUVs();
+            compact = null;
+            updatedTopology = true;
+        }
         {
             int[] triangles = pl.getIntArray("triangles");
             if (triangles != null) {
@@ -109,14 +145,60 @@ public class TriangleMesh implements PrimitiveList {
                 this.faceShaders[i] = (byte) (v & 0xFF);
             }
         }
-        if (updatedTopology) {
+        compactStorage = pl.getBoolean("compact", compactStorage) && allowCompactStorage();
+        if (compactStorage) {
+            triaccel = null;
+            long bytes = getMemoryUsage();
+            compact = new CompactMesh(triangles, points, this.normals, this.uvs);
+            UI.printDetailed(Module.GEOM, "Compact mesh storage: %s (was %s)", Memory.bytesToString(compact.getBytes()), Memory.bytesToString(bytes));
+            // drop the full precision data, everything is read from the
+            // compact mesh from now on
+            this.triangles = null;
+            this.points = null;
+            this.normals = this.uvs = new FloatParameter();
+            triaccel = null;
+        } else if (updatedTopology) {
             // create triangle acceleration structure
             init();
         }
         return true;
     }
 
+    /**
+     * Returns <code>true</code> if this mesh may be stored in compact form
+     * when requested by the <code>compact</code> parameter. Subclasses which
+     * access the {@link #points} and {@link #triangles} arrays directly must
+     * return <code>false</code>.
+     *
+     * @return <code>true</code> if compact storage is supported
+     */
+    protected boolean allowCompactStorage() {
+        return true;
+    }
+
+    /**
+     * Estimate the amount of memory used by the data of this mesh.
+     *
+     * @return memory usage in bytes
+     */
+    public long getMemoryUsage() {
+        if (compact != null)
+            return compact.getBytes();
+        long bytes = 4L * triangles.length + 4L * points.length;
+        if (normals.data != null)
+            bytes += 4L * normals.data.length;
+        if (uvs.data != null)
+            bytes += 4L * uvs.data.length;
+        if (faceShaders != null)
+            bytes += faceShaders.length;
+        if (triaccel != null)
+            bytes += 64L * triaccel.length; // object header, fields and reference
+        return bytes;
+    }
+
     public float getPrimitiveBound(int primID, int i) {
+        if (compact != null)
+            return compact.getPrimitiveBound(primID, i);
         int tri = 3 * primID;
         int a = 3 * triangles[tri + 0];
         int b = 3 * triangles[tri + 1];
@@ -129,6 +211,8 @@ public class TriangleMesh implements PrimitiveList {
     }
 
     public BoundingBox getWorldBounds(Matrix4 o2w) {
+        if (compact != null)
+            return compact.getWorldBounds(o2w);
         BoundingBox bounds = new BoundingBox();
         if (o2w == null) {
             for (int i = 0; i < points.length; i += 3)
@@ -192,6 +276,11 @@ public class TriangleMesh implements PrimitiveList {
         // alternative test -- disabled for now
         // intersectPrimitiveRobust(r, primID, state);
 
+        if (compact != null) {
+            // triangle setup is done on the fly from the quantized points
+            compact.intersectPrimitive(r, primID, state);
+            return;
+        }
         if (triaccel != null) {
             // optional fast intersection method
             triaccel[primID].intersect(r, primID, state);
@@ -201,10 +290,16 @@ public class TriangleMesh implements PrimitiveList {
     }
 
     public int getNumPrimitives() {
+        if (compact != null)
+            return compact.getNumPrimitives();
         return triangles.length / 3;
     }
 
     public void prepareShadingState(ShadingState state) {
+        if (compact != null) {
+            compact.prepareShadingState(state, faceShaders);
+            return;
+        }
         state.init();
         Instance parent = state.getInstance();
         int primID = state.getPrimitiveID();
@@ -311,6 +406,10 @@ public class TriangleMesh implements PrimitiveList {
                 dpdv = state.transformVectorObjectToWorld(dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
+                // ratio of texture area to world area, for texture filtering
+                float area = Vector3.cross(state.transformVectorObjectToWorld(dp1), state.transformVectorObjectToWorld(dp2), new Vector3()).length();
+                if (area > 0)
+                    state.setTextureScale((float) Math.sqrt(Math.abs(determinant) / area));
             }
         } else
             state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
@@ -321,6 +420,8 @@ public class TriangleMesh implements PrimitiveList {
 
     public void init() {
         triaccel = null;
+        if (compact != null)
+            return;
         int nt = getNumPrimitives();
         if (!smallTriangles) {
             // too many triangles? -- don't generate triaccel to save memory
@@ -335,11 +436,20 @@ public class TriangleMesh implements PrimitiveList {
     }
 
     protected Point3 getPoint(int i) {
+        if (compact != null) {
+            Point3 p = new Point3();
+            compact.getPoint(i, p);
+            return p;
+        }
         i *= 3;
         return new Point3(points[i], points[i + 1], points[i + 2]);
     }
 
     public void getPoint(int tri, int i, Point3 p) {
+        if (compact != null) {
+            compact.getPoint(compact.getIndex(3 * tri + i), p);
+            return;
+        }
         int index = 3 * triangles[3 * tri + i];
         p.set(points[index], points[index + 1], points[index + 2]);
     }
@@ -479,17 +589,32 @@ public class TriangleMesh implements PrimitiveList {
     }
 
     public PrimitiveList getBakingPrimitives() {
+        FloatParameter uvs = compact == null ? this.uvs : compact.getUVs();
         switch (uvs.interp) {
             case NONE:
             case FACE:
                 UI.printError(Module.GEOM, "Cannot generate baking surface without texture coordinate data");
                 return null;
             default:
-                return new BakingSurface();
+                if (compact == null)
+                    return new BakingSurface(triangles, normals, uvs);
+                // the baking surface keeps its own decoded copy of the data
+                UI.printDetailed(Module.GEOM, "Decoding compact mesh for baking, texture coordinates are stored as half floats");
+                return new BakingSurface(compact.getTriangles(), compact.getNormals(), uvs);
         }
     }
 
     private class BakingSurface implements PrimitiveList {
+        private final int[] triangles;
+        private final FloatParameter normals;
+        private final FloatParameter uvs;
+
+        BakingSurface(int[] triangles, FloatParameter normals, FloatParameter uvs) {
+            this.triangles = triangles;
+            this.normals = normals;
+            this.uvs = uvs;
+        }
+
         public PrimitiveList getBakingPrimitives() {
             return null;
         }
@@ -515,7 +640,7 @@ public class TriangleMesh implements PrimitiveList {
                     int i20 = 2 * index0;
                     int i21 = 2 * index1;
                     int i22 = 2 * index2;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     switch (i) {
                         case 0:
                             return MathUtils.min(uvs[i20 + 0], uvs[i21 + 0], uvs[i22 + 0]);
@@ -531,7 +656,7 @@ public class TriangleMesh implements PrimitiveList {
                 }
                 case FACEVARYING: {
                     int idx = 6 * primID;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     switch (i) {
                         case 0:
                             return MathUtils.min(uvs[idx + 0], uvs[idx + 2], uvs[idx + 4]);
@@ -582,7 +707,7 @@ public class TriangleMesh implements PrimitiveList {
                     int i20 = 2 * index0;
                     int i21 = 2 * index1;
                     int i22 = 2 * index2;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     uv00 = uvs[i20 + 0];
                     uv01 = uvs[i20 + 1];
                     uv10 = uvs[i21 + 0];
@@ -594,7 +719,7 @@ public class TriangleMesh implements PrimitiveList {
                 }
                 case FACEVARYING: {
                     int idx = (3 * primID) << 1;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     uv00 = uvs[idx + 0];
                     uv01 = uvs[idx + 1];
                     uv10 = uvs[idx + 2];
@@ -689,7 +814,7 @@ public class TriangleMesh implements PrimitiveList {
                     int i30 = 3 * index0;
                     int i31 = 3 * index1;
                     int i32 = 3 * index2;
-                    float[] normals = TriangleMesh.this.normals.data;
+                    float[] normals = this.normals.data;
                     state.getNormal().x = w * normals[i30 + 0] + u * normals[i31 + 0] + v * normals[i32 + 0];
                     state.getNormal().y = w * normals[i30 + 1] + u * normals[i31 + 1] + v * normals[i32 + 1];
                     state.getNormal().z = w * normals[i30 + 2] + u * normals[i31 + 2] + v * normals[i32 + 2];
@@ -700,7 +825,7 @@ public class TriangleMesh implements PrimitiveList {
                 }
                 case FACEVARYING: {
                     int idx = 3 * tri;
-                    float[] normals = TriangleMesh.this.normals.data;
+                    float[] normals = this.normals.data;
                     state.getNormal().x = w * normals[idx + 0] + u * normals[idx + 3] + v * normals[idx + 6];
                     state.getNormal().y = w * normals[idx + 1] + u * normals[idx + 4] + v * normals[idx + 7];
                     state.getNormal().z = w * normals[idx + 2] + u * normals[idx + 5] + v * normals[idx + 8];
@@ -722,7 +847,7 @@ public class TriangleMesh implements PrimitiveList {
                     int i20 = 2 * index0;
                     int i21 = 2 * index1;
                     int i22 = 2 * index2;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     uv00 = uvs[i20 + 0];
                     uv01 = uvs[i20 + 1];
                     uv10 = uvs[i21 + 0];
@@ -733,7 +858,7 @@ public class TriangleMesh implements PrimitiveList {
                 }
                 case FACEVARYING: {
                     int idx = tri << 1;
-                    float[] uvs = TriangleMesh.this.uvs.data;
+                    float[] uvs = this.uvs.data;
                     uv00 = uvs[idx + 0];
                     uv01 = uvs[idx + 1];
                     uv10 = uvs[idx + 2];
@@ -1,5 +1,7 @@
 package org.sunflow.core.renderer;
 
+import java.util.Arrays;
+
 import org.sunflow.PluginRegistry;
 import org.sunflow.core.BucketOrder;
 import org.sunflow.core.Display;
@@ -8,6 +10,7 @@ import org.sunflow.core.ImageSampler;
 import org.sunflow.core.Instance;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
+import org.sunflow.core.RayPacket;
 import org.sunflow.core.Scene;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
@@ -22,6 +25,9 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 public class BucketRenderer implements ImageSampler {
+    // smallest region size a bucket may be split into at the end of a frame
+    private static final int MIN_SPLIT_SIZE = 8;
+
     private Scene scene;
     private Display display;
     // resolution
@@ -31,9 +37,12 @@ public class BucketRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
-    private int bucketCounter;
     private int[] bucketCoords;
     private boolean dumpBuckets;
+    private BucketScheduler scheduler;
+    private int splitSize;
+    // side of the blocks of eye rays traced as packets, 0 if disabled
+    private int packetSize;
 
     // anti-aliasing
     private int minAADepth;
@@ -66,6 +75,7 @@ public class BucketRenderer implements ImageSampler {
         contrastThreshold = 0.1f;
         filterName = "box";
         jitter = false; // off by default
+        packetSize = 0;
         dumpBuckets = false; // for debugging only - not user settable
     }
 
@@ -77,6 +87,7 @@ public class BucketRenderer implements ImageSampler {
         // fetch options
         bucketSize = options.getInt("bucket.size", bucketSize);
         bucketOrderName = options.getString("bucket.order", bucketOrderName);
+        packetSize = options.getInt("bucket.packets", packetSize);
         minAADepth = options.getInt("aa.min", minAADepth);
         maxAADepth = options.getInt("aa.max", maxAADepth);
         superSampling = options.getInt("aa.samples", superSampling);
@@ -90,6 +101,7 @@ public class BucketRenderer implements ImageSampler {
         int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
         bucketOrder = BucketOrderFactory.create(bucketOrderName);
         bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
+        packetSize = packetSize <= 0 ? 0 : MathUtils.clamp(packetSize, 2, 8);
         // validate AA options
         minAADepth = MathUtils.clamp(minAADepth, -4, 5);
         maxAADepth = MathUtils.clamp(maxAADepth, minAADepth, 5);
@@ -106,6 +118,9 @@ public class BucketRenderer implements ImageSampler {
         // compute anti-aliasing contrast thresholds
         contrastThreshold = MathUtils.clamp(contrastThreshold, 0, 1);
         thresh = contrastThreshold * (float) Math.pow(2.0f, minAADepth);
+        // split regions stay aligned on the coarsest sampling grid so that
+        // splitting a bucket doesn't change the adaptive refinement
+        splitSize = Math.max(MIN_SPLIT_SIZE, maxStepSize / subPixelSize);
         // read filter settings from scene
         filterName = options.getString("filter", filterName);
         filter = PluginRegistry.filterPlugins.createObject(filterName);
@@ -125,6 +140,10 @@ public class BucketRenderer implements ImageSampler {
         UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
         UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
         UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        if (packetSize > 0)
+            UI.printInfo(Module.BCKT, "  * Ray packets:        %dx%d", packetSize, packetSize);
+        else
+            UI.printInfo(Module.BCKT, "  * Ray packets:        off");
         if (minAADepth != maxAADepth)
             UI.printInfo(Module.BCKT, "  * Anti-aliasing:      %s -> %s (adaptive)", aaDepthToString(minAADepth), aaDepthToString(maxAADepth));
         else
@@ -145,83 +164,112 @@ public class BucketRenderer implements ImageSampler {
     public void render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
-        // set members variables
-        bucketCounter = 0;
         // start task
-        UI.taskStart("Rendering", 0, bucketCoords.length);
+        UI.taskStart("Rendering", 0, bucketCoords.length / 2);
         Timer timer = new Timer();
         timer.start();
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread(i);
-            renderThreads[i].setPriority(scene.getThreadPriority());
-            renderThreads[i].start();
-        }
-        // EP : Moved InterruptedException out of loop to be able to stop all rendering threads
-        try {
-            for (int i = 0; i < renderThreads.length; i++) {
-                try {
-                    renderThreads[i].join();
-                } finally {
-                    renderThreads[i].updateStats();
-                }
-            }
-        } catch (InterruptedException e) {
-            for (int i = 0; i < renderThreads.length; i++) {
-                renderThreads[i].interrupt();
+        scheduler = new BucketScheduler(scene.getThreads(), scene.getThreadPriority(), new BucketScheduler.WorkerFactory() {
+            public BucketScheduler.Worker createWorker(int threadID) {
+                return new BucketWorker(threadID);
             }
-            UI.printError(Module.BCKT, "Bucket processing was interrupted");
-        }
-        // EP : End of modification
+        });
+        scheduler.render(bucketCoords.length / 2);
+        scheduler.finish();
         UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        UI.printInfo(Module.BCKT, "Tail idle time: %s (%d buckets split)", Timer.toString(scheduler.getTailIdleTime()), scheduler.getNumSplits());
+        scheduler = null;
         display.imageEnd();
     }
 
-    private class BucketThread extends Thread {
-        private final int threadID;
+    private class BucketWorker extends BucketScheduler.Worker {
         private final IntersectionState istate;
+        private final BucketBuffer buffer;
 
-        BucketThread(int threadID) {
-            this.threadID = threadID;
+        BucketWorker(int threadID) {
+            super(threadID);
             istate = new IntersectionState();
+            buffer = new BucketBuffer();
         }
 
         @Override
-        public void run() {
-            // EP : Check rendering isn't interrupted 
-            while (!isInterrupted()) {
-                int bx, by;
-                synchronized (BucketRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length)
-                        return;
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
+        protected void renderBucket(int bucket) {
+            int x0 = bucketCoords[2 * bucket + 0] * bucketSize;
+            int y0 = bucketCoords[2 * bucket + 1] * bucketSize;
+            int bw = Math.min(bucketSize, imageWidth - x0);
+            int bh = Math.min(bucketSize, imageHeight - y0);
+            renderRegion(x0, y0, bw, bh);
+        }
+
+        private void renderRegion(int x0, int y0, int bw, int bh) {
+            if (scheduler.isStarving()) {
+                // not enough work left for all threads, let idle ones steal
+                // parts of this region
+                BucketScheduler.Part[] parts = splitRegion(x0, y0, bw, bh);
+                if (parts != null) {
+                    scheduler.renderParts(parts);
+                    return;
                 }
-                renderBucket(display, bx, by, threadID, istate);
             }
+            BucketRenderer.this.renderBucket(display, x0, y0, bw, bh, threadID, istate, buffer);
         }
 
-        void updateStats() {
+        @Override
+        protected void finish() {
             scene.accumulateStats(istate);
         }
     }
 
-    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate) {
-        // pixel sized extents
-        int x0 = bx * bucketSize;
-        int y0 = by * bucketSize;
-        int bw = Math.min(bucketSize, imageWidth - x0);
-        int bh = Math.min(bucketSize, imageHeight - y0);
+    /**
+     * Split a region into up to four parts along multiples of
+     * {@link #splitSize} pixels.
+     *
+     * @return the parts, or <code>null</code> if the region is too small
+     */
+    private BucketScheduler.Part[] splitRegion(int x0, int y0, int bw, int bh) {
+        int sw = bw >= 2 * splitSize ? (bw / 2 / splitSize) * splitSize : bw;
+        int sh = bh >= 2 * splitSize ? (bh / 2 / splitSize) * splitSize : bh;
+        if (sw == bw && sh == bh)
+            return null;
+        if (sw == bw)
+            return new BucketScheduler.Part[] {
+                    new BucketPart(x0, y0, bw, sh),
+                    new BucketPart(x0, y0 + sh, bw, bh - sh) };
+        if (sh == bh)
+            return new BucketScheduler.Part[] {
+                    new BucketPart(x0, y0, sw, bh),
+                    new BucketPart(x0 + sw, y0, bw - sw, bh) };
+        return new BucketScheduler.Part[] {
+                new BucketPart(x0, y0, sw, sh),
+                new BucketPart(x0 + sw, y0, bw - sw, sh),
+                new BucketPart(x0, y0 + sh, sw, bh - sh),
+                new BucketPart(x0 + sw, y0 + sh, bw - sw, bh - sh) };
+    }
+
+    private class BucketPart implements BucketScheduler.Part {
+        private final int x0, y0, bw, bh;
+
+        BucketPart(int x0, int y0, int bw, int bh) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.bw = bw;
+            this.bh = bh;
+        }
+
+        public void render(BucketScheduler.Worker worker) {
+            ((BucketWorker) worker).renderRegion(x0, y0, bw, bh);
+        }
+    }
 
+    private void renderBucket(Display display, int x0, int y0, int bw, int bh, int threadID, IntersectionState istate, BucketBuffer buffer) {
         // prepare bucket
         display.imagePrepare(x0, y0, bw, bh, threadID);
 
-        Color[] bucketRGB = new Color[bw * bh];
-        float[] bucketAlpha = new float[bw * bh];
+        // parts of split buckets must not evict the arrays of whole buckets
+        boolean part = bw != Math.min(bucketSize, imageWidth - x0) || bh != Math.min(bucketSize, imageHeight - y0);
+        Color[] bucketRGB = buffer.getPixels(bw * bh, part);
+        float[] bucketAlpha = buffer.getAlpha(bw * bh, part);
 
         // subpixel extents
         int sx0 = x0 * subPixelSize - fs;
@@ -237,9 +285,9 @@ public class BucketRenderer implements ImageSampler {
             sbw++;
             sbh++;
         }
-        // allocate bucket memory
-        ImageSample[] samples = new ImageSample[sbw * sbh];
-        // allocate samples and compute jitter offsets
+        // reset bucket memory
+        SampleBuffer samples = buffer.getSamples(sbw * sbh);
+        // initialize samples and compute jitter offsets
         float invSubPixelSize = 1.0f / subPixelSize;
         for (int y = 0, index = 0; y < sbh; y++) {
             for (int x = 0; x < sbw; x++, index++) {
@@ -253,9 +301,11 @@ public class BucketRenderer implements ImageSampler {
                 float rx = (sx + dx) * invSubPixelSize;
                 float ry = (sy + dy) * invSubPixelSize;
                 ry = imageHeight - ry;
-                samples[index] = new ImageSample(rx, ry, i);
+                samples.init(index, rx, ry, i);
             }
         }
+        if (packetSize > 0 && !tracePackets(samples, sbw, sbh, istate, buffer))
+            return;
         for (int x = 0; x < sbw - 1; x += maxStepSize)
             for (int y = 0; y < sbh - 1; y += maxStepSize) {
                 // EP : Check rendering isn't interrupted
@@ -265,12 +315,12 @@ public class BucketRenderer implements ImageSampler {
                 refineSamples(samples, sbw, x, y, maxStepSize, thresh, istate);
             }
         if (dumpBuckets) {
-            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", bx, by);
+            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", x0, y0);
             GenericBitmap bitmap = new GenericBitmap(sbw, sbh);
             for (int y = sbh - 1, index = 0; y >= 0; y--)
                 for (int x = 0; x < sbw; x++, index++)
-                    bitmap.writePixel(x, y, samples[index].c, samples[index].alpha);
-            bitmap.save(String.format("bucket_%04d_%04d.png", bx, by));
+                    bitmap.writePixel(x, y, samples.r[index], samples.g[index], samples.b[index], samples.alpha[index]);
+            bitmap.save(String.format("bucket_%04d_%04d.png", x0, y0));
         }
         if (displayAA) {
             // color coded image of what is visible
@@ -283,10 +333,11 @@ public class BucketRenderer implements ImageSampler {
                             int sx = x * subPixelSize + fs + i;
                             int sy = y * subPixelSize + fs + j;
                             int s = sx + sy * sbw;
-                            sampled += samples[s].sampled() ? 1 : 0;
+                            sampled += samples.sampled(s) ? 1 : 0;
                         }
                     }
-                    bucketRGB[index] = new Color(sampled * invArea);
+                    float v = sampled * invArea;
+                    bucketRGB[index].set(v, v, v);
                     bucketAlpha[index] = 1.0f;
                 }
             }
@@ -296,31 +347,32 @@ public class BucketRenderer implements ImageSampler {
             for (int y = 0, index = 0; y < bh; y++, cy--) {
                 float cx = x0 + 0.5f;
                 for (int x = 0; x < bw; x++, index++, cx++) {
-                    Color c = Color.black();
+                    float r = 0, g = 0, b = 0;
                     float a = 0;
                     float weight = 0.0f;
                     for (int j = -fs, sy = y * subPixelSize; j <= fs; j++, sy++) {
                         for (int i = -fs, sx = x * subPixelSize, s = sx + sy * sbw; i <= fs; i++, sx++, s++) {
-                            float dx = samples[s].rx - cx;
+                            float dx = samples.rx[s] - cx;
                             if (Math.abs(dx) > fhs)
                                 continue;
-                            float dy = samples[s].ry - cy;
+                            float dy = samples.ry[s] - cy;
                             if (Math.abs(dy) > fhs)
                                 continue;
                             float f = filter.get(dx, dy);
                             // EP : Test if color isn't null
-                            if (samples[s].c != null)
-                                c.madd(f, samples[s].c);
-                            a += f * samples[s].alpha;
+                            if (samples.processed(s)) {
+                                r += f * samples.r[s];
+                                g += f * samples.g[s];
+                                b += f * samples.b[s];
+                            }
+                            a += f * samples.alpha[s];
                             weight += f;
 
                         }
                     }
                     float invWeight = 1.0f / weight;
-                    c.mul(invWeight);
-                    a *= invWeight;
-                    bucketRGB[index] = c;
-                    bucketAlpha[index] = a;
+                    bucketRGB[index].set(r * invWeight, g * invWeight, b * invWeight);
+                    bucketAlpha[index] = a * invWeight;
                 }
             }
         }
@@ -328,46 +380,117 @@ public class BucketRenderer implements ImageSampler {
         display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
     }
 
-    private void computeSubPixel(ImageSample sample, IntersectionState istate) {
-        float x = sample.rx;
-        float y = sample.ry;
-        double q0 = QMC.halton(1, sample.i);
-        double q1 = QMC.halton(2, sample.i);
-        double q2 = QMC.halton(3, sample.i);
+    private void computeSubPixel(SampleBuffer samples, int s, IntersectionState istate) {
+        float x = samples.rx[s];
+        float y = samples.ry[s];
+        int si = samples.i[s];
+        double q0 = QMC.halton(1, si);
+        double q1 = QMC.halton(2, si);
+        double q2 = QMC.halton(3, si);
         if (superSampling > 1) {
             // multiple sampling
-            sample.add(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.add(s, scene.getRadiance(istate, x, y, q1, q2, q0, si, 4, null));
             for (int i = 1; i < superSampling; i++) {
                 double time = QMC.mod1(q0 + i * invSuperSampling);
                 double lensU = QMC.mod1(q1 + QMC.halton(0, i));
                 double lensV = QMC.mod1(q2 + QMC.halton(1, i));
-                sample.add(scene.getRadiance(istate, x, y, lensU, lensV, time, sample.i + i, 4, null));
+                samples.add(s, scene.getRadiance(istate, x, y, lensU, lensV, time, si + i, 4, null));
             }
-            sample.scale((float) invSuperSampling);
+            samples.scale(s, (float) invSuperSampling);
         } else {
             // single sample
-            sample.set(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.set(s, scene.getRadiance(istate, x, y, q1, q2, q0, si, 4, null));
+        }
+    }
+
+    /**
+     * Compute the samples on the coarsest sampling grid of a bucket, tracing
+     * the eye rays of blocks of neighbouring samples as packets. Samples added
+     * by the adaptive refinement are computed one at a time later on.
+     *
+     * @return <code>false</code> if rendering was interrupted
+     */
+    private boolean tracePackets(SampleBuffer samples, int sbw, int sbh, IntersectionState istate, BucketBuffer buffer) {
+        // same samples as the first level of refineSamples
+        if (sbw < 2 || sbh < 2)
+            return true;
+        int[] block = buffer.block;
+        int blockSize = packetSize * maxStepSize;
+        for (int y0 = 0; y0 < sbh; y0 += blockSize) {
+            for (int x0 = 0; x0 < sbw; x0 += blockSize) {
+                // EP : Check rendering isn't interrupted
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                int n = 0;
+                for (int y = y0; y < Math.min(y0 + blockSize, sbh); y += maxStepSize)
+                    for (int x = x0; x < Math.min(x0 + blockSize, sbw); x += maxStepSize)
+                        block[n++] = x + y * sbw;
+                computePacket(samples, block, n, istate, buffer);
+            }
         }
+        return true;
     }
 
-    private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
+    private void computePacket(SampleBuffer samples, int[] block, int n, IntersectionState istate, BucketBuffer buffer) {
+        RayPacket packet = buffer.packet;
+        int[] slots = buffer.slots;
+        for (int i = 0; i < superSampling; i++) {
+            packet.clear();
+            for (int j = 0; j < n; j++) {
+                int s = block[j];
+                float x = samples.rx[s];
+                float y = samples.ry[s];
+                int si = samples.i[s];
+                double time = QMC.halton(1, si);
+                double lensU = QMC.halton(2, si);
+                double lensV = QMC.halton(3, si);
+                if (i > 0) {
+                    time = QMC.mod1(time + i * invSuperSampling);
+                    lensU = QMC.mod1(lensU + QMC.halton(0, i));
+                    lensV = QMC.mod1(lensV + QMC.halton(1, i));
+                }
+                slots[j] = scene.addEyeRay(istate, packet, x, y, lensU, lensV, time);
+                // samples which can't be traced in a packet are done right away
+                if (slots[j] < 0)
+                    addSample(samples, s, scene.getRadiance(istate, x, y, lensU, lensV, time, si + i, 4, null));
+            }
+            scene.tracePacket(istate, packet);
+            for (int j = 0; j < n; j++) {
+                int s = block[j];
+                if (slots[j] >= 0)
+                    addSample(samples, s, scene.getRadiance(istate, packet, slots[j], samples.rx[s], samples.ry[s], samples.i[s] + i, 4, null));
+            }
+        }
+        if (superSampling > 1)
+            for (int j = 0; j < n; j++)
+                samples.scale(block[j], (float) invSuperSampling);
+    }
+
+    private void addSample(SampleBuffer samples, int s, ShadingState state) {
+        if (superSampling > 1)
+            samples.add(s, state);
+        else
+            samples.set(s, state);
+    }
+
+    private void refineSamples(SampleBuffer samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
         int dx = stepSize;
         int dy = stepSize * sbw;
-        int i00 = x + y * sbw;
-        ImageSample s00 = samples[i00];
-        ImageSample s01 = samples[i00 + dy];
-        ImageSample s10 = samples[i00 + dx];
-        ImageSample s11 = samples[i00 + dx + dy];
-        if (!s00.sampled())
-            computeSubPixel(s00, istate);
-        if (!s01.sampled())
-            computeSubPixel(s01, istate);
-        if (!s10.sampled())
-            computeSubPixel(s10, istate);
-        if (!s11.sampled())
-            computeSubPixel(s11, istate);
+        int s00 = x + y * sbw;
+        int s01 = s00 + dy;
+        int s10 = s00 + dx;
+        int s11 = s00 + dx + dy;
+        if (!samples.sampled(s00))
+            computeSubPixel(samples, s00, istate);
+        if (!samples.sampled(s01))
+            computeSubPixel(samples, s01, istate);
+        if (!samples.sampled(s10))
+            computeSubPixel(samples, s10, istate);
+        if (!samples.sampled(s11))
+            computeSubPixel(samples, s11, istate);
         if (stepSize > minStepSize) {
-            if (s00.isDifferent(s01, thresh) || s00.isDifferent(s10, thresh) || s00.isDifferent(s11, thresh) || s01.isDifferent(s11, thresh) || s10.isDifferent(s11, thresh) || s01.isDifferent(s10, thresh)) {
+            if (samples.isDifferent(s00, s01, thresh) || samples.isDifferent(s00, s10, thresh) || samples.isDifferent(s00, s11, thresh) || samples.isDifferent(s01, s11, thresh) || samples.isDifferent(s10, s11, thresh) || samples.isDifferent(s01, s10, thresh)) {
                 stepSize >>= 1;
                 thresh *= 2;
                 refineSamples(samples, sbw, x, y, stepSize, thresh, istate);
@@ -382,101 +505,203 @@ public class BucketRenderer implements ImageSampler {
         float ds = 1.0f / stepSize;
         for (int i = 0; i <= stepSize; i++)
             for (int j = 0; j <= stepSize; j++)
-                if (!samples[x + i + (y + j) * sbw].processed())
-                    ImageSample.bilerp(samples[x + i + (y + j) * sbw], s00, s01, s10, s11, i * ds, j * ds);
+                if (!samples.processed(x + i + (y + j) * sbw))
+                    samples.bilerp(x + i + (y + j) * sbw, s00, s01, s10, s11, i * ds, j * ds);
     }
 
-    private static final class ImageSample {
-        float rx, ry;
-        int i, n;
-        Color c;
-        float alpha;
-        Instance instance;
-        Shader shader;
-        float nx, ny, nz;
-
-        ImageSample(float rx, float ry, int i) {
-            this.rx = rx;
-            this.ry = ry;
-            this.i = i;
-            n = 0;
-            c = null;
-            alpha = 0;
-            instance = null;
-            shader = null;
-            nx = ny = nz = 1;
+    /**
+     * Per-thread storage reused from one bucket to the next. Sample memory
+     * grows to fit the largest bucket seen so far. Displays expect pixel arrays
+     * of the exact bucket size, so these are pooled by size: whole buckets come
+     * in at most four sizes (interior, edges and corner) which keep their
+     * arrays for the whole frame, while the parts of split buckets share a
+     * separate set of slots.
+     */
+    private static final class BucketBuffer {
+        private static final int BUCKET_SLOTS = 4;
+        private static final int PART_SLOTS = 8;
+        private static final int PIXEL_CACHE_SIZE = BUCKET_SLOTS + PART_SLOTS;
+
+        private final SampleBuffer samples = new SampleBuffer();
+        private final RayPacket packet = new RayPacket();
+        private final int[] slots = new int[RayPacket.MAX_SIZE];
+        private final int[] block = new int[RayPacket.MAX_SIZE];
+        private final Color[][] pixels = new Color[PIXEL_CACHE_SIZE][];
+        private final float[][] alpha = new float[PIXEL_CACHE_SIZE][];
+        private int nextBucketSlot = 0;
+        private int nextPartSlot = 0;
+
+        final SampleBuffer getSamples(int n) {
+            samples.reset(n);
+            return samples;
         }
 
-        final void set(ShadingState state) {
-            if (state == null)
-                c = Color.BLACK;
-            else {
-                c = state.getResult();
-                shader = state.getShader();
-                instance = state.getInstance();
+        final Color[] getPixels(int n, boolean part) {
+            return pixels[slot(n, part)];
+        }
+
+        final float[] getAlpha(int n, boolean part) {
+            return alpha[slot(n, part)];
+        }
+
+        private int slot(int n, boolean part) {
+            int first = part ? BUCKET_SLOTS : 0;
+            int last = part ? PIXEL_CACHE_SIZE : BUCKET_SLOTS;
+            for (int i = first; i < last; i++)
+                if (pixels[i] != null && pixels[i].length == n)
+                    return i;
+            int i;
+            if (part) {
+                i = BUCKET_SLOTS + nextPartSlot;
+                nextPartSlot = (nextPartSlot + 1) % PART_SLOTS;
+            } else {
+                i = nextBucketSlot;
+                nextBucketSlot = (nextBucketSlot + 1) % BUCKET_SLOTS;
+            }
+            pixels[i] = new Color[n];
+            for (int j = 0; j < n; j++)
+                pixels[i][j] = new Color();
+            alpha[i] = new float[n];
+            return i;
+        }
+    }
+
+    /**
+     * Subpixel samples of a bucket, stored as parallel arrays of primitives
+     * so that no objects need to be created per sample.
+     */
+    private static final class SampleBuffer {
+        float[] rx, ry;
+        int[] i, n;
+        boolean[] processed;
+        float[] r, g, b;
+        float[] alpha;
+        Instance[] instance;
+        Shader[] shader;
+        float[] nx, ny, nz;
+
+        SampleBuffer() {
+            resize(0);
+        }
+
+        private void resize(int size) {
+            rx = new float[size];
+            ry = new float[size];
+            i = new int[size];
+            n = new int[size];
+            processed = new boolean[size];
+            r = new float[size];
+            g = new float[size];
+            b = new float[size];
+            alpha = new float[size];
+            instance = new Instance[size];
+            shader = new Shader[size];
+            nx = new float[size];
+            ny = new float[size];
+            nz = new float[size];
+        }
+
+        final void reset(int size) {
+            if (size > rx.length)
+                resize(size);
+            // drop references to scene objects from the previous bucket
+            Arrays.fill(instance, 0, size, null);
+            Arrays.fill(shader, 0, size, null);
+        }
+
+        final void init(int s, float rx, float ry, int i) {
+            this.rx[s] = rx;
+            this.ry[s] = ry;
+            this.i[s] = i;
+            n[s] = 0;
+            processed[s] = false;
+            r[s] = g[s] = b[s] = 0;
+            alpha[s] = 0;
+            nx[s] = ny[s] = nz[s] = 1;
+        }
+
+        final void set(int s, ShadingState state) {
+            if (state == null) {
+                r[s] = g[s] = b[s] = 0;
+                processed[s] = true;
+            } else {
+                Color c = state.getResult();
+                processed[s] = c != null;
+                if (c != null) {
+                    r[s] = c.getRed();
+                    g[s] = c.getGreen();
+                    b[s] = c.getBlue();
+                }
+                shader[s] = state.getShader();
+                instance[s] = state.getInstance();
                 if (state.getNormal() != null) {
-                    nx = state.getNormal().x;
-                    ny = state.getNormal().y;
-                    nz = state.getNormal().z;
+                    nx[s] = state.getNormal().x;
+                    ny[s] = state.getNormal().y;
+                    nz[s] = state.getNormal().z;
                 }
-                alpha = state.getInstance() == null ? 0 : 1;
+                alpha[s] = state.getInstance() == null ? 0 : 1;
             }
-            n = 1;
+            n[s] = 1;
         }
 
-        final void add(ShadingState state) {
-            if (n == 0)
-                c = Color.black();
+        final void add(int s, ShadingState state) {
+            if (n[s] == 0) {
+                r[s] = g[s] = b[s] = 0;
+                processed[s] = true;
+            }
             if (state != null) {
-                c.add(state.getResult());
-                alpha += state.getInstance() == null ? 0 : 1;
+                Color c = state.getResult();
+                r[s] += c.getRed();
+                g[s] += c.getGreen();
+                b[s] += c.getBlue();
+                alpha[s] += state.getInstance() == null ? 0 : 1;
             }
-            n++;
+            n[s]++;
         }
 
-        final void scale(float s) {
-            c.mul(s);
-            alpha *= s;
+        final void scale(int s, float f) {
+            r[s] *= f;
+            g[s] *= f;
+            b[s] *= f;
+            alpha[s] *= f;
         }
 
-        final boolean processed() {
-            return c != null;
+        final boolean processed(int s) {
+            return processed[s];
         }
 
-        final boolean sampled() {
-            return n > 0;
+        final boolean sampled(int s) {
+            return n[s] > 0;
         }
 
-        final boolean isDifferent(ImageSample sample, float thresh) {
-            if (instance != sample.instance)
+        final boolean isDifferent(int s0, int s1, float thresh) {
+            if (instance[s0] != instance[s1])
+                return true;
+            if (shader[s0] != shader[s1])
+                return true;
+            if (Math.abs(r[s0] - r[s1]) / (r[s0] + r[s1]) > thresh)
                 return true;
-            if (shader != sample.shader)
+            if (Math.abs(g[s0] - g[s1]) / (g[s0] + g[s1]) > thresh)
                 return true;
-            if (Color.hasContrast(c, sample.c, thresh))
+            if (Math.abs(b[s0] - b[s1]) / (b[s0] + b[s1]) > thresh)
                 return true;
-            if (Math.abs(alpha - sample.alpha) / (alpha + sample.alpha) > thresh)
+            if (Math.abs(alpha[s0] - alpha[s1]) / (alpha[s0] + alpha[s1]) > thresh)
                 return true;
             // only compare normals if this pixel has not been averaged
-            float dot = (nx * sample.nx + ny * sample.ny + nz * sample.nz);
+            float dot = (nx[s0] * nx[s1] + ny[s0] * ny[s1] + nz[s0] * nz[s1]);
             return dot < 0.9f;
         }
 
-        static final ImageSample bilerp(ImageSample result, ImageSample i00, ImageSample i01, ImageSample i10, ImageSample i11, float dx, float dy) {
+        final void bilerp(int s, int s00, int s01, int s10, int s11, float dx, float dy) {
             float k00 = (1.0f - dx) * (1.0f - dy);
             float k01 = (1.0f - dx) * dy;
             float k10 = dx * (1.0f - dy);
             float k11 = dx * dy;
-            Color c00 = i00.c;
-            Color c01 = i01.c;
-            Color c10 = i10.c;
-            Color c11 = i11.c;
-            Color c = Color.mul(k00, c00);
-            c.madd(k01, c01);
-            c.madd(k10, c10);
-            c.madd(k11, c11);
-            result.c = c;
-            result.alpha = k00 * i00.alpha + k01 * i01.alpha + k10 * i10.alpha + k11 * i11.alpha;
-            return result;
+            r[s] = k00 * r[s00] + k01 * r[s01] + k10 * r[s10] + k11 * r[s11];
+            g[s] = k00 * g[s00] + k01 * g[s01] + k10 * g[s10] + k11 * g[s11];
+            b[s] = k00 * b[s00] + k01 * b[s01] + k10 * b[s10] + k11 * b[s11];
+            processed[s] = true;
+            alpha[s] = k00 * alpha[s00] + k01 * alpha[s01] + k10 * alpha[s10] + k11 * alpha[s11];
         }
     }
 }
\ No newline at end of file
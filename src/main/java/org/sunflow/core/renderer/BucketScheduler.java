@@ -0,0 +1,351 @@
+package org.sunflow.core.renderer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Distributes buckets to a pool of render threads. Buckets are identified by
+ * their index in a seed sequence (usually the one returned by a
+ * {@link org.sunflow.core.BucketOrder}). They are handed out in the order of
+ * the sequence: each thread of a {@link ForkJoinPool} takes the next bucket
+ * from an atomic cursor whenever it is done with the previous one, so the
+ * image fills in the order the bucket order intends. No lock is taken to hand
+ * out a bucket, and progress is reported to the {@link UI} from the calling
+ * thread instead of from the render threads.
+ * <p>
+ * Towards the end of a frame there are fewer buckets left than threads. A
+ * worker can then check {@link #isStarving()} and break its bucket into
+ * {@link Part parts} which the idle threads will steal, this is the only
+ * work stealing going on.
+ */
+public class BucketScheduler {
+    private static final long PROGRESS_INTERVAL = 100; // milliseconds
+
+    private final int numThreads;
+    private final WorkerFactory factory;
+    private final ForkJoinPool pool;
+    private final ArrayList<Worker> workers;
+    private final ThreadLocal<Worker> threadWorker;
+    private final AtomicInteger bucketsDone;
+    private final AtomicInteger pending;
+    private final AtomicInteger numSplits;
+    private long tailIdleTime;
+    private volatile boolean canceled;
+
+    /**
+     * Per-thread rendering context. A worker is created the first time a
+     * thread of the pool picks up a bucket and is only ever used by that
+     * thread, so it may safely hold thread-local state such as an
+     * {@link org.sunflow.core.IntersectionState}.
+     */
+    public static abstract class Worker {
+        protected final int threadID;
+        private volatile long lastDone;
+
+        protected Worker(int threadID) {
+            this.threadID = threadID;
+        }
+
+        /**
+         * Render the bucket at the specified index of the seed sequence.
+         *
+         * @param bucket bucket index
+         */
+        protected abstract void renderBucket(int bucket);
+
+        /**
+         * Called once from the rendering thread after all buckets have been
+         * processed. This is the place to accumulate statistics.
+         */
+        protected void finish() {
+        }
+    }
+
+    /**
+     * A piece of a bucket which can be rendered by any thread of the pool.
+     */
+    public interface Part {
+        /**
+         * Render this part using the context of the current thread.
+         *
+         * @param worker rendering context of the thread running this part
+         */
+        void render(Worker worker);
+    }
+
+    /**
+     * Creates the per-thread rendering contexts.
+     */
+    public interface WorkerFactory {
+        Worker createWorker(int threadID);
+    }
+
+    /**
+     * Creates a scheduler backed by a new pool of render threads.
+     *
+     * @param numThreads number of threads to render with
+     * @param priority priority of the render threads
+     * @param factory creates the per-thread rendering contexts
+     */
+    public BucketScheduler(int numThreads, final int priority, WorkerFactory factory) {
+        this.numThreads = Math.max(1, numThreads);
+        this.factory = factory;
+        workers = new ArrayList<Worker>();
+        bucketsDone = new AtomicInteger();
+        pending = new AtomicInteger();
+        numSplits = new AtomicInteger();
+        tailIdleTime = 0;
+        canceled = false;
+        final AtomicInteger threadCounter = new AtomicInteger();
+        threadWorker = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return createWorker(threadCounter.getAndIncrement());
+            }
+        };
+        pool = new ForkJoinPool(this.numThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setPriority(priority);
+                return thread;
+            }
+        }, null, false);
+    }
+
+    private Worker createWorker(int threadID) {
+        Worker worker = factory.createWorker(threadID);
+        synchronized (workers) {
+            workers.add(worker);
+        }
+        return worker;
+    }
+
+    /**
+     * Render buckets <code>0</code> to <code>numBuckets - 1</code> and wait
+     * for completion. Progress is reported through {@link UI#taskUpdate(int)}
+     * as the number of buckets completed since this scheduler was created,
+     * so several successive calls may share a single task.
+     *
+     * @param numBuckets number of buckets in the seed sequence
+     * @return <code>true</code> if all buckets were rendered,
+     *         <code>false</code> if rendering was interrupted
+     */
+    public boolean render(int numBuckets) {
+        if (canceled)
+            return false;
+        if (numBuckets <= 0)
+            return true;
+        FrameTask task = new FrameTask(numBuckets);
+        pending.set(numBuckets);
+        long start = System.nanoTime();
+        pool.execute(task);
+        try {
+            while (true) {
+                try {
+                    task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    UI.taskUpdate(bucketsDone.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            // EP : Stop all rendering threads
+            cancel();
+            UI.printError(Module.BCKT, "Bucket processing was interrupted");
+            return false;
+        } catch (ExecutionException e) {
+            cancel();
+            UI.printError(Module.BCKT, "Bucket processing failed: %s", e.getCause());
+            return false;
+        }
+        UI.taskUpdate(bucketsDone.get());
+        accumulateIdleTime(start, System.nanoTime());
+        return true;
+    }
+
+    private void accumulateIdleTime(long start, long end) {
+        synchronized (workers) {
+            // threads which never got any work were idle the whole time (the
+            // pool may have started extra threads to compensate for joins)
+            tailIdleTime += Math.max(0, numThreads - workers.size()) * (end - start);
+            for (Worker worker : workers)
+                tailIdleTime += end - Math.max(start, worker.lastDone);
+        }
+    }
+
+    /**
+     * Checks if fewer units of work are waiting to be picked up than there
+     * are threads. In this case some threads are (or will soon be) idle and
+     * the work at hand should rather be split into {@link Part parts}.
+     *
+     * @return <code>true</code> if some threads are running out of work
+     */
+    public boolean isStarving() {
+        return pending.get() < numThreads;
+    }
+
+    /**
+     * Render the specified parts and wait for all of them to complete. The
+     * parts are queued on the current thread where idle threads can steal
+     * them. This must only be called from within
+     * {@link Worker#renderBucket(int)} or {@link Part#render(Worker)}.
+     *
+     * @param parts parts to render
+     */
+    public void renderParts(Part[] parts) {
+        PartTask[] tasks = new PartTask[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            tasks[i] = new PartTask(parts[i]);
+        pending.addAndGet(parts.length);
+        numSplits.incrementAndGet();
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    /**
+     * Get the total time the render threads spent waiting for work, summed
+     * over all threads. Since threads steal work as long as there is any, this
+     * is mostly the time spent idle at the end of each call to
+     * {@link #render(int)}.
+     *
+     * @return idle time in nanoseconds
+     */
+    public long getTailIdleTime() {
+        return tailIdleTime;
+    }
+
+    /**
+     * Get the number of times work was split into parts.
+     *
+     * @return number of calls to {@link #renderParts(Part[])}
+     */
+    public int getNumSplits() {
+        return numSplits.get();
+    }
+
+    private void cancel() {
+        canceled = true;
+        pool.shutdownNow();
+        awaitTermination();
+    }
+
+    /**
+     * Wait until all render threads have stopped, so that no worker is in use
+     * anymore. Buckets which were already started are allowed to complete.
+     */
+    private void awaitTermination() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                // keep waiting, the threads are already being stopped
+                interrupted = true;
+                pool.shutdownNow();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stop the render threads and let every worker accumulate its statistics.
+     * Statistics are skipped if rendering was interrupted. The scheduler
+     * cannot be used anymore after this call.
+     */
+    public void finish() {
+        pool.shutdown();
+        awaitTermination();
+        synchronized (workers) {
+            if (!canceled)
+                for (Worker worker : workers)
+                    worker.finish();
+            workers.clear();
+        }
+    }
+
+    /**
+     * Renders a whole seed sequence with one {@link BucketTask} per thread,
+     * all sharing the same cursor.
+     */
+    private final class FrameTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int numBuckets;
+
+        FrameTask(int numBuckets) {
+            this.numBuckets = numBuckets;
+        }
+
+        @Override
+        protected void compute() {
+            AtomicInteger next = new AtomicInteger();
+            BucketTask[] tasks = new BucketTask[numThreads];
+            for (int i = 0; i < numThreads; i++)
+                tasks[i] = new BucketTask(next, numBuckets);
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Renders buckets one after the other, taking the next index of the seed
+     * sequence from the shared cursor until the sequence is exhausted.
+     */
+    private final class BucketTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final AtomicInteger next;
+        private final int numBuckets;
+
+        BucketTask(AtomicInteger next, int numBuckets) {
+            this.next = next;
+            this.numBuckets = numBuckets;
+        }
+
+        @Override
+        protected void compute() {
+            for (int bucket; (bucket = next.getAndIncrement()) < numBuckets;) {
+                // EP : Check rendering isn't interrupted
+                if (canceled || Thread.currentThread().isInterrupted())
+                    return;
+                pending.decrementAndGet();
+                Worker worker = threadWorker.get();
+                worker.renderBucket(bucket);
+                worker.lastDone = System.nanoTime();
+                bucketsDone.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Renders a single part of a bucket.
+     */
+    private final class PartTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Part part;
+
+        PartTask(Part part) {
+            this.part = part;
+        }
+
+        @Override
+        protected void compute() {
+            // EP : Check rendering isn't interrupted
+            if (canceled || Thread.currentThread().isInterrupted())
+                return;
+            pending.decrementAndGet();
+            Worker worker = threadWorker.get();
+            part.render(worker);
+            worker.lastDone = System.nanoTime();
+        }
+    }
+}
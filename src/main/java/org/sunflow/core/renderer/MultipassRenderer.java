@@ -26,7 +26,6 @@ public class MultipassRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
-    private int bucketCounter;
     private int[] bucketCoords;
 
     // anti-aliasing
@@ -74,69 +73,42 @@ public class MultipassRenderer implements ImageSampler {
     public void render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
-        // set members variables
-        bucketCounter = 0;
         // start task
         Timer timer = new Timer();
         timer.start();
-        UI.taskStart("Rendering", 0, bucketCoords.length);
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread(i);
-            renderThreads[i].setPriority(scene.getThreadPriority());
-            renderThreads[i].start();
-        }
-        // EP : Moved InterruptedException out of loop to be able to stop all rendering threads
-        try {
-            for (int i = 0; i < renderThreads.length; i++) {
-                try {
-                    renderThreads[i].join();
-                } finally {
-                    renderThreads[i].updateStats();
-                }
+        UI.taskStart("Rendering", 0, bucketCoords.length / 2);
+        BucketScheduler scheduler = new BucketScheduler(scene.getThreads(), scene.getThreadPriority(), new BucketScheduler.WorkerFactory() {
+            public BucketScheduler.Worker createWorker(int threadID) {
+                return new BucketWorker(threadID);
             }
-        } catch (InterruptedException e) {
-            for (int i = 0; i < renderThreads.length; i++) {
-                renderThreads[i].interrupt();
-            }
-            UI.printError(Module.BCKT, "Bucket processing was interrupted");
-        }
-        // EP : End of modification
+        });
+        scheduler.render(bucketCoords.length / 2);
+        scheduler.finish();
         UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
     }
 
-    private class BucketThread extends Thread {
-        private final int threadID;
+    private class BucketWorker extends BucketScheduler.Worker {
         private final IntersectionState istate;
         private final ShadingCache cache;
 
-        BucketThread(int threadID) {
-            this.threadID = threadID;
+        BucketWorker(int threadID) {
+            super(threadID);
             istate = new IntersectionState();
             cache = shadingCache ? new ShadingCache() : null;
         }
 
         @Override
-        public void run() {
-            // EP : Check rendering isn't interrupted or canceled
-            while (!isInterrupted()) {
-                int bx, by;
-                synchronized (MultipassRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length)
-                        return;
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
-                }
-                renderBucket(display, bx, by, threadID, istate, cache);
-            }
+        protected void renderBucket(int bucket) {
+            int bx = bucketCoords[2 * bucket + 0];
+            int by = bucketCoords[2 * bucket + 1];
+            MultipassRenderer.this.renderBucket(display, bx, by, threadID, istate, cache);
         }
 
-        void updateStats() {
+        @Override
+        protected void finish() {
             scene.accumulateStats(istate);
             if (shadingCache)
                 scene.accumulateStats(cache);
@@ -211,7 +183,7 @@ public class MultipassRenderer implements ImageSampler {
      * @param x samples in the [0,1) range
      * @return warped sample in the [-2,+2) range
      */
-    private static final double warpCubic(double x) {
+    static final double warpCubic(double x) {
         if (x < (1.0 / 24))
             return qpow(24 * x) - 2;
         if (x < 0.5f)
@@ -1,6 +1,6 @@
 package org.sunflow.core.renderer;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
 
 import org.sunflow.core.Display;
 import org.sunflow.core.ImageSampler;
@@ -15,16 +15,17 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 public class ProgressiveRenderer implements ImageSampler {
+    private static final int TASK_SIZE = 16;
     private Scene scene;
     private int imageWidth, imageHeight;
-    private PriorityBlockingQueue<SmallBucket> smallBucketQueue;
+    private SmallBucket[] smallBuckets;
+    private boolean useMask;
     private Display display;
-    private int counter, counterMax;
 
     public ProgressiveRenderer() {
         imageWidth = 640;
         imageHeight = 480;
-        smallBucketQueue = null;
+        smallBuckets = null;
     }
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
@@ -45,72 +46,63 @@ public class ProgressiveRenderer implements ImageSampler {
         b.size = 1;
         while (b.size < s)
             b.size <<= 1;
-        smallBucketQueue = new PriorityBlockingQueue<SmallBucket>();
-        smallBucketQueue.add(b);
-        UI.taskStart("Progressive Render", 0, imageWidth * imageHeight);
+        // count buckets over all levels of refinement
+        int numBuckets = 0;
+        for (int size = b.size;; size >>>= 1) {
+            numBuckets += ((imageWidth + size - 1) / size) * ((imageHeight + size - 1) / size);
+            if (size < 2 * TASK_SIZE)
+                break;
+        }
+        ArrayList<SmallBucket> level = new ArrayList<SmallBucket>();
+        level.add(b);
+        UI.taskStart("Progressive Render", 0, numBuckets);
         Timer t = new Timer();
         t.start();
-        counter = 0;
-        counterMax = imageWidth * imageHeight;
-
-        SmallBucketThread[] renderThreads = new SmallBucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new SmallBucketThread();
-            renderThreads[i].start();
-        }
-        // EP : Moved InterruptedException out of loop to be able to stop all rendering threads
-        try {
-            for (int i = 0; i < renderThreads.length; i++) {
-                try {
-                    renderThreads[i].join();
-                } finally {
-                    renderThreads[i].updateStats();
-                }
+        BucketScheduler scheduler = new BucketScheduler(scene.getThreads(), scene.getThreadPriority(), new BucketScheduler.WorkerFactory() {
+            public BucketScheduler.Worker createWorker(int threadID) {
+                return new SmallBucketWorker(threadID);
             }
-        } catch (InterruptedException e) {
-            for (int i = 0; i < renderThreads.length; i++) {
-                renderThreads[i].interrupt();
-            }
-            UI.printError(Module.IPR, "Thread was interrupted");
+        });
+        // render coarse levels first, every bucket of a level is independent
+        useMask = false;
+        while (!level.isEmpty()) {
+            smallBuckets = level.toArray(new SmallBucket[level.size()]);
+            if (!scheduler.render(smallBuckets.length))
+                break;
+            level.clear();
+            for (SmallBucket first : smallBuckets)
+                addChildBuckets(first, level);
+            useMask = true;
         }
-        // EP : End of modification
+        scheduler.finish();
+        smallBuckets = null;
         UI.taskStop();
         t.end();
         UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
         display.imageEnd();
     }
 
-    private class SmallBucketThread extends Thread {
+    private class SmallBucketWorker extends BucketScheduler.Worker {
         private final IntersectionState istate = new IntersectionState();
 
+        SmallBucketWorker(int threadID) {
+            super(threadID);
+        }
+
         @Override
-        public void run() {
-            // EP : Check rendering isn't interrupted
-            while (!isInterrupted()) {
-                int n = progressiveRenderNext(istate);
-                synchronized (ProgressiveRenderer.this) {
-                    if (counter >= counterMax)
-                        return;
-                    counter += n;
-                    UI.taskUpdate(counter);
-                }
-            }
+        protected void renderBucket(int bucket) {
+            progressiveRender(smallBuckets[bucket], istate);
         }
 
-        void updateStats() {
+        @Override
+        protected void finish() {
             scene.accumulateStats(istate);
         }
     }
 
-    private int progressiveRenderNext(IntersectionState istate) {
-        final int TASK_SIZE = 16;
-        SmallBucket first = smallBucketQueue.poll();
-        if (first == null)
-            return 0;
+    private void progressiveRender(SmallBucket first, IntersectionState istate) {
         int ds = first.size / TASK_SIZE;
-        boolean useMask = !smallBucketQueue.isEmpty();
         int mask = 2 * first.size / TASK_SIZE - 1;
-        int pixels = 0;
         for (int i = 0, y = first.y; i < TASK_SIZE && y < imageHeight; i++, y += ds) {
             for (int j = 0, x = first.x; j < TASK_SIZE && x < imageWidth; j++, x += ds) {
                 // check to see if this is a pixel from a higher level tile
@@ -122,11 +114,13 @@ public class ProgressiveRenderer implements ImageSampler {
                 double lensV = QMC.halton(3, instance);
                 ShadingState state = scene.getRadiance(istate, x, imageHeight - 1 - y, lensU, lensV, time, instance, 4, null);
                 Color c = state != null ? state.getResult() : Color.BLACK;
-                pixels++;
                 // fill region
                 display.imageFill(x, y, Math.min(ds, imageWidth - x), Math.min(ds, imageHeight - y), c, state == null ? 0 : 1);
             }
         }
+    }
+
+    private void addChildBuckets(SmallBucket first, ArrayList<SmallBucket> level) {
         if (first.size >= 2 * TASK_SIZE) {
             // generate child buckets
             int size = first.size >>> 1;
@@ -138,27 +132,16 @@ public class ProgressiveRenderer implements ImageSampler {
                             b.x = first.x + j * size;
                             b.y = first.y + i * size;
                             b.size = size;
-                            b.constrast = 1.0f / size;
-                            smallBucketQueue.put(b);
+                            level.add(b);
                         }
                     }
                 }
             }
         }
-        return pixels;
     }
 
     // progressive rendering
-    private static class SmallBucket implements Comparable<SmallBucket> {
+    private static class SmallBucket {
         int x, y, size;
-        float constrast;
-
-        public int compareTo(SmallBucket o) {
-            if (constrast < o.constrast)
-                return -1;
-            if (constrast == o.constrast)
-                return 0;
-            return 1;
-        }
     }
 }
\ No newline at end of file
@@ -16,7 +16,7 @@ public class SimpleRenderer implements ImageSampler {
     private Display display;
     private int imageWidth, imageHeight;
     private int numBucketsX, numBucketsY;
-    private int bucketCounter, numBuckets;
+    private int numBuckets;
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
@@ -31,58 +31,37 @@ public class SimpleRenderer implements ImageSampler {
     public void render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, 32);
-        // set members variables
-        bucketCounter = 0;
         // start task
+        UI.taskStart("Rendering", 0, numBuckets);
         Timer timer = new Timer();
         timer.start();
-        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
-        for (int i = 0; i < renderThreads.length; i++) {
-            renderThreads[i] = new BucketThread();
-            renderThreads[i].start();
-        }
-        // EP : Moved InterruptedException out of loop to be able to stop all rendering threads
-        try {
-            for (int i = 0; i < renderThreads.length; i++) {
-                try {
-                    renderThreads[i].join();
-                } finally {
-                    renderThreads[i].updateStats();
-                }
-            }
-        } catch (InterruptedException e) {
-            for (int i = 0; i < renderThreads.length; i++) {
-                renderThreads[i].interrupt();
+        BucketScheduler scheduler = new BucketScheduler(scene.getThreads(), scene.getThreadPriority(), new BucketScheduler.WorkerFactory() {
+            public BucketScheduler.Worker createWorker(int threadID) {
+                return new BucketWorker(threadID);
             }
-            UI.printError(Module.BCKT, "Bucket processing was interrupted");
-        }
+        });
+        scheduler.render(numBuckets);
+        scheduler.finish();
         UI.taskStop();
-        // EP : End of modification
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
         display.imageEnd();
     }
 
-    private class BucketThread extends Thread {
+    private class BucketWorker extends BucketScheduler.Worker {
         private final IntersectionState istate = new IntersectionState();
 
+        BucketWorker(int threadID) {
+            super(threadID);
+        }
+
         @Override
-        public void run() {
-            // EP : Check rendering isn't interrupted 
-            while (!isInterrupted()) {
-                int bx, by;
-                synchronized (SimpleRenderer.this) {
-                    if (bucketCounter >= numBuckets)
-                        return;
-                    by = bucketCounter / numBucketsX;
-                    bx = bucketCounter % numBucketsX;
-                    bucketCounter++;
-                }
-                renderBucket(bx, by, istate);
-            }
+        protected void renderBucket(int bucket) {
+            SimpleRenderer.this.renderBucket(bucket % numBucketsX, bucket / numBucketsX, istate);
         }
 
-        void updateStats() {
+        @Override
+        protected void finish() {
             scene.accumulateStats(istate);
         }
     }
@@ -0,0 +1,439 @@
+package org.sunflow.core.renderer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import org.sunflow.core.BucketOrder;
+import org.sunflow.core.Display;
+import org.sunflow.core.FinalGatherQueue;
+import org.sunflow.core.ImageSampler;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Options;
+import org.sunflow.core.Ray;
+import org.sunflow.core.RayPacket;
+import org.sunflow.core.Scene;
+import org.sunflow.core.Shader;
+import org.sunflow.core.ShadingState;
+import org.sunflow.core.bucket.BucketOrderFactory;
+import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
+import org.sunflow.math.QMC;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Renders each bucket breadth first: the eye rays of the bucket are traced as
+ * one wave, then the diffuse bounces they spawn, and so on. Waves are handled
+ * in batches of up to <code>wavefront.size</code> rays, deepest bounce first
+ * so that few rays and shading states are waiting in memory. Each batch is
+ * sorted by ray direction and origin along a Morton curve before being traced
+ * in {@link RayPacket}s, and its hits are grouped by shader before being
+ * shaded, so that neighbouring rays and shading points touch the same parts
+ * of the acceleration structures, meshes and textures.
+ * <p>
+ * The pixels are sampled like the {@link MultipassRenderer}. Shaders which
+ * query the path tracing GI engine queue their final gather rays for the next
+ * wave instead of tracing them recursively, which gives the same estimate as
+ * rendering with that engine. Other engines, as well as reflections,
+ * refractions and shadows, are still computed from within each shader.
+ */
+public class WavefrontRenderer implements ImageSampler {
+    // bits of the ray sort keys
+    private static final int ORIGIN_BITS = 6;
+    private static final int DIRECTION_BITS = 3;
+
+    private Scene scene;
+    private Display display;
+    // resolution
+    private int imageWidth;
+    private int imageHeight;
+    // bucketing
+    private String bucketOrderName;
+    private BucketOrder bucketOrder;
+    private int bucketSize;
+    private int[] bucketCoords;
+
+    // anti-aliasing
+    private int numSamples;
+    private float invNumSamples;
+    // largest number of rays traced and shaded together
+    private int waveSize;
+
+    public WavefrontRenderer() {
+        bucketSize = 32;
+        bucketOrderName = "hilbert";
+        numSamples = 16;
+        waveSize = 4096;
+    }
+
+    public boolean prepare(Options options, Scene scene, int w, int h) {
+        this.scene = scene;
+        imageWidth = w;
+        imageHeight = h;
+
+        // fetch options
+        bucketSize = options.getInt("bucket.size", bucketSize);
+        bucketOrderName = options.getString("bucket.order", bucketOrderName);
+        numSamples = options.getInt("aa.samples", numSamples);
+        waveSize = options.getInt("wavefront.size", waveSize);
+
+        // limit bucket size and compute number of buckets in each direction
+        bucketSize = MathUtils.clamp(bucketSize, 16, 512);
+        int numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
+        int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
+        bucketOrder = BucketOrderFactory.create(bucketOrderName);
+        bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
+        // validate AA options
+        numSamples = Math.max(1, numSamples);
+        invNumSamples = 1.0f / numSamples;
+        waveSize = MathUtils.clamp(waveSize, RayPacket.MAX_SIZE, 1 << 20);
+        UI.printInfo(Module.BCKT, "Wavefront renderer settings:");
+        UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
+        UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
+        UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        UI.printInfo(Module.BCKT, "  * Samples / pixel:    %d", numSamples);
+        UI.printInfo(Module.BCKT, "  * Rays / wave:        %d", waveSize);
+        return true;
+    }
+
+    public void render(Display display) {
+        this.display = display;
+        display.imageBegin(imageWidth, imageHeight, bucketSize);
+        // start task
+        Timer timer = new Timer();
+        timer.start();
+        UI.taskStart("Rendering", 0, bucketCoords.length / 2);
+        BucketScheduler scheduler = new BucketScheduler(scene.getThreads(), scene.getThreadPriority(), new BucketScheduler.WorkerFactory() {
+            public BucketScheduler.Worker createWorker(int threadID) {
+                return new BucketWorker(threadID);
+            }
+        });
+        scheduler.render(bucketCoords.length / 2);
+        scheduler.finish();
+        UI.taskStop();
+        timer.end();
+        UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        display.imageEnd();
+    }
+
+    private class BucketWorker extends BucketScheduler.Worker {
+        private final IntersectionState istate;
+        private final RayPacket packet;
+        private final Batch batch;
+        // pending rays of each bounce
+        private final ArrayList<Wave> waves;
+
+        BucketWorker(int threadID) {
+            super(threadID);
+            istate = new IntersectionState();
+            packet = new RayPacket();
+            batch = new Batch(waveSize);
+            waves = new ArrayList<Wave>();
+            waves.add(new Wave());
+        }
+
+        @Override
+        protected void renderBucket(int bucket) {
+            int bx = bucketCoords[2 * bucket + 0];
+            int by = bucketCoords[2 * bucket + 1];
+            WavefrontRenderer.this.renderBucket(display, bx, by, threadID, this);
+        }
+
+        @Override
+        protected void finish() {
+            scene.accumulateStats(istate);
+        }
+    }
+
+    private void renderBucket(Display display, int bx, int by, int threadID, BucketWorker worker) {
+        // pixel sized extents
+        int x0 = bx * bucketSize;
+        int y0 = by * bucketSize;
+        int bw = Math.min(bucketSize, imageWidth - x0);
+        int bh = Math.min(bucketSize, imageHeight - y0);
+
+        // prepare bucket
+        display.imagePrepare(x0, y0, bw, bh, threadID);
+
+        Color[] bucketRGB = new Color[bw * bh];
+        float[] bucketAlpha = new float[bw * bh];
+
+        // generate the eye rays, with the same samples as the multipass
+        // renderer
+        IntersectionState istate = worker.istate;
+        ArrayList<Wave> waves = worker.waves;
+        for (Wave wave : waves)
+            wave.truncate(0);
+        Wave eyeWave = waves.get(0);
+        for (int y = 0, i = 0, cy = imageHeight - 1 - y0; y < bh; y++, cy--) {
+            for (int x = 0, cx = x0; x < bw; x++, i++, cx++) {
+                // EP : Check rendering isn't interrupted
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                bucketRGB[i] = Color.black();
+                int instance = ((cx & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(cy & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
+                double jitterX = QMC.halton(0, instance);
+                double jitterY = QMC.halton(1, instance);
+                double jitterT = QMC.halton(2, instance);
+                double jitterU = QMC.halton(3, instance);
+                double jitterV = QMC.halton(4, instance);
+                for (int s = 0; s < numSamples; s++) {
+                    float rx = cx + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterX + s * invNumSamples));
+                    float ry = cy + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterY + QMC.halton(0, s)));
+                    double time = QMC.mod1(jitterT + QMC.halton(1, s));
+                    double lensU = QMC.mod1(jitterU + QMC.halton(2, s));
+                    double lensV = QMC.mod1(jitterV + QMC.halton(3, s));
+                    float sceneTime = scene.getCameraTime(time);
+                    Ray r = scene.getEyeRay(istate, rx, ry, lensU, lensV, sceneTime);
+                    if (r != null) {
+                        eyeWave.addEyeRay(r, sceneTime, i, rx, ry, instance + s);
+                        continue;
+                    }
+                    // this sample can't be part of the wave
+                    ShadingState state = scene.getRadiance(istate, rx, ry, lensU, lensV, time, instance + s, 5, null);
+                    if (state != null) {
+                        bucketRGB[i].add(state.getResult());
+                        bucketAlpha[i]++;
+                    }
+                }
+            }
+        }
+
+        // always continue with the deepest bounce, this bounds the number of
+        // rays and shading states waiting in memory
+        while (true) {
+            // EP : Check rendering isn't interrupted
+            if (Thread.currentThread().isInterrupted())
+                return;
+            int depth = waves.size() - 1;
+            while (depth >= 0 && waves.get(depth).size == 0)
+                depth--;
+            if (depth < 0)
+                break;
+            if (depth == waves.size() - 1)
+                waves.add(new Wave());
+            Wave wave = waves.get(depth);
+            int start = Math.max(0, wave.size - waveSize);
+            renderBatch(wave, start, waves.get(depth + 1), depth == 0, worker, bucketRGB, bucketAlpha);
+            wave.truncate(start);
+        }
+        for (int i = 0; i < bucketRGB.length; i++) {
+            bucketRGB[i].mul(invNumSamples);
+            bucketAlpha[i] *= invNumSamples;
+        }
+        // update pixels
+        display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+    }
+
+    /**
+     * Trace and shade the rays of a wave from the specified index onwards,
+     * queuing their final gather rays into the next wave.
+     */
+    private void renderBatch(Wave wave, int start, Wave next, boolean eye, BucketWorker worker, Color[] bucketRGB, float[] bucketAlpha) {
+        IntersectionState istate = worker.istate;
+        RayPacket packet = worker.packet;
+        Batch batch = worker.batch;
+        int n = wave.size - start;
+        // trace in sorted order
+        batch.sortRays(wave, start);
+        for (int k0 = 0; k0 < n; k0 += RayPacket.MAX_SIZE) {
+            int k1 = Math.min(k0 + RayPacket.MAX_SIZE, n);
+            packet.clear();
+            for (int k = k0; k < k1; k++) {
+                int j = batch.order[k];
+                packet.add(wave.rays[j], wave.times[j]);
+            }
+            scene.tracePacket(istate, packet);
+            for (int k = k0; k < k1; k++) {
+                int j = batch.order[k];
+                if (eye)
+                    batch.states[j - start] = scene.getShadingState(istate, packet, k - k0, wave.rx[j], wave.ry[j], wave.samples[j], 5);
+                else
+                    batch.states[j - start] = scene.getFinalGatherState(istate, packet, k - k0, wave.previous[j], wave.samples[j]);
+            }
+        }
+        // shade grouped by shader
+        batch.sortStates(start, n);
+        next.source = wave;
+        for (int k = 0; k < n; k++) {
+            int j = batch.shadeOrder[k];
+            ShadingState state = batch.states[j - start];
+            if (state == null)
+                continue;
+            batch.states[j - start] = null;
+            next.parent = j;
+            scene.shade(state, next);
+            int pixel = wave.pixels[j];
+            if (eye) {
+                bucketRGB[pixel].add(state.getResult());
+                bucketAlpha[pixel]++;
+            } else
+                bucketRGB[pixel].madd(wave.weights[j], state.getResult());
+        }
+        next.source = null;
+    }
+
+    /**
+     * The rays of one bounce which are waiting to be traced.
+     */
+    private static final class Wave implements FinalGatherQueue {
+        int size;
+        Ray[] rays;
+        float[] times;
+        int[] pixels;
+        Color[] weights; // null for eye rays
+        ShadingState[] previous; // null for eye rays
+        int[] samples;
+        float[] rx, ry;
+        // ray of the previous wave being shaded while rays are queued
+        Wave source;
+        int parent;
+
+        Wave() {
+            size = 0;
+            rays = new Ray[0];
+            times = new float[0];
+            pixels = new int[0];
+            weights = new Color[0];
+            previous = new ShadingState[0];
+            samples = new int[0];
+            rx = new float[0];
+            ry = new float[0];
+        }
+
+        private int add(Ray r, int sample) {
+            if (size == rays.length) {
+                int capacity = Math.max(1024, 2 * size);
+                rays = Arrays.copyOf(rays, capacity);
+                times = Arrays.copyOf(times, capacity);
+                pixels = Arrays.copyOf(pixels, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                previous = Arrays.copyOf(previous, capacity);
+                samples = Arrays.copyOf(samples, capacity);
+                rx = Arrays.copyOf(rx, capacity);
+                ry = Arrays.copyOf(ry, capacity);
+            }
+            rays[size] = r;
+            samples[size] = sample;
+            return size++;
+        }
+
+        void addEyeRay(Ray r, float time, int pixel, float x, float y, int sample) {
+            int k = add(r, sample);
+            times[k] = time;
+            pixels[k] = pixel;
+            weights[k] = null;
+            previous[k] = null;
+            rx[k] = x;
+            ry[k] = y;
+        }
+
+        public void add(ShadingState state, Ray r, int i, Color weight) {
+            int k = add(r, i);
+            // the ray belongs to the same sample as the ray which spawned it
+            times[k] = source.times[parent];
+            pixels[k] = source.pixels[parent];
+            Color w = source.weights[parent];
+            weights[k] = w == null ? weight : Color.mul(w, weight);
+            previous[k] = state;
+        }
+
+        /**
+         * Remove the rays from the specified index onwards.
+         */
+        void truncate(int n) {
+            Arrays.fill(rays, n, size, null);
+            Arrays.fill(weights, n, size, null);
+            Arrays.fill(previous, n, size, null);
+            size = n;
+        }
+    }
+
+    /**
+     * Scratch space for the rays of a wave being traced and shaded together.
+     */
+    private static final class Batch {
+        final ShadingState[] states;
+        final int[] order;
+        final int[] shadeOrder;
+        private final long[] keys;
+        private final IdentityHashMap<Shader, Integer> shaderIDs;
+
+        Batch(int size) {
+            states = new ShadingState[size];
+            order = new int[size];
+            shadeOrder = new int[size];
+            keys = new long[size];
+            shaderIDs = new IdentityHashMap<Shader, Integer>();
+        }
+
+        /**
+         * Sort the rays of a wave by direction octant, then along a Morton
+         * curve through their origins and directions.
+         */
+        void sortRays(Wave wave, int start) {
+            int n = wave.size - start;
+            // bounds of the origins
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+            for (int j = start; j < wave.size; j++) {
+                Ray r = wave.rays[j];
+                minX = Math.min(minX, r.ox);
+                minY = Math.min(minY, r.oy);
+                minZ = Math.min(minZ, r.oz);
+                maxX = Math.max(maxX, r.ox);
+                maxY = Math.max(maxY, r.oy);
+                maxZ = Math.max(maxZ, r.oz);
+            }
+            int cells = 1 << ORIGIN_BITS;
+            float sx = maxX > minX ? cells / (maxX - minX) : 0;
+            float sy = maxY > minY ? cells / (maxY - minY) : 0;
+            float sz = maxZ > minZ ? cells / (maxZ - minZ) : 0;
+            int dirCells = 1 << DIRECTION_BITS;
+            for (int k = 0; k < n; k++) {
+                int j = start + k;
+                Ray r = wave.rays[j];
+                int octant = (r.dx < 0 ? 4 : 0) | (r.dy < 0 ? 2 : 0) | (r.dz < 0 ? 1 : 0);
+                long key = octant;
+                key = (key << (3 * ORIGIN_BITS)) | morton(quantize(r.ox, minX, sx, cells), quantize(r.oy, minY, sy, cells), quantize(r.oz, minZ, sz, cells), ORIGIN_BITS);
+                key = (key << (3 * DIRECTION_BITS)) | morton(quantize(Math.abs(r.dx), 0, dirCells, dirCells), quantize(Math.abs(r.dy), 0, dirCells, dirCells), quantize(Math.abs(r.dz), 0, dirCells, dirCells), DIRECTION_BITS);
+                keys[k] = (key << 32) | j;
+            }
+            Arrays.sort(keys, 0, n);
+            for (int k = 0; k < n; k++)
+                order[k] = (int) keys[k];
+        }
+
+        /**
+         * Sort the hits by shader, keeping the ray order within each shader.
+         */
+        void sortStates(int start, int n) {
+            for (int k = 0; k < n; k++) {
+                ShadingState state = states[order[k] - start];
+                Shader shader = state == null ? null : state.getShader();
+                Integer id = shaderIDs.get(shader);
+                if (id == null)
+                    shaderIDs.put(shader, id = shaderIDs.size());
+                keys[k] = ((long) id << 32) | k;
+            }
+            shaderIDs.clear();
+            Arrays.sort(keys, 0, n);
+            for (int k = 0; k < n; k++)
+                shadeOrder[k] = order[(int) keys[k]];
+        }
+
+        private static int quantize(float x, float min, float scale, int cells) {
+            int i = (int) ((x - min) * scale);
+            return i < 0 ? 0 : (i >= cells ? cells - 1 : i);
+        }
+
+        private static long morton(int x, int y, int z, int bits) {
+            long m = 0;
+            for (int b = bits - 1; b >= 0; b--)
+                m = (m << 3) | (((x >>> b) & 1) << 2) | (((y >>> b) & 1) << 1) | ((z >>> b) & 1);
+            return m;
+        }
+    }
+}
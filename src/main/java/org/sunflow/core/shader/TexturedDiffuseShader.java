@@ -26,18 +26,19 @@ public class TexturedDiffuseShader extends DiffuseShader {
 
     @Override
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint());
     }
 
     // EP : Added transparency management  
     @Override
     public Color getRadiance(ShadingState state) {
-        Color radiance = super.getRadiance(state);
         float alpha;
         if (isOpaque() || (alpha = tex.getOpacityAlpha(state.getUV().x, state.getUV().y)) > 0.99999) {
             // Pixel is fully opaque
-            return radiance;
+            return super.getRadiance(state);
         } else {
+            state.disableFinalGatherQueue();
+            Color radiance = super.getRadiance(state);
             Vector3 refrDir = state.getRay().getDirection();
             Color refraction = state.traceRefraction(new Ray(state.getPoint(), refrDir), 0);
             return radiance.mul(alpha).madd(1 - alpha, refraction);
@@ -26,7 +26,7 @@ public class TexturedShinyDiffuseShader extends ShinyDiffuseShader {
 
     @Override
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint());
     }
 
     // EP : Added transparency management  
@@ -41,6 +41,7 @@ public class TexturedShinyDiffuseShader extends ShinyDiffuseShader {
             state.faceforward();
             state.initLightSamples();
             state.initCausticSamples();
+            state.disableFinalGatherQueue();
             Color c = state.diffuse(getDiffuse(state));
             Vector3 refrDir = state.getRay().getDirection();
             Color refraction = state.traceRefraction(new Ray(state.getPoint(), refrDir), 0);
@@ -24,7 +24,7 @@ public class TexturedWardShader extends AnisotropicWardShader {
 
     @Override
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint());
     }
 
     // EP : Added transparency management  
@@ -49,11 +49,11 @@ public class UberShader implements Shader {
     }
 
     public Color getDiffuse(ShadingState state) {
-        return diffmap == null ? diff : Color.blend(diff, diffmap.getPixel(state.getUV().x, state.getUV().y), diffBlend);
+        return diffmap == null ? diff : Color.blend(diff, diffmap.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint()), diffBlend);
     }
 
     public Color getSpecular(ShadingState state) {
-        return specmap == null ? spec : Color.blend(spec, specmap.getPixel(state.getUV().x, state.getUV().y), specBlend);
+        return specmap == null ? spec : Color.blend(spec, specmap.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint()), specBlend);
     }
 
     public Color getRadiance(ShadingState state) {
@@ -66,6 +66,7 @@ public class UberShader implements Shader {
         float alpha;
         if (!isOpaque() && diffmap != null && (alpha = diffmap.getOpacityAlpha(state.getUV().x, state.getUV().y)) <= 0.99999) {
             // Ignore glossiness for half transparent pixels
+            state.disableFinalGatherQueue();
             Color c = state.diffuse(getDiffuse(state));
             Vector3 refrDir = state.getRay().getDirection();
             Color refraction = state.traceRefraction(new Ray(state.getPoint(), refrDir), 0);
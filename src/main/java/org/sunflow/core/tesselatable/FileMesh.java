@@ -1,29 +1,24 @@
 package org.sunflow.core.tesselatable;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.sunflow.SunflowAPI;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.core.primitive.ChunkedMeshFile;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.MappedFile;
 import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
@@ -44,23 +39,21 @@ public class FileMesh implements Tesselatable {
         if (filename.endsWith(".ra3")) {
             try {
                 UI.printInfo(Module.GEOM, "RA3 - Reading geometry: \"%s\" ...", filename);
-                File file = new File(filename);
-                FileInputStream stream = new FileInputStream(filename);
-                MappedByteBuffer map = stream.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
-                map.order(ByteOrder.LITTLE_ENDIAN);
-                IntBuffer ints = map.asIntBuffer();
-                FloatBuffer buffer = map.asFloatBuffer();
-                int numVerts = ints.get(0);
-                int numTris = ints.get(1);
-                UI.printInfo(Module.GEOM, "RA3 -   * Reading %d vertices ...", numVerts);
-                float[] verts = new float[3 * numVerts];
-                for (int i = 0; i < verts.length; i++)
-                    verts[i] = buffer.get(2 + i);
-                UI.printInfo(Module.GEOM, "RA3 -   * Reading %d triangles ...", numTris);
-                int[] tris = new int[3 * numTris];
-                for (int i = 0; i < tris.length; i++)
-                    tris[i] = ints.get(2 + verts.length + i);
-                stream.close();
+                MappedFile file = new MappedFile(filename);
+                float[] verts;
+                int[] tris;
+                try {
+                    int numVerts = file.getInt(0);
+                    int numTris = file.getInt(4);
+                    UI.printInfo(Module.GEOM, "RA3 -   * Reading %d vertices ...", numVerts);
+                    verts = new float[3 * numVerts];
+                    file.getFloats(8, verts);
+                    UI.printInfo(Module.GEOM, "RA3 -   * Reading %d triangles ...", numTris);
+                    tris = new int[3 * numTris];
+                    file.getInts(8 + 4L * verts.length, tris);
+                } finally {
+                    file.close();
+                }
                 UI.printInfo(Module.GEOM, "RA3 -   * Creating mesh ...");
                 return generate(tris, verts, smoothNormals);
             } catch (FileNotFoundException e) {
@@ -70,6 +63,23 @@ public class FileMesh implements Tesselatable {
                 e.printStackTrace();
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - I/O error occured", filename);
             }
+        } else if (filename.endsWith(".sfm")) {
+            try {
+                UI.printInfo(Module.GEOM, "SFM - Reading geometry: \"%s\" ...", filename);
+                ParameterList pl = ChunkedMeshFile.read(filename);
+                UI.printInfo(Module.GEOM, "SFM -   * Creating mesh ...");
+                if (smoothNormals && pl.getVectorArray("normals") == null)
+                    return generate(pl.getIntArray("triangles"), pl.getPointArray("points").data, true);
+                TriangleMesh m = new TriangleMesh();
+                if (m.update(pl, null))
+                    return m;
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - file not found", filename);
+            } catch (IOException e) {
+                e.printStackTrace();
+                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - %s", filename, e.getMessage());
+            }
         } else if (filename.endsWith(".obj")) {
             int lineNumber = 1;
             try {
@@ -120,40 +130,43 @@ public class FileMesh implements Tesselatable {
         } else if (filename.endsWith(".stl")) {
             try {
                 UI.printInfo(Module.GEOM, "STL - Reading geometry: \"%s\" ...", filename);
-                FileInputStream file = new FileInputStream(filename);
-                DataInputStream stream = new DataInputStream(new BufferedInputStream(file));
-                file.skip(80);
-                int numTris = getLittleEndianInt(stream.readInt());
-                UI.printInfo(Module.GEOM, "STL -   * Reading %d triangles ...", numTris);
-                long filesize = new File(filename).length();
-                if (filesize != (84 + 50 * numTris)) {
-                    UI.printWarning(Module.GEOM, "STL - Size of file mismatch (expecting %s, found %s)", Memory.bytesToString(84 + 14 * numTris), Memory.bytesToString(filesize));
-                    return null;
-                }
-                int[] tris = new int[3 * numTris];
-                float[] verts = new float[9 * numTris];
-                for (int i = 0, i3 = 0, index = 0; i < numTris; i++, i3 += 3) {
-                    // skip normal
-                    stream.readInt();
-                    stream.readInt();
-                    stream.readInt();
-                    for (int j = 0; j < 3; j++, index += 3) {
-                        tris[i3 + j] = i3 + j;
-                        // get xyz
-                        verts[index + 0] = getLittleEndianFloat(stream.readInt());
-                        verts[index + 1] = getLittleEndianFloat(stream.readInt());
-                        verts[index + 2] = getLittleEndianFloat(stream.readInt());
+                MappedFile file = new MappedFile(filename);
+                int numTris;
+                int[] tris;
+                VertexWelder welder;
+                try {
+                    numTris = file.getInt(80);
+                    UI.printInfo(Module.GEOM, "STL -   * Reading %d triangles ...", numTris);
+                    long filesize = file.getSize();
+                    if (filesize != (84 + 50L * numTris)) {
+                        UI.printWarning(Module.GEOM, "STL - Size of file mismatch (expecting %s, found %s)", Memory.bytesToString(84 + 50L * numTris), Memory.bytesToString(filesize));
+                        return null;
+                    }
+                    // identical vertices are welded together, STL stores them
+                    // once per triangle
+                    tris = new int[3 * numTris];
+                    welder = new VertexWelder(3 * numTris);
+                    // read triangles in blocks which fit in a mapping window
+                    int blockSize = 1 << 20;
+                    for (int first = 0; first < numTris; first += blockSize) {
+                        int n = Math.min(blockSize, numTris - first);
+                        ByteBuffer buffer = file.map(84 + 50L * first, 50L * n);
+                        for (int i = 0, i3 = 3 * first; i < n; i++, i3 += 3) {
+                            // skip normal and attributes
+                            int ofs = 50 * i + 12;
+                            for (int j = 0; j < 3; j++, ofs += 12)
+                                tris[i3 + j] = welder.add(buffer.getFloat(ofs), buffer.getFloat(ofs + 4), buffer.getFloat(ofs + 8));
+                        }
+                        UI.printInfo(Module.GEOM, "STL -   * Parsed %7d triangles ...", first + n);
                     }
-                    stream.readShort();
-                    if ((i + 1) % 100000 == 0)
-                        UI.printInfo(Module.GEOM, "STL -   * Parsed %7d triangles ...", i + 1);
+                } finally {
+                    file.close();
                 }
-                file.close();
+                float[] verts = welder.getVertices();
+                UI.printInfo(Module.GEOM, "STL -   * Welded %d vertices into %d", 3 * numTris, verts.length / 3);
                 // create geometry
                 UI.printInfo(Module.GEOM, "STL -   * Creating mesh ...");
-                if (smoothNormals)
-                    UI.printWarning(Module.GEOM, "STL - format does not support shared vertices - normal smoothing disabled");
-                return generate(tris, verts, false);
+                return generate(tris, verts, smoothNormals);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - file not found", filename);
@@ -215,6 +228,55 @@ public class FileMesh implements Tesselatable {
         return null;
     }
 
+    /**
+     * Merges vertices with identical coordinates, using an open addressing
+     * hash table of vertex indices.
+     */
+    private static final class VertexWelder {
+        private float[] verts;
+        private int numVerts;
+        private final int[] table;
+
+        VertexWelder(int maxVerts) {
+            verts = new float[3 * Math.min(maxVerts, 1 << 16)];
+            numVerts = 0;
+            int size = 1;
+            while (size < 2 * maxVerts)
+                size <<= 1;
+            table = new int[size];
+            Arrays.fill(table, -1);
+        }
+
+        int add(float x, float y, float z) {
+            // adding 0 turns -0 into +0 so both weld together
+            x += 0.0f;
+            y += 0.0f;
+            z += 0.0f;
+            int hash = Float.floatToIntBits(x) * 73856093 ^ Float.floatToIntBits(y) * 19349663 ^ Float.floatToIntBits(z) * 83492791;
+            hash ^= hash >>> 16;
+            int mask = table.length - 1;
+            for (int h = hash & mask;; h = (h + 1) & mask) {
+                int v = table[h];
+                if (v == -1) {
+                    // new vertex
+                    if (3 * numVerts == verts.length)
+                        verts = Arrays.copyOf(verts, Math.min(2 * verts.length, 3 * (table.length / 2)));
+                    verts[3 * numVerts + 0] = x;
+                    verts[3 * numVerts + 1] = y;
+                    verts[3 * numVerts + 2] = z;
+                    table[h] = numVerts;
+                    return numVerts++;
+                }
+                if (verts[3 * v + 0] == x && verts[3 * v + 1] == y && verts[3 * v + 2] == z)
+                    return v;
+            }
+        }
+
+        float[] getVertices() {
+            return Arrays.copyOf(verts, 3 * numVerts);
+        }
+    }
+
     public boolean update(ParameterList pl, SunflowAPI api) {
         String file = pl.getString("filename", null);
         if (file != null)
@@ -223,15 +285,4 @@ public class FileMesh implements Tesselatable {
         return filename != null;
     }
 
-    private int getLittleEndianInt(int i) {
-        // input integer has its bytes in big endian byte order
-        // swap them around
-        return (i >>> 24) | ((i >>> 8) & 0xFF00) | ((i << 8) & 0xFF0000) | (i << 24);
-    }
-
-    private float getLittleEndianFloat(int i) {
-        // input integer has its bytes in big endian byte order
-        // swap them around and interpret data as floating point
-        return Float.intBitsToFloat(getLittleEndianInt(i));
-    }
 }
\ No newline at end of file
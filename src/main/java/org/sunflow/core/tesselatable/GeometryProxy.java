@@ -0,0 +1,61 @@
+package org.sunflow.core.tesselatable;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.core.ParameterList;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.ReloadableTesselatable;
+import org.sunflow.core.ParameterList.FloatParameter;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * A mesh file which is only read when a ray first reaches its bounding box.
+ * The bounds are given in the scene so that the file does not need to be read
+ * up front. The mesh may be discarded later on to make room for other
+ * geometry (see {@link org.sunflow.core.GeometryCache}), in which case it is
+ * read again the next time it is needed. All file formats of {@link FileMesh}
+ * are supported.
+ */
+public class GeometryProxy extends FileMesh implements ReloadableTesselatable {
+    // estimated size of the acceleration structure for each triangle
+    private static final int ACCEL_BYTES_PER_PRIMITIVE = 16;
+
+    private BoundingBox bounds = null;
+
+    @Override
+    public BoundingBox getWorldBounds(Matrix4 o2w) {
+        if (bounds == null) {
+            // read the file once to find out
+            UI.printWarning(Module.GEOM, "Proxy bounds were not specified - reading geometry to compute them");
+            PrimitiveList primitives = tesselate();
+            if (primitives == null)
+                return null;
+            bounds = primitives.getWorldBounds(null);
+        }
+        return o2w == null ? new BoundingBox(bounds) : o2w.transform(bounds);
+    }
+
+    public long getMemoryUsage(PrimitiveList primitives) {
+        long bytes = (long) ACCEL_BYTES_PER_PRIMITIVE * primitives.getNumPrimitives();
+        if (primitives instanceof TriangleMesh)
+            bytes += ((TriangleMesh) primitives).getMemoryUsage();
+        return bytes;
+    }
+
+    @Override
+    public boolean update(ParameterList pl, SunflowAPI api) {
+        FloatParameter b = pl.getPointArray("bounds");
+        if (b != null) {
+            if (b.data.length != 6)
+                UI.printWarning(Module.GEOM, "Proxy bounds must be given as two points - ignoring");
+            else {
+                bounds = new BoundingBox(b.data[0], b.data[1], b.data[2]);
+                bounds.include(b.data[3], b.data[4], b.data[5]);
+            }
+        }
+        return super.update(pl, api);
+    }
+}
@@ -138,6 +138,18 @@ public final class Color {
         return (r + g + b) / 3.0f;
     }
 
+    public final float getRed() {
+        return r;
+    }
+
+    public final float getGreen() {
+        return g;
+    }
+
+    public final float getBlue() {
+        return b;
+    }
+
     public final float[] getRGB() {
         return new float[] { r, g, b };
     }
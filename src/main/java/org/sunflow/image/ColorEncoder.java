@@ -22,6 +22,26 @@ public final class ColorEncoder {
         return output;
     }
 
+    /**
+     * Packs the specified colors and alpha values into a single array, as
+     * expected by {@link PackedBitmapWriter}. The returned array contains 4
+     * floats for each color in the original array.
+     * 
+     * @param color array of colors
+     * @param alpha alpha values corresponding to the colors
+     * @return array of packed RGBA values
+     */
+    public static final float[] pack(Color[] color, float[] alpha) {
+        float[] output = new float[color.length * 4];
+        for (int i = 0, index = 0; i < color.length; i++, index += 4) {
+            output[index + 0] = color[i].getRed();
+            output[index + 1] = color[i].getGreen();
+            output[index + 2] = color[i].getBlue();
+            output[index + 3] = alpha[i];
+        }
+        return output;
+    }
+
     /**
      * Moves the colors in the specified array to non-linear space. The original
      * colors are not modified.
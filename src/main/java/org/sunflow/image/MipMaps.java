@@ -0,0 +1,100 @@
+package org.sunflow.image;
+
+import org.sunflow.image.formats.BitmapG8;
+import org.sunflow.image.formats.BitmapGA8;
+import org.sunflow.image.formats.BitmapRGB8;
+import org.sunflow.image.formats.BitmapRGBA8;
+import org.sunflow.image.formats.BitmapRGBE;
+
+/**
+ * Builds the mipmap pyramid of a bitmap: a series of bitmaps which halve the
+ * resolution of the previous one, down to a single pixel.
+ */
+public final class MipMaps {
+    private MipMaps() {
+    }
+
+    /**
+     * Create all mipmap levels of the specified bitmap. Levels of low dynamic
+     * range bitmaps are stored with 8 bits per channel, other levels are
+     * stored as RGBE.
+     *
+     * @param bitmap full resolution bitmap
+     * @return array of levels, starting with the bitmap itself
+     */
+    public static Bitmap[] create(Bitmap bitmap) {
+        boolean ldr = isLDR(bitmap);
+        int n = 1;
+        for (int s = Math.max(bitmap.getWidth(), bitmap.getHeight()); s > 1; s >>= 1)
+            n++;
+        Bitmap[] levels = new Bitmap[n];
+        levels[0] = bitmap;
+        for (int i = 1; i < n; i++)
+            levels[i] = downsample(levels[i - 1], ldr);
+        return levels;
+    }
+
+    /**
+     * Does the specified bitmap store 8 bits per channel?
+     *
+     * @param bitmap bitmap to test
+     * @return <code>true</code> for low dynamic range bitmaps
+     */
+    public static boolean isLDR(Bitmap bitmap) {
+        if (bitmap instanceof TiledBitmap)
+            return !((TiledBitmap) bitmap).isHDR();
+        return bitmap instanceof BitmapRGBA8 || bitmap instanceof BitmapRGB8 || bitmap instanceof BitmapGA8 || bitmap instanceof BitmapG8;
+    }
+
+    /**
+     * Halve the resolution of a bitmap with a box filter. Each pixel averages
+     * the 2x2 block of pixels it covers, or a 3 pixel wide block along odd
+     * sized dimensions so that every source pixel is accounted for.
+     */
+    private static Bitmap downsample(Bitmap src, boolean ldr) {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        int w = Math.max(1, sw / 2);
+        int h = Math.max(1, sh / 2);
+        byte[] rgba = ldr ? new byte[4 * w * h] : null;
+        int[] rgbe = ldr ? null : new int[w * h];
+        Color c = new Color();
+        for (int y = 0, index = 0; y < h; y++) {
+            int y0 = y * sh / h;
+            int y1 = (y + 1) * sh / h;
+            for (int x = 0; x < w; x++, index++) {
+                int x0 = x * sw / w;
+                int x1 = (x + 1) * sw / w;
+                c.set(0, 0, 0);
+                float a = 0;
+                for (int j = y0; j < y1; j++) {
+                    for (int i = x0; i < x1; i++) {
+                        c.add(src.readColor(i, j));
+                        a += src.readAlpha(i, j);
+                    }
+                }
+                float scale = 1.0f / ((x1 - x0) * (y1 - y0));
+                c.mul(scale);
+                if (ldr) {
+                    rgba[4 * index + 0] = (byte) toByte(c.getRed());
+                    rgba[4 * index + 1] = (byte) toByte(c.getGreen());
+                    rgba[4 * index + 2] = (byte) toByte(c.getBlue());
+                    rgba[4 * index + 3] = (byte) toByte(a * scale);
+                } else
+                    rgbe[index] = c.toRGBE();
+            }
+        }
+        return ldr ? new BitmapRGBA8(w, h, rgba) : new BitmapRGBE(w, h, rgbe);
+    }
+
+    /**
+     * Quantize a value in [0,1] to 8 bits.
+     *
+     * @param f value to quantize
+     * @return integer in [0,255]
+     */
+    static int toByte(float f) {
+        int i = (int) (f * 255 + 0.5f);
+        return i < 0 ? 0 : i > 255 ? 255 : i;
+    }
+}
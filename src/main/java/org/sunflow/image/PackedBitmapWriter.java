@@ -0,0 +1,32 @@
+package org.sunflow.image;
+
+import java.io.IOException;
+
+/**
+ * A bitmap writer which can also receive its pixels as a packed float array,
+ * so that large images can be written without creating a {@link Color} object
+ * per pixel. Pixels are stored as 4 consecutive floats: red, green and blue,
+ * premultiplied by alpha just like the colors given to
+ * {@link BitmapWriter#writeTile(int, int, int, int, Color[], float[])}, and
+ * then alpha.
+ */
+public interface PackedBitmapWriter extends BitmapWriter {
+    /**
+     * Write a tile of packed data. The tile may be a window into a larger
+     * array, such as a whole framebuffer, in which case the stride gives the
+     * distance between the start of two consecutive rows. A stride of 0
+     * repeats the same row over the whole tile. Note that this method may be
+     * called by more than one thread, so it should be made thread-safe if
+     * possible.
+     *
+     * @param x tile x coordinate
+     * @param y tile y coordinate
+     * @param w tile width
+     * @param h tile height
+     * @param rgba packed pixel data
+     * @param offset index of the red component of the first pixel of the tile
+     * @param stride number of floats between two rows of the tile
+     * @throws IOException thrown if an I/O error occurs
+     */
+    public abstract void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException;
+}
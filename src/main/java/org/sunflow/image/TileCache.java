@@ -0,0 +1,194 @@
+package org.sunflow.image;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.sunflow.system.Memory;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Keeps the tiles of {@link TiledBitmap tiled bitmaps} which were recently
+ * read. The cache is split into independent stripes, each with its own lock,
+ * its own least recently used order and an equal share of the memory budget,
+ * so that render threads reading different tiles rarely wait for each other.
+ * The budget is normally set from the <code>texture.cache.size</code> option
+ * of the scene, in megabytes. A budget of 0 disables tiling altogether, and
+ * textures are kept in memory in full.
+ * <p>
+ * Tiled textures are written with all their mipmap levels to a temporary
+ * file, with each tile compressed. On disk this takes at most a third more
+ * than the decoded image at 4 bytes per pixel, and usually much less. The
+ * files are deleted when their texture cache is flushed, or when the process
+ * exits.
+ * <p>
+ * There is a single cache for the whole process, shared by the textures of
+ * all scenes, since it bounds the memory used by their tiles together. The
+ * budget stays in effect until it is changed again, scenes which don't set
+ * the option leave it alone. The hit and miss counters are shared as well, so
+ * they are only meaningful while a single scene renders.
+ */
+public final class TileCache {
+    private static final int STRIPES = 16;
+    private static final int TILE_BYTES = 4 * TiledBitmap.TILE_SIZE * TiledBitmap.TILE_SIZE + 64;
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static volatile long maxBytes = 0;
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private TileCache() {
+    }
+
+    /**
+     * Sets the amount of memory the tiles may use. Tiles over the budget are
+     * discarded right away.
+     *
+     * @param bytes memory budget in bytes, or 0 to stop tiling new textures
+     */
+    public static void setMaxSize(long bytes) {
+        bytes = Math.max(bytes, 0);
+        if (bytes == maxBytes)
+            return;
+        maxBytes = bytes;
+        if (bytes == 0)
+            return; // textures which were already tiled keep all their tiles
+        UI.printInfo(Module.TEX, "Texture cache size: %s", Memory.bytesToString(bytes));
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.evict(bytes / STRIPES);
+            }
+        }
+    }
+
+    /**
+     * Should textures be split into tiles which are loaded on demand?
+     *
+     * @return <code>true</code> if a memory budget was set
+     */
+    public static boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Gets the specified tile, loading it if it isn't in the cache.
+     *
+     * @param bitmap bitmap the tile belongs to
+     * @param tx tile column
+     * @param ty tile row
+     * @return tile pixels
+     */
+    static int[] getTile(TiledBitmap bitmap, int tx, int ty) {
+        long key = ((long) bitmap.getID() << 32) | ((long) ty << 16) | tx;
+        Stripe s = stripes[hash(key) & (STRIPES - 1)];
+        synchronized (s) {
+            int[] tile = s.tiles.get(key);
+            if (tile != null) {
+                s.hits++;
+                return tile;
+            }
+        }
+        // load outside the lock so other tiles of the stripe can still be
+        // read, two threads may occasionally load the same tile
+        int[] tile;
+        try {
+            tile = bitmap.loadTile(tx, ty);
+        } catch (IOException e) {
+            UI.printError(Module.TEX, "Unable to read texture tile (%d, %d): %s", tx, ty, e.getMessage());
+            tile = new int[TiledBitmap.TILE_SIZE * TiledBitmap.TILE_SIZE];
+        }
+        synchronized (s) {
+            s.misses++;
+            int[] previous = s.tiles.put(key, tile);
+            if (previous == null)
+                s.bytes += TILE_BYTES;
+            long max = maxBytes;
+            if (max > 0)
+                s.evict(max / STRIPES);
+        }
+        return tile;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40);
+    }
+
+    /**
+     * Reset the hit, miss and eviction counters.
+     */
+    public static void resetStats() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.hits = s.misses = s.evictions = 0;
+            }
+        }
+    }
+
+    public static long getHits() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.hits;
+            }
+        }
+        return n;
+    }
+
+    public static long getMisses() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.misses;
+            }
+        }
+        return n;
+    }
+
+    public static long getEvictions() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.evictions;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Gets the memory currently used by tiles.
+     *
+     * @return resident bytes
+     */
+    public static long getResidentBytes() {
+        long bytes = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                bytes += s.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private static final class Stripe {
+        // access ordered, so the first entry is the least recently used
+        final LinkedHashMap<Long, int[]> tiles = new LinkedHashMap<Long, int[]>(64, 0.75f, true);
+        long bytes;
+        // counters are kept per stripe to avoid sharing them between threads
+        long hits, misses, evictions;
+
+        void evict(long max) {
+            // always keep the most recent tile, even with a tiny budget
+            Iterator<int[]> it = tiles.values().iterator();
+            while (bytes > max && tiles.size() > 1) {
+                it.next();
+                it.remove();
+                bytes -= TILE_BYTES;
+                evictions++;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.sunflow.image;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bitmap which is split into square tiles that are only loaded when a pixel
+ * inside them is read. Tiles are kept by the {@link TileCache}, which frees
+ * the least recently used ones when it goes over its memory budget, so that
+ * only the parts of the image which are actually seen stay in memory.
+ * <p>
+ * Tiles store one integer per pixel. Low dynamic range bitmaps pack 8 bits
+ * per channel as RGBA, high dynamic range bitmaps use the RGBE encoding of
+ * {@link Color#toRGBE()} and are fully opaque. Tiles along the right and
+ * bottom edges are padded to the full tile size.
+ */
+public abstract class TiledBitmap extends Bitmap {
+    public static final int TILE_SIZE = 64;
+    public static final int TILE_SHIFT = 6;
+    public static final int TILE_MASK = TILE_SIZE - 1;
+    private static final AtomicInteger nextID = new AtomicInteger();
+
+    private final int w, h;
+    private final boolean hdr;
+    private final int id;
+
+    /**
+     * Creates a tiled bitmap of the specified size.
+     *
+     * @param w width in pixels
+     * @param h height in pixels
+     * @param hdr <code>true</code> if the tiles use the RGBE encoding,
+     *            <code>false</code> if they are 8 bit RGBA
+     */
+    protected TiledBitmap(int w, int h, boolean hdr) {
+        this.w = w;
+        this.h = h;
+        this.hdr = hdr;
+        id = nextID.getAndIncrement();
+    }
+
+    @Override
+    public int getWidth() {
+        return w;
+    }
+
+    @Override
+    public int getHeight() {
+        return h;
+    }
+
+    /**
+     * Are the pixels of this bitmap encoded as RGBE?
+     *
+     * @return <code>true</code> for high dynamic range bitmaps
+     */
+    public boolean isHDR() {
+        return hdr;
+    }
+
+    final int getID() {
+        return id;
+    }
+
+    /**
+     * Gets the number of tiles along the width of the bitmap.
+     *
+     * @return number of tile columns
+     */
+    public int getTilesX() {
+        return (w + TILE_MASK) >> TILE_SHIFT;
+    }
+
+    /**
+     * Gets the number of tiles along the height of the bitmap.
+     *
+     * @return number of tile rows
+     */
+    public int getTilesY() {
+        return (h + TILE_MASK) >> TILE_SHIFT;
+    }
+
+    /**
+     * Read the pixels of a tile from the backing storage. This may be called
+     * by several threads at once.
+     *
+     * @param tx tile column
+     * @param ty tile row
+     * @return array of <code>TILE_SIZE * TILE_SIZE</code> encoded pixels
+     * @throws IOException if the tile can't be read
+     */
+    protected abstract int[] loadTile(int tx, int ty) throws IOException;
+
+    private int readPixel(int x, int y) {
+        int[] tile = TileCache.getTile(this, x >> TILE_SHIFT, y >> TILE_SHIFT);
+        return tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)];
+    }
+
+    @Override
+    public Color readColor(int x, int y) {
+        int v = readPixel(x, y);
+        if (hdr)
+            return new Color().setRGBE(v);
+        return new Color((v >>> 24) * INV255, ((v >> 16) & 0xFF) * INV255, ((v >> 8) & 0xFF) * INV255);
+    }
+
+    @Override
+    public float readAlpha(int x, int y) {
+        return hdr ? 1 : (readPixel(x, y) & 0xFF) * INV255;
+    }
+
+    /**
+     * Encode a tile of any bitmap.
+     *
+     * @param bitmap bitmap to read pixels from
+     * @param hdr <code>true</code> to encode pixels as RGBE,
+     *            <code>false</code> for 8 bit RGBA
+     * @param tx tile column
+     * @param ty tile row
+     * @return array of <code>TILE_SIZE * TILE_SIZE</code> encoded pixels
+     */
+    public static int[] encodeTile(Bitmap bitmap, boolean hdr, int tx, int ty) {
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        int x0 = tx << TILE_SHIFT;
+        int y0 = ty << TILE_SHIFT;
+        int x1 = Math.min(x0 + TILE_SIZE, bitmap.getWidth());
+        int y1 = Math.min(y0 + TILE_SIZE, bitmap.getHeight());
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = (y - y0) << TILE_SHIFT; x < x1; x++, i++) {
+                Color c = bitmap.readColor(x, y);
+                if (hdr)
+                    tile[i] = c.toRGBE();
+                else
+                    tile[i] = MipMaps.toByte(c.getRed()) << 24 | MipMaps.toByte(c.getGreen()) << 16 | MipMaps.toByte(c.getBlue()) << 8 | MipMaps.toByte(bitmap.readAlpha(x, y));
+            }
+        }
+        return tile;
+    }
+}
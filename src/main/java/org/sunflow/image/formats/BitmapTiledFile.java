@@ -0,0 +1,274 @@
+package org.sunflow.image.formats;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.MipMaps;
+import org.sunflow.image.TiledBitmap;
+import org.sunflow.system.MappedFile;
+
+/**
+ * One mipmap level of a pre-tiled texture file. The file stores all mipmap
+ * levels of a texture cut into tiles, so that rendering can read only the
+ * tiles it needs straight from a memory mapping of the file, without decoding
+ * the whole image first.
+ * <p>
+ * The file starts with a header made of the magic number "SFTX", the format
+ * version, a set of flags, the tile size and the number of levels, followed by
+ * the width and height of each level. An index then gives the offset and size
+ * of every tile, level by level and row by row. Tiles are stored with the
+ * pixel encoding of {@link TiledBitmap}, either as is or compressed with
+ * deflate when this makes them smaller. All values are little endian.
+ */
+public final class BitmapTiledFile extends TiledBitmap {
+    private static final int MAGIC = 0x58544653; // "SFTX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_HDR = 1;
+    private static final int FLAG_LINEAR = 2;
+    private static final int FLAG_TRANSPARENT = 4;
+    private static final int TILE_BYTES = 4 * TILE_SIZE * TILE_SIZE;
+
+    private final int flags;
+    private final ByteBuffer data;
+    private final MappedFile file;
+    private final long[] offsets;
+    private final int[] sizes;
+    private BitmapTiledFile[] levels;
+
+    private BitmapTiledFile(int w, int h, int flags, ByteBuffer data, MappedFile file, long[] offsets, int[] sizes) {
+        super(w, h, (flags & FLAG_HDR) != 0);
+        this.flags = flags;
+        this.data = data;
+        this.file = file;
+        this.offsets = offsets;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Gets all mipmap levels stored in the file this level belongs to.
+     *
+     * @return array of levels, starting with the full resolution one
+     */
+    public Bitmap[] getMipMaps() {
+        return levels.clone();
+    }
+
+    /**
+     * Were the pixels left untouched when the file was created, or were they
+     * converted from gamma corrected values?
+     *
+     * @return <code>true</code> if no gamma correction was removed
+     */
+    public boolean isLinear() {
+        return (flags & FLAG_LINEAR) != 0;
+    }
+
+    /**
+     * Does the full resolution level have pixels which are not fully opaque?
+     * This is stored in the file so it can be known without reading any
+     * tile.
+     *
+     * @return <code>true</code> if some pixels are transparent
+     */
+    public boolean isTransparent() {
+        return (flags & FLAG_TRANSPARENT) != 0;
+    }
+
+    @Override
+    protected int[] loadTile(int tx, int ty) throws IOException {
+        int t = ty * getTilesX() + tx;
+        ByteBuffer buffer = region(offsets[t], sizes[t]);
+        int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        if (sizes[t] == TILE_BYTES)
+            buffer.asIntBuffer().get(tile);
+        else {
+            byte[] in = new byte[sizes[t]];
+            byte[] raw = new byte[TILE_BYTES];
+            buffer.get(in);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(in);
+                if (inflater.inflate(raw) != raw.length)
+                    throw new IOException("truncated tile");
+            } catch (DataFormatException e) {
+                throw new IOException("corrupted tile");
+            } finally {
+                inflater.end();
+            }
+            ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(tile);
+        }
+        return tile;
+    }
+
+    private ByteBuffer region(long offset, int size) throws IOException {
+        if (data == null)
+            return file.map(offset, size);
+        // work on a private view so that threads don't share positions
+        ByteBuffer view = data.duplicate();
+        view.limit((int) (offset + size));
+        view.position((int) offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Open a tiled texture file.
+     *
+     * @param filename file to open
+     * @return all mipmap levels, starting with the full resolution one
+     * @throws IOException if the file can't be read or is invalid
+     */
+    public static BitmapTiledFile[] open(String filename) throws IOException {
+        MappedFile file = new MappedFile(filename);
+        boolean keepOpen = false;
+        try {
+            long size = file.getSize();
+            if (size < 20)
+                throw new IOException("not a tiled texture file");
+            ByteBuffer header = file.map(0, 20);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("not a tiled texture file");
+            if (header.getInt(4) != FORMAT_VERSION)
+                throw new IOException(String.format("unsupported version %d", header.getInt(4)));
+            int flags = header.getInt(8);
+            if (header.getInt(12) != TILE_SIZE)
+                throw new IOException(String.format("unsupported tile size %d", header.getInt(12)));
+            int numLevels = header.getInt(16);
+            if (numLevels < 1 || numLevels > 32 || size < 20 + 8 * numLevels)
+                throw new IOException("invalid level count");
+            ByteBuffer dims = file.map(20, 8 * numLevels);
+            int[] widths = new int[numLevels];
+            int[] heights = new int[numLevels];
+            long numTiles = 0;
+            for (int i = 0; i < numLevels; i++) {
+                widths[i] = dims.getInt(8 * i);
+                heights[i] = dims.getInt(8 * i + 4);
+                if (widths[i] < 1 || heights[i] < 1 || widths[i] > 1 << 20 || heights[i] > 1 << 20)
+                    throw new IOException("invalid level size");
+                numTiles += (long) ((widths[i] + TILE_MASK) >> TILE_SHIFT) * ((heights[i] + TILE_MASK) >> TILE_SHIFT);
+            }
+            long indexOffset = 20 + 8 * numLevels;
+            if (12 * numTiles > Integer.MAX_VALUE || indexOffset + 12 * numTiles > size)
+                throw new IOException("invalid tile index");
+            ByteBuffer index = file.map(indexOffset, 12 * numTiles);
+            // map the whole file at once when it is small enough
+            ByteBuffer data = size <= Integer.MAX_VALUE ? file.map(0, size) : null;
+            keepOpen = data == null;
+            BitmapTiledFile[] levels = new BitmapTiledFile[numLevels];
+            for (int i = 0, t = 0; i < numLevels; i++) {
+                int n = ((widths[i] + TILE_MASK) >> TILE_SHIFT) * ((heights[i] + TILE_MASK) >> TILE_SHIFT);
+                long[] offsets = new long[n];
+                int[] sizes = new int[n];
+                for (int j = 0; j < n; j++, t++) {
+                    offsets[j] = index.getLong(12 * t);
+                    sizes[j] = index.getInt(12 * t + 8);
+                    if (offsets[j] < 0 || sizes[j] <= 0 || sizes[j] > TILE_BYTES || offsets[j] + sizes[j] > size)
+                        throw new IOException("invalid tile index");
+                }
+                levels[i] = new BitmapTiledFile(widths[i], heights[i], flags, data, file, offsets, sizes);
+            }
+            for (BitmapTiledFile level : levels)
+                level.levels = levels;
+            return levels;
+        } finally {
+            // mappings stay valid after the file is closed
+            if (!keepOpen)
+                file.close();
+        }
+    }
+
+    /**
+     * Write a tiled texture file.
+     *
+     * @param filename file to write
+     * @param levels mipmap levels, starting with the full resolution one, as
+     *            created by {@link MipMaps#create(Bitmap)}
+     * @param isLinear were the pixels read without removing gamma correction?
+     * @param compress <code>true</code> to compress tiles, <code>false</code>
+     *            to store them as is for the fastest possible access
+     * @return size of the file in bytes
+     * @throws IOException if the file can't be written
+     */
+    public static long write(String filename, Bitmap[] levels, boolean isLinear, boolean compress) throws IOException {
+        boolean hdr = !MipMaps.isLDR(levels[0]);
+        int numTiles = 0;
+        for (Bitmap level : levels)
+            numTiles += ((level.getWidth() + TILE_MASK) >> TILE_SHIFT) * ((level.getHeight() + TILE_MASK) >> TILE_SHIFT);
+        int headerSize = 20 + 8 * levels.length;
+        ByteBuffer index = ByteBuffer.allocate(12 * numTiles).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer raw = ByteBuffer.allocate(TILE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] packed = new byte[TILE_BYTES];
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        boolean transparent = false;
+        long position = headerSize + index.capacity();
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            for (int i = 0; i < levels.length; i++) {
+                int tilesX = (levels[i].getWidth() + TILE_MASK) >> TILE_SHIFT;
+                int tilesY = (levels[i].getHeight() + TILE_MASK) >> TILE_SHIFT;
+                for (int ty = 0; ty < tilesY; ty++) {
+                    for (int tx = 0; tx < tilesX; tx++) {
+                        int[] tile = encodeTile(levels[i], hdr, tx, ty);
+                        if (i == 0 && !hdr && !transparent)
+                            transparent = hasTransparency(tile, levels[0], tx, ty);
+                        raw.clear();
+                        raw.asIntBuffer().put(tile);
+                        ByteBuffer out = raw;
+                        if (deflater != null) {
+                            deflater.reset();
+                            deflater.setInput(raw.array());
+                            deflater.finish();
+                            int n = deflater.deflate(packed);
+                            if (deflater.finished() && n < TILE_BYTES)
+                                out = ByteBuffer.wrap(packed, 0, n);
+                        }
+                        index.putLong(position);
+                        index.putInt(out.remaining());
+                        while (out.hasRemaining())
+                            position += channel.write(out, position);
+                    }
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt((hdr ? FLAG_HDR : 0) | (isLinear ? FLAG_LINEAR : 0) | (transparent ? FLAG_TRANSPARENT : 0));
+            header.putInt(TILE_SIZE);
+            header.putInt(levels.length);
+            for (Bitmap level : levels) {
+                header.putInt(level.getWidth());
+                header.putInt(level.getHeight());
+            }
+            header.flip();
+            index.flip();
+            for (long p = 0; header.hasRemaining();)
+                p += channel.write(header, p);
+            for (long p = headerSize; index.hasRemaining();)
+                p += channel.write(index, p);
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            file.close();
+        }
+        return position;
+    }
+
+    private static boolean hasTransparency(int[] tile, Bitmap bitmap, int tx, int ty) {
+        // only look at the pixels inside the bitmap, padding is transparent
+        int w = Math.min(TILE_SIZE, bitmap.getWidth() - (tx << TILE_SHIFT));
+        int h = Math.min(TILE_SIZE, bitmap.getHeight() - (ty << TILE_SHIFT));
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                if ((tile[(y << TILE_SHIFT) + x] & 0xFF) != 0xFF)
+                    return true;
+        return false;
+    }
+}
@@ -6,25 +6,27 @@ import org.sunflow.PluginRegistry;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
+import org.sunflow.image.PackedBitmapWriter;
 import org.sunflow.system.FileUtils;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
- * This is a generic and inefficient bitmap format which may be used for
- * debugging purposes (dumping small images), when memory usage is not a
- * concern.
+ * This is a generic bitmap format which stores full float precision pixels. It
+ * may be used to dump images for debugging purposes or to hold a complete
+ * framebuffer. Pixels are packed into a single float array, 4 floats per
+ * pixel, in the layout expected by {@link PackedBitmapWriter}.
  */
 public class GenericBitmap extends Bitmap {
     private int w, h;
-    private Color[] color;
-    private float[] alpha;
+    private float[] data;
 
     public GenericBitmap(int w, int h) {
+        if (4L * w * h > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("Bitmap too large: %dx%d", w, h));
         this.w = w;
         this.h = h;
-        color = new Color[w * h];
-        alpha = new float[w * h];
+        data = new float[4 * w * h];
     }
 
     @Override
@@ -39,17 +41,58 @@ public class GenericBitmap extends Bitmap {
 
     @Override
     public Color readColor(int x, int y) {
-        return color[x + y * w];
+        int index = 4 * (x + y * w);
+        return new Color(data[index], data[index + 1], data[index + 2]);
     }
 
     @Override
     public float readAlpha(int x, int y) {
-        return alpha[x + y * w];
+        return data[4 * (x + y * w) + 3];
     }
 
     public void writePixel(int x, int y, Color c, float a) {
-        color[x + y * w] = c;
-        alpha[x + y * w] = a;
+        writePixel(x, y, c.getRed(), c.getGreen(), c.getBlue(), a);
+    }
+
+    public void writePixel(int x, int y, float r, float g, float b, float a) {
+        int index = 4 * (x + y * w);
+        data[index + 0] = r;
+        data[index + 1] = g;
+        data[index + 2] = b;
+        data[index + 3] = a;
+    }
+
+    /**
+     * Copy a rectangle of pixels out of this bitmap.
+     *
+     * @param x x coordinate of the rectangle
+     * @param y y coordinate of the rectangle
+     * @param tw rectangle width
+     * @param th rectangle height
+     * @param rgba packed destination array
+     * @param offset index of the first pixel in the destination array
+     * @param stride number of floats between two rows in the destination
+     *            array
+     */
+    public void readTile(int x, int y, int tw, int th, float[] rgba, int offset, int stride) {
+        for (int j = 0, index = 4 * (x + y * w); j < th; j++, index += 4 * w, offset += stride)
+            System.arraycopy(data, index, rgba, offset, 4 * tw);
+    }
+
+    /**
+     * Copy a rectangle of pixels into this bitmap.
+     *
+     * @param x x coordinate of the rectangle
+     * @param y y coordinate of the rectangle
+     * @param tw rectangle width
+     * @param th rectangle height
+     * @param rgba packed source array
+     * @param offset index of the first pixel in the source array
+     * @param stride number of floats between two rows in the source array
+     */
+    public void writeTile(int x, int y, int tw, int th, float[] rgba, int offset, int stride) {
+        for (int j = 0, index = 4 * (x + y * w); j < th; j++, index += 4 * w, offset += stride)
+            System.arraycopy(rgba, offset, data, index, 4 * tw);
     }
 
     public void save(String filename) {
@@ -62,7 +105,17 @@ public class GenericBitmap extends Bitmap {
         try {
             writer.openFile(filename);
             writer.writeHeader(w, h, Math.max(w, h));
-            writer.writeTile(0, 0, w, h, color, alpha);
+            if (writer instanceof PackedBitmapWriter)
+                ((PackedBitmapWriter) writer).writeTile(0, 0, w, h, data, 0, 4 * w);
+            else {
+                Color[] color = new Color[w * h];
+                float[] alpha = new float[w * h];
+                for (int i = 0; i < color.length; i++) {
+                    color[i] = new Color(data[4 * i], data[4 * i + 1], data[4 * i + 2]);
+                    alpha[i] = data[4 * i + 3];
+                }
+                writer.writeTile(0, 0, w, h, color, alpha);
+            }
             writer.closeFile();
         } catch (IOException e) {
             UI.printError(Module.IMG, "Unable to save file \"%s\" - %s", filename, e.getLocalizedMessage());
@@ -0,0 +1,23 @@
+package org.sunflow.image.readers;
+
+import java.io.IOException;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.BitmapReader;
+import org.sunflow.image.formats.BitmapTiledFile;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Reads pre-tiled, mipmapped textures. Only the file header and the tile
+ * index are read here, the tiles themselves are read on demand from a memory
+ * mapping of the file.
+ */
+public class SFTBitmapReader implements BitmapReader {
+    public Bitmap load(String filename, boolean isLinear) throws IOException, BitmapFormatException {
+        BitmapTiledFile[] levels = BitmapTiledFile.open(filename);
+        if (!levels[0].isHDR() && levels[0].isLinear() != isLinear)
+            UI.printWarning(Module.IMG, "Tiled texture \"%s\" was created from %s data, its gamma will not be adjusted", filename, levels[0].isLinear() ? "linear" : "gamma corrected");
+        return levels[0];
+    }
+}
@@ -5,13 +5,14 @@ import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.zip.Deflater;
 
-import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
+import org.sunflow.image.ColorEncoder;
+import org.sunflow.image.PackedBitmapWriter;
 import org.sunflow.system.ByteUtil;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class EXRBitmapWriter implements BitmapWriter {
+public class EXRBitmapWriter implements PackedBitmapWriter {
     private static final byte HALF = 1;
     private static final byte FLOAT = 2;
     private static final int HALF_SIZE = 2;
@@ -86,7 +87,13 @@ public class EXRBitmapWriter implements BitmapWriter {
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
         int tx = x / tileSize;
         int ty = y / tileSize;
-        writeEXRTile(tx, ty, w, h, color, alpha);
+        writeEXRTile(tx, ty, w, h, ColorEncoder.pack(color, alpha), 0, 4 * w);
+    }
+
+    public void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException {
+        int tx = x / tileSize;
+        int ty = y / tileSize;
+        writeEXRTile(tx, ty, w, h, rgba, offset, stride);
     }
 
     public void closeFile() throws IOException {
@@ -224,7 +231,7 @@ public class EXRBitmapWriter implements BitmapWriter {
                 file.write(ByteUtil.get8Bytes(tileOffsets[tx][ty]));
     }
 
-    private synchronized void writeEXRTile(int tileX, int tileY, int w, int h, Color[] tile, float[] alpha) throws IOException {
+    private synchronized void writeEXRTile(int tileX, int tileY, int w, int h, float[] rgba, int offset, int stride) throws IOException {
         byte[] rgb;
 
         // setting comprSize to max integer so without compression things
@@ -254,28 +261,27 @@ public class EXRBitmapWriter implements BitmapWriter {
         Arrays.fill(tmpbuf, (byte) 0);
 
         for (int ty = 0; ty < tileRangeY; ty++) {
-            for (int tx = 0; tx < tileRangeX; tx++) {
-                float[] rgbf = tile[tx + ty * tileRangeX].getRGB();
+            for (int tx = 0, index = offset + ty * stride; tx < tileRangeX; tx++, index += 4) {
                 if (channelType == FLOAT) {
-                    rgb = ByteUtil.get4Bytes(Float.floatToRawIntBits(alpha[tx + ty * tileRangeX]));
+                    rgb = ByteUtil.get4Bytes(Float.floatToRawIntBits(rgba[index + 3]));
                     tmpbuf[pixptr + 0] = rgb[0];
                     tmpbuf[pixptr + 1] = rgb[1];
                     tmpbuf[pixptr + 2] = rgb[2];
                     tmpbuf[pixptr + 3] = rgb[3];
                 } else if (channelType == HALF) {
-                    rgb = ByteUtil.get2Bytes(ByteUtil.floatToHalf(alpha[tx + ty * tileRangeX]));
+                    rgb = ByteUtil.get2Bytes(ByteUtil.floatToHalf(rgba[index + 3]));
                     tmpbuf[pixptr + 0] = rgb[0];
                     tmpbuf[pixptr + 1] = rgb[1];
                 }
                 for (int component = 1; component <= 3; component++) {
                     if (channelType == FLOAT) {
-                        rgb = ByteUtil.get4Bytes(Float.floatToRawIntBits(rgbf[3 - component]));
+                        rgb = ByteUtil.get4Bytes(Float.floatToRawIntBits(rgba[index + 3 - component]));
                         tmpbuf[(channelBase * component) + pixptr + 0] = rgb[0];
                         tmpbuf[(channelBase * component) + pixptr + 1] = rgb[1];
                         tmpbuf[(channelBase * component) + pixptr + 2] = rgb[2];
                         tmpbuf[(channelBase * component) + pixptr + 3] = rgb[3];
                     } else if (channelType == HALF) {
-                        rgb = ByteUtil.get2Bytes(ByteUtil.floatToHalf(rgbf[3 - component]));
+                        rgb = ByteUtil.get2Bytes(ByteUtil.floatToHalf(rgba[index + 3 - component]));
                         tmpbuf[(channelBase * component) + pixptr + 0] = rgb[0];
                         tmpbuf[(channelBase * component) + pixptr + 1] = rgb[1];
                     }
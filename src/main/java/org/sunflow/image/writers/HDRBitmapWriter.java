@@ -5,11 +5,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
 import org.sunflow.image.ColorEncoder;
+import org.sunflow.image.PackedBitmapWriter;
 
-public class HDRBitmapWriter implements BitmapWriter {
+public class HDRBitmapWriter implements PackedBitmapWriter {
     private String filename;
     private int width, height;
     private int[] data;
@@ -28,10 +28,14 @@ public class HDRBitmapWriter implements BitmapWriter {
     }
 
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
-        int[] tileData = ColorEncoder.encodeRGBE(color);
-        for (int j = 0, index = 0, pixel = x + y * width; j < h; j++, pixel += width - w)
-            for (int i = 0; i < w; i++, index++, pixel++)
-                data[pixel] = tileData[index];
+        writeTile(x, y, w, h, ColorEncoder.pack(color, alpha), 0, 4 * w);
+    }
+
+    public void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException {
+        Color c = new Color();
+        for (int j = 0, pixel = x + y * width; j < h; j++, offset += stride, pixel += width - w)
+            for (int i = 0, index = offset; i < w; i++, index += 4, pixel++)
+                data[pixel] = c.set(rgba[index], rgba[index + 1], rgba[index + 2]).toRGBE();
     }
 
     public void closeFile() throws IOException {
@@ -5,15 +5,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
+import org.sunflow.image.ColorEncoder;
+import org.sunflow.image.PackedBitmapWriter;
 import org.sunflow.image.XYZColor;
 
 /**
  * Writes images in Indigo's native XYZ format.
  * http://www2.indigorenderer.com/joomla/forum/viewtopic.php?p=11430
  */
-public class IGIBitmapWriter implements BitmapWriter {
+public class IGIBitmapWriter implements PackedBitmapWriter {
     private String filename;
     private int width, height;
     private float[] xyz;
@@ -32,9 +33,14 @@ public class IGIBitmapWriter implements BitmapWriter {
     }
 
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
-        for (int j = 0, index = 0, pixel = 3 * (x + y * width); j < h; j++, pixel += 3 * (width - w)) {
-            for (int i = 0; i < w; i++, index++, pixel += 3) {
-                XYZColor c = Color.NATIVE_SPACE.convertRGBtoXYZ(color[index]);
+        writeTile(x, y, w, h, ColorEncoder.pack(color, alpha), 0, 4 * w);
+    }
+
+    public void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException {
+        Color rgb = new Color();
+        for (int j = 0, pixel = 3 * (x + y * width); j < h; j++, offset += stride, pixel += 3 * (width - w)) {
+            for (int i = 0, index = offset; i < w; i++, index += 4, pixel += 3) {
+                XYZColor c = Color.NATIVE_SPACE.convertRGBtoXYZ(rgb.set(rgba[index], rgba[index + 1], rgba[index + 2]));
                 xyz[pixel + 0] = c.getX();
                 xyz[pixel + 1] = c.getY();
                 xyz[pixel + 2] = c.getZ();
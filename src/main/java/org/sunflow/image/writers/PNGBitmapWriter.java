@@ -6,10 +6,11 @@ import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
-import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
+import org.sunflow.image.ColorEncoder;
+import org.sunflow.image.PackedBitmapWriter;
 
-public class PNGBitmapWriter implements BitmapWriter {
+public class PNGBitmapWriter implements PackedBitmapWriter {
     private String filename;
     private BufferedImage image;
 
@@ -25,9 +26,19 @@ public class PNGBitmapWriter implements BitmapWriter {
     }
 
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
-        for (int j = 0, index = 0; j < h; j++)
-            for (int i = 0; i < w; i++, index++)
-                image.setRGB(x + i, y + j, color[index].copy().mul(1.0f / alpha[index]).toNonLinear().toRGBA(alpha[index]));
+        writeTile(x, y, w, h, ColorEncoder.pack(color, alpha), 0, 4 * w);
+    }
+
+    public void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException {
+        int[] row = new int[w];
+        Color c = new Color();
+        for (int j = 0; j < h; j++, offset += stride) {
+            for (int i = 0, index = offset; i < w; i++, index += 4) {
+                float a = rgba[index + 3];
+                row[i] = c.set(rgba[index], rgba[index + 1], rgba[index + 2]).mul(1.0f / a).toNonLinear().toRGBA(a);
+            }
+            image.setRGB(x, y + j, w, 1, row, 0, w);
+        }
     }
 
     public void closeFile() throws IOException {
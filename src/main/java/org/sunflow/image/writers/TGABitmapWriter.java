@@ -5,11 +5,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.sunflow.image.BitmapWriter;
 import org.sunflow.image.Color;
 import org.sunflow.image.ColorEncoder;
+import org.sunflow.image.PackedBitmapWriter;
+import org.sunflow.math.MathUtils;
 
-public class TGABitmapWriter implements BitmapWriter {
+public class TGABitmapWriter implements PackedBitmapWriter {
     private String filename;
     private int width, height;
     private byte[] data;
@@ -28,20 +29,26 @@ public class TGABitmapWriter implements BitmapWriter {
     }
 
     public void writeTile(int x, int y, int w, int h, Color[] color, float[] alpha) throws IOException {
-        color = ColorEncoder.unlinearize(color); // gamma correction
-        byte[] tileData = ColorEncoder.quantizeRGBA8(color, alpha);
-        for (int j = 0, index = 0; j < h; j++) {
+        writeTile(x, y, w, h, ColorEncoder.pack(color, alpha), 0, 4 * w);
+    }
+
+    public void writeTile(int x, int y, int w, int h, float[] rgba, int offset, int stride) throws IOException {
+        for (int j = 0; j < h; j++, offset += stride) {
             int imageIndex = 4 * (x + (height - 1 - (y + j)) * width);
-            for (int i = 0; i < w; i++, index += 4, imageIndex += 4) {
-                // swap bytes around so buffer is in native BGRA order
-                data[imageIndex + 0] = tileData[index + 2];
-                data[imageIndex + 1] = tileData[index + 1];
-                data[imageIndex + 2] = tileData[index + 0];
-                data[imageIndex + 3] = tileData[index + 3];
+            for (int i = 0, index = offset; i < w; i++, index += 4, imageIndex += 4) {
+                // gamma correct and store in native BGRA order
+                data[imageIndex + 0] = quantize(Color.NATIVE_SPACE.gammaCorrect(rgba[index + 2]));
+                data[imageIndex + 1] = quantize(Color.NATIVE_SPACE.gammaCorrect(rgba[index + 1]));
+                data[imageIndex + 2] = quantize(Color.NATIVE_SPACE.gammaCorrect(rgba[index + 0]));
+                data[imageIndex + 3] = quantize(rgba[index + 3]);
             }
         }
     }
 
+    private static final byte quantize(float f) {
+        return (byte) MathUtils.clamp((int) (f * 255 + 0.5f), 0, 255);
+    }
+
     public void closeFile() throws IOException {
         // actually write the file from here
         OutputStream f = new BufferedOutputStream(new FileOutputStream(filename));
@@ -90,6 +90,34 @@ public final class MovingMatrix4 {
             inv = 1;
     }
 
+    /**
+     * Checks whether this matrix actually changes over time.
+     * 
+     * @return <code>true</code> if several steps are spread over a non-empty
+     *         time interval
+     */
+    public boolean isMoving() {
+        return transforms.length > 1 && t0 < t1;
+    }
+
+    /**
+     * Get the time of the first step.
+     * 
+     * @return start of the time interval
+     */
+    public float getStartTime() {
+        return t0;
+    }
+
+    /**
+     * Get the time of the last step.
+     * 
+     * @return end of the time interval
+     */
+    public float getEndTime() {
+        return t1;
+    }
+
     public MovingMatrix4 inverse() {
         MovingMatrix4 mi = new MovingMatrix4(transforms.length, t0, t1, inv);
         for (int i = 0; i < transforms.length; i++) {
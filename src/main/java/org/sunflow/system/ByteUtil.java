@@ -115,4 +115,25 @@ public class ByteUtil {
             return s | (e << 10) | (m >> 13);
         }
     }
+
+    public static final float halfToFloat(int h) {
+        int s = (h & 0x8000) << 16;
+        int e = (h >> 10) & 0x1f;
+        int m = h & 0x03ff;
+        if (e == 0) {
+            if (m == 0)
+                return Float.intBitsToFloat(s); // signed zero
+            // denormalized half, renormalize it
+            while ((m & 0x0400) == 0) {
+                m <<= 1;
+                e--;
+            }
+            e++;
+            m &= 0x03ff;
+        } else if (e == 31) {
+            // infinity or NAN, keep the significand
+            return Float.intBitsToFloat(s | 0x7f800000 | (m << 13));
+        }
+        return Float.intBitsToFloat(s | ((e + (127 - 15)) << 23) | (m << 13));
+    }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
@@ -179,11 +180,14 @@ public class ImagePanel extends JPanel implements Display {
     public synchronized void imageBegin(int w, int h, int bucketSize) {
         if (image != null && w == image.getWidth() && h == image.getHeight()) {
             // dull image if it has same resolution (75%)
+            int[] row = new int[w];
             for (int y = 0; y < h; y++) {
+                image.getRGB(0, y, w, 1, row, 0, w);
                 for (int x = 0; x < w; x++) {
-                    int rgba = image.getRGB(x, y);
-                    image.setRGB(x, y, ((rgba & 0xFEFEFEFE) >>> 1) + ((rgba & 0xFCFCFCFC) >>> 2));
+                    int rgba = row[x];
+                    row[x] = ((rgba & 0xFEFEFEFE) >>> 1) + ((rgba & 0xFCFCFCFC) >>> 2);
                 }
+                image.setRGB(0, y, w, 1, row, 0, w);
             }
         } else {
             // allocate new framebuffer
@@ -214,17 +218,23 @@ public class ImagePanel extends JPanel implements Display {
     }
 
     public synchronized void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
-        for (int j = 0, index = 0; j < h; j++)
+        // convert whole rows at once, reusing a single color
+        int[] row = new int[w];
+        Color c = new Color();
+        for (int j = 0, index = 0; j < h; j++) {
             for (int i = 0; i < w; i++, index++)
-                image.setRGB(x + i, y + j, data[index].copy().mul(1.0f / alpha[index]).toNonLinear().toRGBA(alpha[index]));
+                row[i] = c.set(data[index]).mul(1.0f / alpha[index]).toNonLinear().toRGBA(alpha[index]);
+            image.setRGB(x, y + j, w, 1, row, 0, w);
+        }
         repaint();
     }
 
     public synchronized void imageFill(int x, int y, int w, int h, Color c, float alpha) {
         int rgba = c.copy().mul(1.0f / alpha).toNonLinear().toRGBA(alpha);
-        for (int j = 0, index = 0; j < h; j++)
-            for (int i = 0; i < w; i++, index++)
-                image.setRGB(x + i, y + j, rgba);
+        int[] row = new int[w];
+        Arrays.fill(row, rgba);
+        for (int j = 0; j < h; j++)
+            image.setRGB(x, y + j, w, 1, row, 0, w);
         fastRepaint();
     }
 
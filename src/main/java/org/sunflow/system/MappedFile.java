@@ -0,0 +1,105 @@
+package org.sunflow.system;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only access to a little endian binary file through memory mappings.
+ * Arrays are filled with bulk transfers straight from the mapped pages, so
+ * reading large meshes is limited by the disk rather than by copying. The
+ * file is mapped in windows of at most 1Gb, which allows reading files larger
+ * than 2Gb.
+ */
+public final class MappedFile {
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * Opens the specified file for reading.
+     *
+     * @param filename file to open
+     * @throws IOException if the file can't be opened
+     */
+    public MappedFile(String filename) throws IOException {
+        stream = new FileInputStream(filename);
+        channel = stream.getChannel();
+        size = channel.size();
+    }
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return file size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Map a region of the file. The region must be smaller than 2Gb.
+     *
+     * @param offset position of the region in the file
+     * @param length length of the region in bytes
+     * @return a little endian buffer over the region
+     * @throws IOException if the region can't be mapped
+     */
+    public ByteBuffer map(long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Read a single integer.
+     *
+     * @param offset position of the value in the file
+     * @return integer value
+     * @throws IOException if the file can't be read
+     */
+    public int getInt(long offset) throws IOException {
+        return map(offset, 4).getInt(0);
+    }
+
+    /**
+     * Fill the specified array with consecutive floats from the file.
+     *
+     * @param offset position of the first value in the file
+     * @param dest array to fill
+     * @throws IOException if the file can't be read
+     */
+    public void getFloats(long offset, float[] dest) throws IOException {
+        for (int i = 0; i < dest.length;) {
+            int n = (int) Math.min(dest.length - i, WINDOW_SIZE / 4);
+            map(offset + 4L * i, 4L * n).asFloatBuffer().get(dest, i, n);
+            i += n;
+        }
+    }
+
+    /**
+     * Fill the specified array with consecutive integers from the file.
+     *
+     * @param offset position of the first value in the file
+     * @param dest array to fill
+     * @throws IOException if the file can't be read
+     */
+    public void getInts(long offset, int[] dest) throws IOException {
+        for (int i = 0; i < dest.length;) {
+            int n = (int) Math.min(dest.length - i, WINDOW_SIZE / 4);
+            map(offset + 4L * i, 4L * n).asIntBuffer().get(dest, i, n);
+            i += n;
+        }
+    }
+
+    /**
+     * Close the file. Regions which were already mapped stay valid.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        stream.close();
+    }
+}
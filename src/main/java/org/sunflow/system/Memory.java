@@ -2,7 +2,7 @@ package org.sunflow.system;
 
 public final class Memory {
     public static final String sizeof(int[] array) {
-        return bytesToString(array == null ? 0 : 4 * array.length);
+        return bytesToString(array == null ? 0 : 4L * array.length);
     }
 
     public static final String bytesToString(long bytes) {
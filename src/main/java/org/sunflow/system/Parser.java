@@ -1,128 +1,225 @@
 package org.sunflow.system;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
+/**
+ * Splits a text file into tokens separated by whitespace. Double quotes group
+ * several words into a single token, <code>%</code> and <code>#</code> start
+ * comments which run until the end of the line, and <code>/*</code> and
+ * <code>*&#47;</code> tokens delimit block comments.
+ * <p>
+ * The file is read in large blocks through a {@link FileChannel} and scanned
+ * byte by byte. Tokens are only turned into strings when they are asked for as
+ * strings: numbers are parsed directly from the bytes, which keeps large
+ * point and index arrays from creating one string per value.
+ */
 public class Parser {
-    private FileReader file;
-    private BufferedReader bf;
-    private String[] lineTokens;
-    private int index;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+            1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+            1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private FileInputStream file;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private byte[] data;
+    private int pos;
+    private int limit;
+    // current token
+    private byte[] token;
+    private int tokenLength;
+    private boolean pushedBack;
+    private boolean inQuotes;
+    private boolean lineEnded;
 
     public Parser(String filename) throws FileNotFoundException {
-        file = new FileReader(filename);
-        bf = new BufferedReader(file);
-        lineTokens = new String[0];
-        index = 0;
+        file = new FileInputStream(filename);
+        channel = file.getChannel();
+        data = new byte[BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(data);
+        pos = limit = 0;
+        token = new byte[256];
+        tokenLength = 0;
+        pushedBack = false;
+        inQuotes = false;
+        lineEnded = false;
     }
 
     public void close() throws IOException {
         if (file != null)
             file.close();
-        bf = null;
+        file = null;
+        channel = null;
     }
 
     public String getNextToken() throws IOException {
+        return nextToken() ? tokenString() : null;
+    }
+
+    public boolean peekNextToken(String tok) throws IOException {
+        if (!nextToken())
+            return false; // nothing left
+        if (tokenEquals(tok)) {
+            // we found the right token, keep parsing
+            return true;
+        } else {
+            // rewind the token so we can try again
+            pushedBack = true;
+            return false;
+        }
+    }
+
+    /**
+     * Move to the next token, skipping block comments.
+     *
+     * @return <code>true</code> if a token was found, <code>false</code> at
+     *         the end of the file
+     */
+    private boolean nextToken() throws IOException {
+        if (pushedBack) {
+            pushedBack = false;
+            return true;
+        }
         while (true) {
-            String tok = fetchNextToken();
-            if (tok == null)
-                return null;
-            if (tok.equals("/*")) {
+            if (!fetchNextToken())
+                return false;
+            if (tokenEquals("/*")) {
                 do {
-                    tok = fetchNextToken();
-                    if (tok == null)
-                        return null;
-                } while (!tok.equals("*/"));
+                    if (!fetchNextToken())
+                        return false;
+                } while (!tokenEquals("*/"));
             } else
-                return tok;
+                return true;
         }
     }
 
-    public boolean peekNextToken(String tok) throws IOException {
+    private boolean fetchNextToken() throws IOException {
+        tokenLength = 0;
         while (true) {
-            String t = fetchNextToken();
-            if (t == null)
-                return false; // nothing left
-            if (t.equals("/*")) {
-                do {
-                    t = fetchNextToken();
-                    if (t == null)
-                        return false; // nothing left
-                } while (!t.equals("*/"));
-            } else if (t.equals(tok)) {
-                // we found the right token, keep parsing
+            int c = read();
+            if (c == -1) {
+                lineEnded = true;
+                return tokenLength > 0;
+            }
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && peek() == '\n')
+                    pos++;
+                inQuotes = false;
+                if (tokenLength > 0) {
+                    lineEnded = true;
+                    return true;
+                }
+                continue;
+            }
+            if (tokenLength == 0 && (c == '%' || c == '#')) {
+                // comment, skip the rest of the line
+                skipLine();
+                continue;
+            }
+            boolean quote = c == '\"';
+            inQuotes = inQuotes ^ quote;
+            if (!quote && (inQuotes || !isWhitespace(c))) {
+                if (tokenLength == token.length)
+                    token = Arrays.copyOf(token, 2 * token.length);
+                token[tokenLength++] = (byte) c;
+            } else if (tokenLength > 0) {
+                lineEnded = false;
                 return true;
-            } else {
-                // rewind the token so we can try again
-                index--;
-                return false;
             }
         }
     }
 
-    private String fetchNextToken() throws IOException {
-        if (bf == null)
-            return null;
-        while (true) {
-            if (index < lineTokens.length)
-                return lineTokens[index++];
-            else if (!getNextLine())
-                return null;
-        }
+    private int read() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return data[pos++] & 0xFF;
     }
 
-    private boolean getNextLine() throws IOException {
-        String line = bf.readLine();
+    private int peek() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return data[pos] & 0xFF;
+    }
 
-        if (line == null)
+    private boolean fill() throws IOException {
+        if (channel == null)
             return false;
+        buffer.clear();
+        int n;
+        do {
+            n = channel.read(buffer);
+        } while (n == 0);
+        pos = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+    }
 
-        ArrayList<String> tokenList = new ArrayList<String>();
-        String current = new String();
-        boolean inQuotes = false;
+    private void skipLine() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && c != '\n' && c != '\r');
+        if (c == '\r' && peek() == '\n')
+            pos++;
+        inQuotes = false;
+    }
 
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (current.length() == 0 && (c == '%' || c == '#'))
-                break;
+    private String readLine() throws IOException {
+        tokenLength = 0;
+        int c = read();
+        if (c == -1)
+            return null;
+        while (c != -1 && c != '\n' && c != '\r') {
+            if (tokenLength == token.length)
+                token = Arrays.copyOf(token, 2 * token.length);
+            token[tokenLength++] = (byte) c;
+            c = read();
+        }
+        if (c == '\r' && peek() == '\n')
+            pos++;
+        String line = new String(token, 0, tokenLength, UTF8);
+        tokenLength = 0;
+        return line;
+    }
 
-            boolean quote = c == '\"';
-            inQuotes = inQuotes ^ quote;
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || (c >= 0x09 && c <= 0x0D) || (c >= 0x1C && c <= 0x1F);
+    }
 
-            if (!quote && (inQuotes || !Character.isWhitespace(c)))
-                current += c;
-            else if (current.length() > 0) {
-                tokenList.add(current);
-                current = new String();
-            }
-        }
+    private String tokenString() {
+        return new String(token, 0, tokenLength, UTF8);
+    }
 
-        if (current.length() > 0)
-            tokenList.add(current);
-        lineTokens = tokenList.toArray(new String[0]);
-        index = 0;
+    private boolean tokenEquals(String s) {
+        if (s.length() != tokenLength)
+            return s.equals(tokenString()); // may contain multi-byte characters
+        for (int i = 0; i < tokenLength; i++)
+            if (token[i] != s.charAt(i))
+                return s.equals(tokenString());
         return true;
     }
 
     public String getNextCodeBlock() throws ParserException, IOException {
         // read a java code block
-        String code = new String();
+        StringBuilder code = new StringBuilder();
         checkNextToken("<code>");
+        if (!lineEnded)
+            skipLine();
         while (true) {
-            String line;
-            try {
-                line = bf.readLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+            String line = readLine();
+            if (line == null)
+                throw new ParserException("</code>", null);
             if (line.trim().equals("</code>"))
-                return code;
-            code += line;
-            code += "\n";
+                return code.toString();
+            code.append(line);
+            code.append("\n");
         }
     }
 
@@ -131,11 +228,93 @@ public class Parser {
     }
 
     public int getNextInt() throws IOException {
-        return Integer.parseInt(getNextToken());
+        if (!nextToken())
+            return Integer.parseInt(null);
+        int i = 0;
+        boolean negative = false;
+        if (tokenLength > 0 && (token[0] == '-' || token[0] == '+')) {
+            negative = token[0] == '-';
+            i++;
+        }
+        if (i == tokenLength || tokenLength - i > 9)
+            return Integer.parseInt(tokenString()); // let the slow path decide
+        int value = 0;
+        for (; i < tokenLength; i++) {
+            int d = token[i] - '0';
+            if (d < 0 || d > 9)
+                return Integer.parseInt(tokenString());
+            value = 10 * value + d;
+        }
+        return negative ? -value : value;
     }
 
     public float getNextFloat() throws IOException {
-        return Float.parseFloat(getNextToken());
+        if (!nextToken())
+            return Float.parseFloat(null);
+        // fast path for plain decimal numbers with up to 18 digits
+        int i = 0;
+        boolean negative = false;
+        if (tokenLength > 0 && (token[0] == '-' || token[0] == '+')) {
+            negative = token[0] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (; i < tokenLength; i++) {
+            int c = token[i];
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (mantissa == 0 && c == '0') {
+                    // leading zeros don't count as digits
+                } else if (++digits > 18)
+                    return Float.parseFloat(tokenString());
+                mantissa = 10 * mantissa + (c - '0');
+                if (dot)
+                    exponent--;
+            } else if (c == '.' && !dot)
+                dot = true;
+            else
+                break;
+        }
+        if (!any)
+            return Float.parseFloat(tokenString());
+        if (i < tokenLength) {
+            // exponent
+            if (token[i] != 'e' && token[i] != 'E')
+                return Float.parseFloat(tokenString());
+            i++;
+            boolean negativeExponent = false;
+            if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+                negativeExponent = token[i] == '-';
+                i++;
+            }
+            if (i == tokenLength || tokenLength - i > 3)
+                return Float.parseFloat(tokenString());
+            int e = 0;
+            for (; i < tokenLength; i++) {
+                int d = token[i] - '0';
+                if (d < 0 || d > 9)
+                    return Float.parseFloat(tokenString());
+                e = 10 * e + d;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (mantissa == 0)
+            return negative ? -0.0f : 0.0f;
+        if (mantissa >= (1L << 53) || exponent < -22 || exponent > 22)
+            return Float.parseFloat(tokenString());
+        // both operands are exact doubles so the result is correctly rounded
+        double d = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        // rounding to float again is exact unless the double landed right
+        // between two floats, or outside of the normal float range
+        long bits = Double.doubleToRawLongBits(d);
+        if ((bits & 0x1FFFFFFFL) == 0x10000000L || d < Float.MIN_NORMAL || d > Float.MAX_VALUE)
+            return Float.parseFloat(tokenString());
+        float f = (float) d;
+        return negative ? -f : f;
     }
 
     public void checkNextToken(String token) throws ParserException, IOException {
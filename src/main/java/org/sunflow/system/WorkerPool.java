@@ -0,0 +1,56 @@
+package org.sunflow.system;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Static pool of worker threads shared by the multi-threaded parts of scene
+ * preparation, such as acceleration structure construction. The pool is sized
+ * from the <code>threads</code> option of the scenes. Since it is shared by
+ * all scenes, one pool is kept for each size which was asked for, and none is
+ * ever shut down: a scene may still be using the pool it got before another
+ * scene changed the size. Their threads are daemon threads which stop once
+ * they have been idle for a while, so unused pools cost nothing and never
+ * keep the virtual machine alive.
+ */
+public final class WorkerPool {
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static final HashMap<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Sets the number of threads to use for parallel tasks. A value of 0 or
+     * less means one thread per available processor.
+     *
+     * @param threads number of threads
+     */
+    public static synchronized void setThreads(int threads) {
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        WorkerPool.threads = threads;
+    }
+
+    /**
+     * Get the number of threads used for parallel tasks.
+     *
+     * @return number of threads
+     */
+    public static synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Get the shared pool for the current number of threads, creating it if
+     * needed.
+     *
+     * @return a fork/join pool with {@link #getThreads()} threads
+     */
+    public static synchronized ForkJoinPool get() {
+        ForkJoinPool pool = pools.get(threads);
+        if (pool == null)
+            pools.put(threads, pool = new ForkJoinPool(threads));
+        return pool;
+    }
+}
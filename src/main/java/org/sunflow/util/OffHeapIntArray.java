@@ -0,0 +1,124 @@
+package org.sunflow.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Fixed size array of integers stored outside of the Java heap. The contents
+ * are split into segments of direct or memory mapped buffers, so the array is
+ * addressed with long indices and is not limited to the size of Java arrays.
+ * Off-heap memory is not scanned by the garbage collector, which keeps very
+ * large acceleration structures from slowing down collections.
+ */
+public final class OffHeapIntArray {
+    // each segment holds 2^28 ints (1Gb)
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final IntBuffer[] segments;
+    // the first segment is kept apart, small arrays never need to look up
+    // their segment
+    private final IntBuffer first;
+    private final long size;
+
+    /**
+     * Allocate a new off-heap array, initialized to 0.
+     *
+     * @param size number of elements
+     */
+    public OffHeapIntArray(long size) {
+        this.size = size;
+        segments = new IntBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            int n = (int) Math.min(size - ((long) i << SEGMENT_SHIFT), 1 << SEGMENT_SHIFT);
+            segments[i] = ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        first = segments.length > 0 ? segments[0] : IntBuffer.allocate(0);
+    }
+
+    private OffHeapIntArray(IntBuffer[] segments, long size) {
+        this.segments = segments;
+        first = segments.length > 0 ? segments[0] : IntBuffer.allocate(0);
+        this.size = size;
+    }
+
+    /**
+     * Copy the specified heap array into a new off-heap array.
+     *
+     * @param data array to copy
+     * @return a new off-heap array
+     */
+    public static OffHeapIntArray copyOf(int[] data) {
+        OffHeapIntArray array = new OffHeapIntArray(data.length);
+        for (int i = 0; i < array.segments.length; i++) {
+            IntBuffer segment = array.segments[i];
+            segment.put(data, i << SEGMENT_SHIFT, segment.capacity());
+            segment.clear();
+        }
+        return array;
+    }
+
+    /**
+     * Use the contents of a buffer, typically a memory mapped file, as an
+     * array without copying it. The integers are read from the current
+     * position of the buffer, in the buffer's byte order.
+     *
+     * @param buffer buffer to wrap
+     * @param size number of integers to use from the buffer
+     * @return a new array backed by the buffer
+     */
+    public static OffHeapIntArray wrap(ByteBuffer buffer, int size) {
+        IntBuffer data = buffer.asIntBuffer();
+        if (data.remaining() < size)
+            throw new IndexOutOfBoundsException("buffer is too small for " + size + " elements");
+        IntBuffer[] segments = new IntBuffer[(int) (((long) size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            int start = i << SEGMENT_SHIFT;
+            data.limit(start + Math.min(size - start, 1 << SEGMENT_SHIFT));
+            data.position(start);
+            segments[i] = data.slice();
+        }
+        return new OffHeapIntArray(segments, size);
+    }
+
+    /**
+     * Read value from the array.
+     *
+     * @param index index into the array
+     * @return value at the specified index
+     */
+    public final int get(long index) {
+        if (index <= SEGMENT_MASK)
+            return first.get((int) index);
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) index & SEGMENT_MASK);
+    }
+
+    /**
+     * Write a value to the specified index.
+     *
+     * @param index index into the array
+     * @param value value to write
+     */
+    public final void set(long index, int value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) index & SEGMENT_MASK, value);
+    }
+
+    /**
+     * Returns the number of elements in the array.
+     *
+     * @return size of the array
+     */
+    public final long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the amount of memory used by the array.
+     *
+     * @return size of the array in bytes
+     */
+    public final long getBytes() {
+        return 4 * size;
+    }
+}